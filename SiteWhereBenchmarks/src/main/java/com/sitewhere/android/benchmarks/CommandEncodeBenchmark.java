@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.ByteString;
+import com.sitewhere.android.protobuf.MessageEncoder;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere.Command;
+
+/**
+ * Measures encoding of each {@link Command} the way <code>SiteWhereProtobufActivity.sendMessage</code>
+ * does it: a message is built from its fields and encoded with a header by {@link MessageEncoder}.
+ * Building is included since the activity builds a new message for every event.
+ * 
+ * @author Derek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandEncodeBenchmark {
+
+	/** Hardware id used in messages */
+	private static final String HARDWARE_ID = "123-TEST-4567890";
+
+	/** Stream id used in messages */
+	private static final String STREAM_ID = "audio-stream";
+
+	/** Command being encoded */
+	@Param({ "SEND_REGISTRATION", "SEND_ACKNOWLEDGEMENT", "SEND_DEVICE_LOCATION", "SEND_DEVICE_ALERT",
+			"SEND_DEVICE_MEASUREMENTS", "SEND_DEVICE_STREAM", "SEND_DEVICE_STREAM_DATA",
+			"REQUEST_DEVICE_STREAM_DATA" })
+	public Command command;
+
+	/** Originator included in the header or empty for none */
+	@Param({ "", "originator-1" })
+	public String originator;
+
+	/** Size of device stream data chunks */
+	@Param({ "4096" })
+	public int chunkSize;
+
+	/** Data sent in device stream chunks */
+	private byte[] chunk;
+
+	/** Sequence number of the next chunk */
+	private long sequenceNumber;
+
+	@Setup
+	public void setup() {
+		chunk = new byte[chunkSize];
+		for (int i = 0; i < chunk.length; i++) {
+			chunk[i] = (byte) i;
+		}
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return MessageEncoder.get().encode(command, build(),
+				(originator.length() > 0) ? originator : null);
+	}
+
+	/**
+	 * Build a representative message for the command.
+	 * 
+	 * @return
+	 */
+	protected AbstractMessageLite build() {
+		switch (command) {
+		case SEND_REGISTRATION: {
+			return SiteWhere.RegisterDevice.newBuilder().setHardwareId(HARDWARE_ID)
+					.setSpecificationToken("d2604433-e4eb-419b-97c7-88efe9b2cd41").build();
+		}
+		case SEND_ACKNOWLEDGEMENT: {
+			return SiteWhere.Acknowledge.newBuilder().setHardwareId(HARDWARE_ID)
+					.setMessage("Command processed.").build();
+		}
+		case SEND_DEVICE_LOCATION: {
+			return Model.DeviceLocation.newBuilder().setHardwareId(HARDWARE_ID).setLatitude(33.7550)
+					.setLongitude(-84.3900).setElevation(320.0).build();
+		}
+		case SEND_DEVICE_ALERT: {
+			return Model.DeviceAlert.newBuilder().setHardwareId(HARDWARE_ID).setAlertType("engine.overheat")
+					.setAlertMessage("Engine temperature above threshold.").build();
+		}
+		case SEND_DEVICE_MEASUREMENTS: {
+			Model.Measurement mx = Model.Measurement.newBuilder().setMeasurementId("engine.temp")
+					.setMeasurementValue(98.6).build();
+			return Model.DeviceMeasurements.newBuilder().setHardwareId(HARDWARE_ID).addMeasurement(mx)
+					.build();
+		}
+		case SEND_DEVICE_STREAM: {
+			return Model.DeviceStream.newBuilder().setHardwareId(HARDWARE_ID).setStreamId(STREAM_ID)
+					.setContentType("audio/wav").build();
+		}
+		case SEND_DEVICE_STREAM_DATA: {
+			return Model.DeviceStreamData.newBuilder().setHardwareId(HARDWARE_ID).setStreamId(STREAM_ID)
+					.setSequenceNumber(sequenceNumber++).setData(ByteString.copyFrom(chunk)).build();
+		}
+		case REQUEST_DEVICE_STREAM_DATA: {
+			return SiteWhere.DeviceStreamDataRequest.newBuilder().setHardwareId(HARDWARE_ID)
+					.setStreamId(STREAM_ID).setSequenceNumber(sequenceNumber++).build();
+		}
+		}
+		throw new IllegalArgumentException("Unknown command: " + command);
+	}
+}
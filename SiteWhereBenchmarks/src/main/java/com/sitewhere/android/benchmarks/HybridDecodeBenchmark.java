@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sitewhere.android.protobuf.CommandDispatchTable;
+import com.sitewhere.android.protobuf.CompactCommandCodec;
+import com.sitewhere.android.protobuf.HybridCommand;
+import com.sitewhere.android.protobuf.HybridCommandDecoder;
+import com.sitewhere.android.protobuf.SiteWhereCommand;
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Measures decoding and dispatch of hybrid custom commands through {@link HybridCommandDecoder},
+ * which <code>SiteWhereHybridProtobufActivity</code> uses for every custom command it receives, and
+ * dispatch of already decoded commands through the {@link CommandDispatchTable} alone. Payloads are
+ * encoded either with Java serialization or with the {@link CompactCommandCodec}.
+ * 
+ * @author Derek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HybridDecodeBenchmark {
+
+	/** Command being decoded */
+	@Param({ "ping", "changeBackground", "setThresholds" })
+	public String commandName;
+
+	/** Payload encoding */
+	@Param({ "legacy", "compact" })
+	public String format;
+
+	/** Object commands are called on */
+	private final CommandTarget target = new CommandTarget();
+
+	/** Methods that handle commands on the target */
+	private final CommandDispatchTable table = CommandDispatchTable.forClass(CommandTarget.class);
+
+	/** Encoded command */
+	private byte[] payload;
+
+	/** Decoded command parameters */
+	private Object[] parameters;
+
+	/** Decoded command originator */
+	private Originator originator;
+
+	@Setup
+	public void setup() throws IOException {
+		if ("ping".equals(commandName)) {
+			parameters = new Object[0];
+		} else if ("changeBackground".equals(commandName)) {
+			parameters = new Object[] { "#ff0000" };
+		} else {
+			parameters = new Object[] { "engine.temp", Double.valueOf(20.0), Double.valueOf(110.0),
+					Integer.valueOf(3) };
+		}
+		originator = new Originator("8c6ec2a5-0bc3-4bd6-9d5d-4f0b3d1d9a77");
+		if ("compact".equals(format)) {
+			payload = CompactCommandCodec.encode(new HybridCommand(commandName, parameters, originator),
+					table.getDictionary());
+		} else {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(commandName);
+			out.writeObject(parameters);
+			out.writeObject(originator);
+			out.close();
+			payload = bytes.toByteArray();
+		}
+	}
+
+	@Benchmark
+	public int decode() throws Exception {
+		HybridCommandDecoder.invoke(table, target, payload, true);
+		return target.calls;
+	}
+
+	@Benchmark
+	public HybridCommand decodeOnly() throws Exception {
+		return HybridCommandDecoder.decode(payload, table.getDictionary(), true);
+	}
+
+	@Benchmark
+	public int dispatch() throws Exception {
+		table.dispatch(target, commandName, parameters, originator);
+		return target.calls;
+	}
+
+	/**
+	 * Stands in for an activity that declares command methods.
+	 * 
+	 * @author Derek
+	 */
+	public static class CommandTarget {
+
+		/** Number of commands called */
+		int calls;
+
+		@SiteWhereCommand
+		public void ping() {
+			calls++;
+		}
+
+		@SiteWhereCommand
+		public void changeBackground(String color, IDeviceEventOriginator originator) {
+			calls++;
+		}
+
+		@SiteWhereCommand
+		public void setThresholds(String measurementId, Double low, Double high, Integer samples,
+				IDeviceEventOriginator originator) {
+			calls++;
+		}
+	}
+
+	/**
+	 * Originator sent with each command.
+	 * 
+	 * @author Derek
+	 */
+	public static class Originator implements IDeviceEventOriginator, Serializable {
+
+		/** Serial version UID */
+		private static final long serialVersionUID = 1L;
+
+		/** Id of event that triggered the command */
+		private final String eventId;
+
+		public Originator(String eventId) {
+			this.eventId = eventId;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.spi.device.event.IDeviceEventOriginator#getEventId()
+		 */
+		@Override
+		public String getEventId() {
+			return eventId;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sitewhere.android.messaging.ICommandFilter;
+import com.sitewhere.android.mqtt.IRegisteredClient;
+import com.sitewhere.android.mqtt.RegistrationManager;
+import com.sitewhere.android.protobuf.CommandDictionary;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.Header;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.RegistrationAck;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.RegistrationAckState;
+
+/**
+ * Measures the time for {@link RegistrationManager} to route a system command and for every
+ * interested client to receive it on its dispatcher thread. With filtering, half of the clients
+ * only accept a different command, so the cost of routing past them is included.
+ * 
+ * @author Derek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistrationManagerFanoutBenchmark {
+
+	/** Topic commands arrive on */
+	private static final String TOPIC = "SiteWhere/commands/123-TEST-4567890";
+
+	/** Number of registered clients */
+	@Param({ "1", "8", "64" })
+	public int clientCount;
+
+	/** Whether half of the clients filter out the command */
+	@Param({ "false", "true" })
+	public boolean filtered;
+
+	/** Manager commands are routed through */
+	private RegistrationManager manager;
+
+	/** Registered clients */
+	private final List<CountingClient> clients = new ArrayList<CountingClient>();
+
+	/** Number of clients that accept the command */
+	private int receivers;
+
+	/** Counted down by each client as it receives the current command */
+	private volatile CountDownLatch pending;
+
+	/** Encoded registration acknowledgement */
+	private byte[] payload;
+
+	@Setup
+	public void setup() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Header.newBuilder().setCommand(Device.Command.ACK_REGISTRATION).build().writeDelimitedTo(out);
+		RegistrationAck.newBuilder().setState(RegistrationAckState.ALREADY_REGISTERED).build()
+				.writeDelimitedTo(out);
+		payload = out.toByteArray();
+
+		manager = new RegistrationManager();
+		for (int i = 0; i < clientCount; i++) {
+			boolean accepts = !filtered || ((i % 2) == 0);
+			int command = accepts ? Device.Command.ACK_REGISTRATION_VALUE
+					: Device.Command.ACK_DEVICE_STREAM_VALUE;
+			CountingClient client = new CountingClient("client" + i);
+			clients.add(client);
+			manager.addClient(client, new SingleCommandFilter(command));
+			if (accepts) {
+				receivers++;
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (CountingClient client : clients) {
+			manager.removeClient(client);
+		}
+		clients.clear();
+		receivers = 0;
+	}
+
+	@Benchmark
+	public void fanout() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(receivers);
+		pending = latch;
+		manager.onSystemCommandReceived(TOPIC, payload);
+		latch.await();
+	}
+
+	/**
+	 * Client that counts down the pending latch for each system command it receives.
+	 * 
+	 * @author Derek
+	 */
+	private class CountingClient implements IRegisteredClient {
+
+		/** Client name */
+		private final String name;
+
+		CountingClient(String name) {
+			this.name = name;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.mqtt.IRegisteredClient#getName()
+		 */
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.mqtt.IRegisteredClient#connected()
+		 */
+		@Override
+		public void connected() {
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.mqtt.IRegisteredClient#receivedSystemCommand(byte[])
+		 */
+		@Override
+		public void receivedSystemCommand(byte[] payload) {
+			pending.countDown();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.mqtt.IRegisteredClient#receivedCustomCommand(byte[])
+		 */
+		@Override
+		public void receivedCustomCommand(byte[] payload) {
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.mqtt.IRegisteredClient#delivered(long)
+		 */
+		@Override
+		public void delivered(long id) {
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.mqtt.IRegisteredClient#sendFailed(long, int)
+		 */
+		@Override
+		public void sendFailed(long firstId, int count) {
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.mqtt.IRegisteredClient#disconnected()
+		 */
+		@Override
+		public void disconnected() {
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.android.mqtt.IRegisteredClient#linkToDeath(com.sitewhere.android.mqtt.IRegisteredClient
+		 * .IDeathListener)
+		 */
+		@Override
+		public void linkToDeath(IDeathListener listener) {
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.android.mqtt.IRegisteredClient#unlinkToDeath(com.sitewhere.android.mqtt.IRegisteredClient
+		 * .IDeathListener)
+		 */
+		@Override
+		public void unlinkToDeath(IDeathListener listener) {
+		}
+	}
+
+	/**
+	 * Filter that accepts one system command for any hardware id.
+	 * 
+	 * @author Derek
+	 */
+	private static class SingleCommandFilter implements ICommandFilter {
+
+		/** Accepted system command */
+		private final Set<Integer> systemCommands;
+
+		SingleCommandFilter(int command) {
+			this.systemCommands = Collections.singleton(command);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.ICommandFilter#acceptsHardwareId(java.lang.String)
+		 */
+		@Override
+		public boolean acceptsHardwareId(String hardwareId) {
+			return true;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.ICommandFilter#getSystemCommands()
+		 */
+		@Override
+		public Set<Integer> getSystemCommands() {
+			return systemCommands;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.ICommandFilter#getCustomCommands()
+		 */
+		@Override
+		public Set<String> getCustomCommands() {
+			return Collections.emptySet();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.ICommandFilter#getCommandDictionary()
+		 */
+		@Override
+		public CommandDictionary getCommandDictionary() {
+			return null;
+		}
+	}
+}
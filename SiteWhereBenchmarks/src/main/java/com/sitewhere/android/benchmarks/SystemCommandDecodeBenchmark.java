@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.protobuf.ByteString;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAck;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAckState;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.Header;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.RegistrationAck;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.RegistrationAckState;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model.DeviceStreamData;
+
+/**
+ * Measures decoding of system command payloads. The decode is the one in
+ * <code>SiteWhereProtobufClient.receivedSystemCommand</code>, reading a single header and message,
+ * with the handlers replaced by a {@link Blackhole}.
+ * 
+ * @author Derek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SystemCommandDecodeBenchmark {
+
+	/** Payload being decoded */
+	@Param({ "registrationAck", "deviceStreamAck", "deviceStreamData" })
+	public String payloadType;
+
+	/** Size of device stream data chunks */
+	@Param({ "4096" })
+	public int chunkSize;
+
+	/** Encoded payload */
+	private byte[] payload;
+
+	@Setup
+	public void setup() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if ("registrationAck".equals(payloadType)) {
+			header(Device.Command.ACK_REGISTRATION).writeDelimitedTo(out);
+			RegistrationAck.newBuilder().setState(RegistrationAckState.ALREADY_REGISTERED).build()
+					.writeDelimitedTo(out);
+		} else if ("deviceStreamAck".equals(payloadType)) {
+			header(Device.Command.ACK_DEVICE_STREAM).writeDelimitedTo(out);
+			DeviceStreamAck.newBuilder().setStreamId("audio-stream")
+					.setState(DeviceStreamAckState.STREAM_CREATED).build().writeDelimitedTo(out);
+		} else {
+			header(Device.Command.RECEIVE_DEVICE_STREAM_DATA).writeDelimitedTo(out);
+			DeviceStreamData.newBuilder().setHardwareId("123-TEST-4567890").setStreamId("audio-stream")
+					.setSequenceNumber(0).setData(ByteString.copyFrom(new byte[chunkSize])).build()
+					.writeDelimitedTo(out);
+		}
+		payload = out.toByteArray();
+	}
+
+	/**
+	 * Build a header for a command.
+	 * 
+	 * @param command
+	 * @return
+	 */
+	protected static Header header(Device.Command command) {
+		return Header.newBuilder().setCommand(command).setOriginator("originator-1").build();
+	}
+
+	@Benchmark
+	public void decode(Blackhole blackhole) throws IOException {
+		ByteArrayInputStream stream = new ByteArrayInputStream(payload);
+		Header header = Device.Header.parseDelimitedFrom(stream);
+		blackhole.consume(header);
+		switch (header.getCommand()) {
+		case ACK_REGISTRATION: {
+			blackhole.consume(RegistrationAck.parseDelimitedFrom(stream));
+			break;
+		}
+		case ACK_DEVICE_STREAM: {
+			blackhole.consume(DeviceStreamAck.parseDelimitedFrom(stream));
+			break;
+		}
+		case RECEIVE_DEVICE_STREAM_DATA: {
+			blackhole.consume(DeviceStreamData.parseDelimitedFrom(stream));
+			break;
+		}
+		}
+	}
+}
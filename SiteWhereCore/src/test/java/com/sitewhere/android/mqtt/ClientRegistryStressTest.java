@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Hammers {@link ClientRegistry} and {@link RegistrationManager} with concurrent registration,
+ * removal, client death and dispatch, then checks that no client was lost, leaked or sent a command
+ * twice.
+ * 
+ * @author Derek
+ */
+public class ClientRegistryStressTest {
+
+	/** Clients registered for the whole test */
+	private static final int STABLE_CLIENTS = 8;
+
+	/** Threads registering and removing clients */
+	private static final int CHURN_THREADS = 4;
+
+	/** Clients added and removed by each churn thread */
+	private static final int CHURN_ITERATIONS = 2000;
+
+	/** Threads dispatching commands */
+	private static final int DISPATCH_THREADS = 4;
+
+	/** Commands dispatched by each dispatch thread */
+	private static final int DISPATCH_ITERATIONS = 2000;
+
+	/** Topic commands are received on */
+	private static final String TOPIC = DefaultMqttInteractionManager.COMMAND_TOPIC_PREFIX + "stress";
+
+	/**
+	 * Register and remove distinct clients from many threads at once and check every change is kept.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentPutAndRemove() throws Exception {
+		final ClientRegistry registry = new ClientRegistry();
+		final ClientDispatcher.IListener listener = new ClientDispatcher.IListener() {
+
+			@Override
+			public void onClientRemoved(ClientDispatcher dispatcher) {
+				registry.remove(dispatcher);
+			}
+		};
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < CHURN_THREADS; i++) {
+			final boolean keep = (i % 2 == 0);
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					for (int j = 0; j < CHURN_ITERATIONS; j++) {
+						TestClient client = new TestClient();
+						ClientDispatcher dispatcher = new ClientDispatcher(client, null, 1,
+								ClientOverflowPolicy.DropOldest, listener);
+						assertEquals(dispatcher, registry.putIfAbsent(dispatcher));
+						assertEquals(dispatcher, registry.putIfAbsent(new ClientDispatcher(client, null, 1,
+								ClientOverflowPolicy.DropOldest, listener)));
+						if (!keep) {
+							assertEquals(dispatcher, registry.remove(client));
+							assertNull(registry.remove(client));
+						}
+					}
+					return null;
+				}
+			});
+		}
+		runAll(tasks, start);
+		assertEquals((CHURN_THREADS / 2) * CHURN_ITERATIONS, registry.size());
+	}
+
+	/**
+	 * Dispatch commands while other threads register, remove and kill clients. Clients registered for
+	 * the whole test must receive every command exactly once, and every other client must be gone
+	 * with its death listener unlinked.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentRegisterUnregisterDispatch() throws Exception {
+		int total = DISPATCH_THREADS * DISPATCH_ITERATIONS;
+		final RegistrationManager manager = new RegistrationManager(total, ClientOverflowPolicy.DropOldest);
+		List<TestClient> stable = new ArrayList<TestClient>();
+		for (int i = 0; i < STABLE_CLIENTS; i++) {
+			TestClient client = new TestClient();
+			manager.addClient(client);
+			stable.add(client);
+		}
+		final List<TestClient> transients = new ArrayList<TestClient>();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < CHURN_THREADS; i++) {
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					for (int j = 0; j < CHURN_ITERATIONS; j++) {
+						TestClient client = new TestClient();
+						manager.addClient(client);
+						if (j % 2 == 0) {
+							manager.removeClient(client);
+						} else {
+							client.die();
+						}
+						synchronized (transients) {
+							transients.add(client);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		final byte[] payload = new byte[] { 1, 2, 3 };
+		for (int i = 0; i < DISPATCH_THREADS; i++) {
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					for (int j = 0; j < DISPATCH_ITERATIONS; j++) {
+						manager.onCustomCommandReceived(TOPIC, payload);
+					}
+					return null;
+				}
+			});
+		}
+		runAll(tasks, start);
+
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+		for (TestClient client : stable) {
+			while ((client.commands.get() < total) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(10);
+			}
+			assertEquals(total, client.commands.get());
+			assertEquals(1, client.links.get());
+			assertEquals(0, client.unlinks.get());
+		}
+		assertEquals(CHURN_THREADS * CHURN_ITERATIONS, transients.size());
+		for (TestClient client : transients) {
+			assertEquals(1, client.links.get());
+			assertEquals(1, client.unlinks.get());
+		}
+		deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while ((manager.getLiveDispatcherCount() > STABLE_CLIENTS)
+				&& (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		assertEquals(STABLE_CLIENTS, manager.getLiveDispatcherCount());
+		for (TestClient client : stable) {
+			manager.removeClient(client);
+		}
+		assertEquals(0, manager.getLiveDispatcherCount());
+	}
+
+	/**
+	 * Run tasks on their own threads, release them together and rethrow the first failure.
+	 * 
+	 * @param tasks
+	 * @param start
+	 * @throws Exception
+	 */
+	protected static void runAll(List<Callable<Void>> tasks, CountDownLatch start) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (Callable<Void> task : tasks) {
+				results.add(executor.submit(task));
+			}
+			start.countDown();
+			for (Future<Void> result : results) {
+				result.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Client that counts what it receives and can be made to die like a crashed process.
+	 * 
+	 * @author Derek
+	 */
+	private static class TestClient implements IRegisteredClient {
+
+		/** Number of custom commands received */
+		final AtomicInteger commands = new AtomicInteger();
+
+		/** Number of times a death listener was linked */
+		final AtomicInteger links = new AtomicInteger();
+
+		/** Number of times a death listener was unlinked */
+		final AtomicInteger unlinks = new AtomicInteger();
+
+		/** Listener told when the client dies */
+		private volatile IDeathListener listener;
+
+		/** Indicates the client has died */
+		private volatile boolean dead;
+
+		/**
+		 * Simulate the client process going away.
+		 */
+		void die() {
+			dead = true;
+			IDeathListener current = listener;
+			if (current != null) {
+				current.clientDied();
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "stress";
+		}
+
+		@Override
+		public void connected() throws SiteWhereMqttException {
+		}
+
+		@Override
+		public void receivedSystemCommand(byte[] payload) throws SiteWhereMqttException {
+		}
+
+		@Override
+		public void receivedCustomCommand(byte[] payload) throws SiteWhereMqttException {
+			commands.incrementAndGet();
+		}
+
+		@Override
+		public void delivered(long id) throws SiteWhereMqttException {
+		}
+
+		@Override
+		public void sendFailed(long firstId, int count) throws SiteWhereMqttException {
+		}
+
+		@Override
+		public void disconnected() throws SiteWhereMqttException {
+		}
+
+		@Override
+		public void linkToDeath(IDeathListener listener) throws SiteWhereMqttException {
+			if (dead) {
+				throw new SiteWhereMqttException("Client has died.");
+			}
+			links.incrementAndGet();
+			this.listener = listener;
+		}
+
+		@Override
+		public void unlinkToDeath(IDeathListener listener) {
+			unlinks.incrementAndGet();
+			this.listener = null;
+		}
+	}
+}
@@ -15,6 +15,9 @@
  */
 package com.sitewhere.android;
 
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.app.Activity;
 import android.app.Service;
 import android.content.ComponentName;
@@ -22,15 +25,21 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.os.RemoteException;
 import android.provider.Settings.Secure;
 import android.util.Log;
 
+import com.sitewhere.android.logging.AndroidLogHandler;
 import com.sitewhere.android.messaging.IFromSiteWhere;
 import com.sitewhere.android.messaging.ISiteWhereMessaging;
 import com.sitewhere.android.messaging.IToSiteWhere;
+import com.sitewhere.android.messaging.MetricsSnapshot;
+import com.sitewhere.android.messaging.PayloadFrames;
+import com.sitewhere.android.messaging.PayloadPipe;
 import com.sitewhere.android.messaging.SiteWhereMessagingException;
+import com.sitewhere.android.messaging.SubscriptionFilter;
 
 /**
  * Base class for acitivities that require SiteWhere support.
@@ -51,6 +60,14 @@ public abstract class SiteWhereActivity extends Activity {
 	/** Indicates if bound to service */
 	protected boolean bound = false;
 
+	/** Next id assigned to a payload sent asynchronously */
+	private final AtomicLong nextSendId = new AtomicLong();
+
+	static {
+		// Framework classes shared with plain Java log through the logging shim.
+		AndroidLogHandler.install();
+	}
+
 	/**
 	 * Get class used to create a local service instance.
 	 * 
@@ -85,6 +102,34 @@ public abstract class SiteWhereActivity extends Activity {
 	 */
 	protected abstract void onDisconnectedFromSiteWhere();
 
+	/**
+	 * Get filter that limits which commands are delivered to this activity.
+	 * 
+	 * @return filter or null to receive all commands
+	 */
+	protected SubscriptionFilter getSubscriptionFilter() {
+		return null;
+	}
+
+	/**
+	 * Called when all payloads sent asynchronously up to and including the given id have been
+	 * delivered.
+	 * 
+	 * @param id
+	 */
+	protected void onDelivered(long id) {
+	}
+
+	/**
+	 * Called when payloads sent asynchronously could not be queued for delivery.
+	 * 
+	 * @param firstId
+	 * @param count
+	 */
+	protected void onSendFailed(long firstId, int count) {
+		Log.w(TAG, "Unable to send " + count + " payloads starting with id " + firstId + ".");
+	}
+
 	/**
 	 * Create a connection to SiteWhere.
 	 */
@@ -121,13 +166,152 @@ public abstract class SiteWhereActivity extends Activity {
 	 * Send command to SiteWhere.
 	 */
 	protected void sendCommand(byte[] payload) throws SiteWhereMessagingException {
+		sendCommand(payload, ISiteWhereMessaging.QOS_EXACTLY_ONCE);
+	}
+
+	/**
+	 * Send command to SiteWhere using the given quality of service.
+	 * 
+	 * @param payload
+	 * @param qos
+	 * @throws SiteWhereMessagingException
+	 */
+	protected void sendCommand(byte[] payload, int qos) throws SiteWhereMessagingException {
 		try {
-			sitewhere.send(payload);
+			if (PayloadPipe.isLarge(payload)) {
+				sendLargeCommand(payload, qos);
+			} else {
+				sitewhere.sendWithQos(payload, qos);
+			}
 		} catch (RemoteException e) {
 			throw new SiteWhereMessagingException("Unable to send command.", e);
 		}
 	}
 
+	/**
+	 * Send a command without waiting for it to be queued by the service.
+	 * 
+	 * @param payload
+	 * @param qos
+	 * @return id reported to {@link #onDelivered(long)} once the payload is delivered
+	 * @throws SiteWhereMessagingException
+	 */
+	protected long sendCommandAsync(byte[] payload, int qos) throws SiteWhereMessagingException {
+		return sendCommandsAsync(new byte[][] { payload }, qos);
+	}
+
+	/**
+	 * Send several commands without waiting for them to be queued by the service. Payloads are packed
+	 * into as few binder transactions as possible and are assigned consecutive ids.
+	 * 
+	 * @param payloads
+	 * @param qos
+	 * @return id of the first payload
+	 * @throws SiteWhereMessagingException
+	 */
+	protected long sendCommandsAsync(byte[][] payloads, int qos) throws SiteWhereMessagingException {
+		for (byte[] payload : payloads) {
+			if (PayloadFrames.getFramedSize(payload) > ISiteWhereMessaging.LARGE_PAYLOAD_THRESHOLD) {
+				throw new SiteWhereMessagingException("Payload too large to send asynchronously.");
+			}
+		}
+		long firstId = nextSendId.getAndAdd(payloads.length);
+		int start = 0;
+		int size = 0;
+		try {
+			for (int i = 0; i < payloads.length; i++) {
+				int framed = PayloadFrames.getFramedSize(payloads[i]);
+				if (size + framed > ISiteWhereMessaging.LARGE_PAYLOAD_THRESHOLD) {
+					sitewhere.sendFramed(responseProcessor, firstId + start, i - start,
+							PayloadFrames.encode(payloads, start, i - start), qos);
+					start = i;
+					size = 0;
+				}
+				size += framed;
+			}
+			if (start < payloads.length) {
+				int count = payloads.length - start;
+				sitewhere.sendFramed(responseProcessor, firstId + start, count,
+						PayloadFrames.encode(payloads, start, count), qos);
+			}
+		} catch (RemoteException e) {
+			throw new SiteWhereMessagingException("Unable to send commands.", e);
+		}
+		return firstId;
+	}
+
+	/**
+	 * Send a command that is too large to pass inline through a pipe.
+	 * 
+	 * @param payload
+	 * @param qos
+	 * @throws SiteWhereMessagingException
+	 * @throws RemoteException
+	 */
+	protected void sendLargeCommand(byte[] payload, int qos) throws SiteWhereMessagingException,
+			RemoteException {
+		ParcelFileDescriptor pipe;
+		try {
+			pipe = PayloadPipe.open(payload);
+		} catch (IOException e) {
+			throw new SiteWhereMessagingException("Unable to open pipe for large command.", e);
+		}
+		try {
+			sitewhere.sendLarge(pipe, payload.length, qos);
+		} finally {
+			try {
+				pipe.close();
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to close pipe for large command.", e);
+			}
+		}
+	}
+
+	/**
+	 * Get a snapshot of counters, queue depths and latency histograms kept by the messaging service.
+	 * 
+	 * @return
+	 * @throws SiteWhereMessagingException
+	 */
+	protected MetricsSnapshot getServiceMetrics() throws SiteWhereMessagingException {
+		try {
+			return sitewhere.getMetrics();
+		} catch (RemoteException e) {
+			throw new SiteWhereMessagingException("Unable to get service metrics.", e);
+		}
+	}
+
+	/**
+	 * Set the level at which the messaging service traces MQTT frames.
+	 * 
+	 * @param level
+	 *            one of the TRACE_* constants in {@link ISiteWhereMessaging}
+	 * @param sampleInterval
+	 *            trace one of every this many frames
+	 * @throws SiteWhereMessagingException
+	 */
+	protected void setFrameTracing(int level, int sampleInterval) throws SiteWhereMessagingException {
+		try {
+			sitewhere.setFrameTracing(level, sampleInterval);
+		} catch (RemoteException e) {
+			throw new SiteWhereMessagingException("Unable to set frame tracing.", e);
+		}
+	}
+
+	/**
+	 * Get the MQTT frames recorded by the messaging service, oldest first.
+	 * 
+	 * @return
+	 * @throws SiteWhereMessagingException
+	 */
+	protected String dumpFrameTrace() throws SiteWhereMessagingException {
+		try {
+			return sitewhere.dumpFrameTrace();
+		} catch (RemoteException e) {
+			throw new SiteWhereMessagingException("Unable to get frame trace.", e);
+		}
+	}
+
 	/**
 	 * Disconnect from the underlying messaging service.
 	 */
@@ -172,7 +356,12 @@ public abstract class SiteWhereActivity extends Activity {
 		public void onServiceConnected(ComponentName className, IBinder service) {
 			sitewhere = IToSiteWhere.Stub.asInterface(service);
 			try {
-				sitewhere.register(responseProcessor);
+				SubscriptionFilter filter = getSubscriptionFilter();
+				if (filter != null) {
+					sitewhere.registerFiltered(responseProcessor, filter);
+				} else {
+					sitewhere.register(responseProcessor);
+				}
 				bound = true;
 				Log.d(TAG, "Registered with SiteWhere messaging service.");
 			} catch (RemoteException e) {
@@ -233,6 +422,60 @@ public abstract class SiteWhereActivity extends Activity {
 			onReceivedSystemCommand(payload);
 		}
 
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.IFromSiteWhere#delivered(long)
+		 */
+		@Override
+		public void delivered(long id) throws RemoteException {
+			onDelivered(id);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.IFromSiteWhere#sendFailed(long, int)
+		 */
+		@Override
+		public void sendFailed(long firstId, int count) throws RemoteException {
+			onSendFailed(firstId, count);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.android.messaging.IFromSiteWhere#receivedLargeSystemCommand(android.os.
+		 * ParcelFileDescriptor, int)
+		 */
+		@Override
+		public void receivedLargeSystemCommand(ParcelFileDescriptor payload, int length)
+				throws RemoteException {
+			try {
+				onReceivedSystemCommand(PayloadPipe.read(payload, length));
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to read large system command.", e);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.android.messaging.IFromSiteWhere#receivedLargeCustomCommand(android.os.
+		 * ParcelFileDescriptor, int)
+		 */
+		@Override
+		public void receivedLargeCustomCommand(ParcelFileDescriptor payload, int length)
+				throws RemoteException {
+			try {
+				onReceivedCustomCommand(PayloadPipe.read(payload, length));
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to read large custom command.", e);
+			}
+		}
+
 		/*
 		 * (non-Javadoc)
 		 * 
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.logging;
+
+/**
+ * Writes log messages to the Android log.
+ * 
+ * @author Derek
+ */
+public class AndroidLogHandler implements ILogHandler {
+
+	/**
+	 * Send messages logged through {@link Log} to the Android log.
+	 */
+	public static void install() {
+		if (!(Log.getHandler() instanceof AndroidLogHandler)) {
+			Log.setHandler(new AndroidLogHandler());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.logging.ILogHandler#log(int, java.lang.String, java.lang.String,
+	 * java.lang.Throwable)
+	 */
+	@Override
+	public void log(int level, String tag, String message, Throwable error) {
+		if (error != null) {
+			message = message + '\n' + android.util.Log.getStackTraceString(error);
+		}
+		android.util.Log.println(level, tag, message);
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.logging;
+
+/**
+ * Receives log messages from {@link Log}.
+ * 
+ * @author Derek
+ */
+public interface ILogHandler {
+
+	/** Level for debug messages */
+	public static final int DEBUG = 3;
+
+	/** Level for informational messages */
+	public static final int INFO = 4;
+
+	/** Level for warnings */
+	public static final int WARN = 5;
+
+	/** Level for errors */
+	public static final int ERROR = 6;
+
+	/**
+	 * Write a log message.
+	 * 
+	 * @param level
+	 *            one of the level constants
+	 * @param tag
+	 *            identifies the source of the message
+	 * @param message
+	 * @param error
+	 *            error to include or null for none
+	 */
+	public void log(int level, String tag, String message, Throwable error);
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.logging;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes log messages to <code>java.util.logging</code> using the tag as the logger name.
+ * 
+ * @author Derek
+ */
+public class JavaLogHandler implements ILogHandler {
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.logging.ILogHandler#log(int, java.lang.String, java.lang.String,
+	 * java.lang.Throwable)
+	 */
+	@Override
+	public void log(int level, String tag, String message, Throwable error) {
+		Logger logger = Logger.getLogger(tag);
+		Level converted = convert(level);
+		if (logger.isLoggable(converted)) {
+			logger.log(converted, message, error);
+		}
+	}
+
+	/**
+	 * Convert a level constant to a <code>java.util.logging</code> level.
+	 * 
+	 * @param level
+	 * @return
+	 */
+	protected static Level convert(int level) {
+		switch (level) {
+		case DEBUG: {
+			return Level.FINE;
+		}
+		case INFO: {
+			return Level.INFO;
+		}
+		case WARN: {
+			return Level.WARNING;
+		}
+		default: {
+			return Level.SEVERE;
+		}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.logging;
+
+/**
+ * Logging used by classes that do not depend on Android, so they can also run on a plain JVM.
+ * Methods match those of <code>android.util.Log</code>. Messages go to the installed
+ * {@link ILogHandler}, which writes to <code>java.util.logging</code> until an Android handler is
+ * installed with {@link #setHandler(ILogHandler)}.
+ * 
+ * @author Derek
+ */
+public class Log {
+
+	/** Handler that receives messages */
+	private static volatile ILogHandler handler = new JavaLogHandler();
+
+	private Log() {
+	}
+
+	public static void d(String tag, String message) {
+		handler.log(ILogHandler.DEBUG, tag, message, null);
+	}
+
+	public static void d(String tag, String message, Throwable error) {
+		handler.log(ILogHandler.DEBUG, tag, message, error);
+	}
+
+	public static void i(String tag, String message) {
+		handler.log(ILogHandler.INFO, tag, message, null);
+	}
+
+	public static void i(String tag, String message, Throwable error) {
+		handler.log(ILogHandler.INFO, tag, message, error);
+	}
+
+	public static void w(String tag, String message) {
+		handler.log(ILogHandler.WARN, tag, message, null);
+	}
+
+	public static void w(String tag, String message, Throwable error) {
+		handler.log(ILogHandler.WARN, tag, message, error);
+	}
+
+	public static void e(String tag, String message) {
+		handler.log(ILogHandler.ERROR, tag, message, null);
+	}
+
+	public static void e(String tag, String message, Throwable error) {
+		handler.log(ILogHandler.ERROR, tag, message, error);
+	}
+
+	public static ILogHandler getHandler() {
+		return handler;
+	}
+
+	public static void setHandler(ILogHandler handler) {
+		Log.handler = handler;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.messaging;
+
+import java.util.Set;
+
+import com.sitewhere.android.protobuf.CommandDictionary;
+
+/**
+ * Decides which commands are routed to a client. Each criterion is either unset, which accepts
+ * everything, or a set of accepted values.
+ * 
+ * @author Derek
+ */
+public interface ICommandFilter {
+
+	/**
+	 * Indicates whether commands for the given hardware id are accepted.
+	 * 
+	 * @param hardwareId
+	 * @return
+	 */
+	public boolean acceptsHardwareId(String hardwareId);
+
+	/**
+	 * Get accepted system command numbers.
+	 * 
+	 * @return accepted numbers or null if all system commands are accepted
+	 */
+	public Set<Integer> getSystemCommands();
+
+	/**
+	 * Get accepted custom command names.
+	 * 
+	 * @return accepted names or null if all custom commands are accepted
+	 */
+	public Set<String> getCustomCommands();
+
+	/**
+	 * Get the dictionary used to name custom commands that SiteWhere sends as dictionary indexes.
+	 * 
+	 * @return dictionary or null if the client does not share one
+	 */
+	public CommandDictionary getCommandDictionary();
+}
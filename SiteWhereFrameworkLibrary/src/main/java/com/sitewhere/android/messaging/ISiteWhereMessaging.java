@@ -27,4 +27,28 @@ public interface ISiteWhereMessaging {
 
 	/** Marker for service to be used for SiteWhere messaging */
 	public static final String MESSAGING_SERVICE = "com.sitewhere.messaging.MESSAGING_SERVICE";
+
+	/** Deliver at most once with no acknowledgement */
+	public static final int QOS_AT_MOST_ONCE = 0;
+
+	/** Deliver at least once, allowing duplicates */
+	public static final int QOS_AT_LEAST_ONCE = 1;
+
+	/** Deliver exactly once */
+	public static final int QOS_EXACTLY_ONCE = 2;
+
+	/** Payloads larger than this many bytes are passed through a pipe rather than inline */
+	public static final int LARGE_PAYLOAD_THRESHOLD = 64 * 1024;
+
+	/** Largest payload that may be passed through a pipe */
+	public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+	/** Do not trace MQTT frames */
+	public static final int TRACE_OFF = 0;
+
+	/** Record sampled MQTT frame headers in the service trace buffer */
+	public static final int TRACE_RECORD = 1;
+
+	/** Record sampled MQTT frame headers and also write them to the log */
+	public static final int TRACE_LOG = 2;
 }
\ No newline at end of file
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.messaging;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Point-in-time copy of the metrics kept by the messaging service. Values are counters and gauges
+ * keyed by name. Histograms hold latencies in microseconds grouped into power-of-two buckets, where
+ * bucket zero holds values below one and bucket n holds values from 2^(n-1) up to 2^n.
+ * 
+ * @author Derek
+ */
+public class MetricsSnapshot {
+
+	/** Time the snapshot was taken in milliseconds since the epoch */
+	private long timestamp;
+
+	/** Counter and gauge values by name */
+	private Map<String, Long> values = new TreeMap<String, Long>();
+
+	/** Latency histograms by name */
+	private Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+
+	public MetricsSnapshot() {
+		this.timestamp = System.currentTimeMillis();
+	}
+
+	public MetricsSnapshot(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Set a counter or gauge value.
+	 * 
+	 * @param name
+	 * @param value
+	 */
+	public void setValue(String name, long value) {
+		values.put(name, value);
+	}
+
+	/**
+	 * Get a counter or gauge value.
+	 * 
+	 * @param name
+	 * @return value or null if not present
+	 */
+	public Long getValue(String name) {
+		return values.get(name);
+	}
+
+	/**
+	 * Set a latency histogram.
+	 * 
+	 * @param name
+	 * @param histogram
+	 */
+	public void setHistogram(String name, Histogram histogram) {
+		histograms.put(name, histogram);
+	}
+
+	/**
+	 * Get a latency histogram.
+	 * 
+	 * @param name
+	 * @return histogram or null if not present
+	 */
+	public Histogram getHistogram(String name) {
+		return histograms.get(name);
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public Map<String, Long> getValues() {
+		return Collections.unmodifiableMap(values);
+	}
+
+	public Map<String, Histogram> getHistograms() {
+		return Collections.unmodifiableMap(histograms);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> entry : values.entrySet()) {
+			sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Copy of a latency histogram. Values are in microseconds.
+	 * 
+	 * @author Derek
+	 */
+	public static class Histogram {
+
+		/** Number of recorded values */
+		private final long count;
+
+		/** Sum of recorded values */
+		private final long sum;
+
+		/** Largest recorded value */
+		private final long max;
+
+		/** Number of values in each power-of-two bucket */
+		private final long[] buckets;
+
+		public Histogram(long count, long sum, long max, long[] buckets) {
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+			this.buckets = buckets;
+		}
+
+		/**
+		 * Get the upper bound of the bucket holding the given percentile. The result is at most
+		 * twice the true value and never more than the largest recorded value.
+		 * 
+		 * @param percentile
+		 *            value between 0 and 100
+		 * @return
+		 */
+		public long getPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(count * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= Math.max(rank, 1)) {
+					return Math.min(getUpperBound(i), max);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Get the largest value counted in a bucket.
+		 * 
+		 * @param bucket
+		 * @return
+		 */
+		public static long getUpperBound(int bucket) {
+			return (bucket >= 63) ? Long.MAX_VALUE : (1L << bucket) - 1;
+		}
+
+		/**
+		 * Get the mean of recorded values.
+		 * 
+		 * @return
+		 */
+		public long getMean() {
+			return (count == 0) ? 0 : sum / count;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getSum() {
+			return sum;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public long[] getBuckets() {
+			return buckets.clone();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "count=%d mean=%dus p50=%dus p99=%dus max=%dus", count,
+					getMean(), getPercentile(50), getPercentile(99), max);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.messaging;
+
+import java.util.Map;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * {@link MetricsSnapshot} that can be passed from the messaging service to its clients.
+ * 
+ * @author Derek
+ */
+public class ParcelableMetricsSnapshot extends MetricsSnapshot implements Parcelable {
+
+	public ParcelableMetricsSnapshot(MetricsSnapshot snapshot) {
+		super(snapshot.getTimestamp());
+		for (Map.Entry<String, Long> entry : snapshot.getValues().entrySet()) {
+			setValue(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, Histogram> entry : snapshot.getHistograms().entrySet()) {
+			setHistogram(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public ParcelableMetricsSnapshot(Parcel parcel) {
+		super(parcel.readLong());
+		int count = parcel.readInt();
+		for (int i = 0; i < count; i++) {
+			setValue(parcel.readString(), parcel.readLong());
+		}
+		count = parcel.readInt();
+		for (int i = 0; i < count; i++) {
+			String name = parcel.readString();
+			setHistogram(name, new Histogram(parcel.readLong(), parcel.readLong(), parcel.readLong(),
+					parcel.createLongArray()));
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.os.Parcelable#describeContents()
+	 */
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.os.Parcelable#writeToParcel(android.os.Parcel, int)
+	 */
+	@Override
+	public void writeToParcel(Parcel parcel, int flags) {
+		parcel.writeLong(getTimestamp());
+		Map<String, Long> values = getValues();
+		parcel.writeInt(values.size());
+		for (Map.Entry<String, Long> entry : values.entrySet()) {
+			parcel.writeString(entry.getKey());
+			parcel.writeLong(entry.getValue());
+		}
+		Map<String, Histogram> histograms = getHistograms();
+		parcel.writeInt(histograms.size());
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			parcel.writeString(entry.getKey());
+			parcel.writeLong(histogram.getCount());
+			parcel.writeLong(histogram.getSum());
+			parcel.writeLong(histogram.getMax());
+			parcel.writeLongArray(histogram.getBuckets());
+		}
+	}
+
+	public static final Parcelable.Creator<ParcelableMetricsSnapshot> CREATOR =
+			new Parcelable.Creator<ParcelableMetricsSnapshot>() {
+				public ParcelableMetricsSnapshot createFromParcel(Parcel in) {
+					return new ParcelableMetricsSnapshot(in);
+				}
+
+				public ParcelableMetricsSnapshot[] newArray(int size) {
+					return new ParcelableMetricsSnapshot[size];
+				}
+			};
+}
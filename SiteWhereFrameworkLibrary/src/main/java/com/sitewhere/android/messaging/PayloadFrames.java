@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.messaging;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs several payloads into a single buffer so they can be passed in one binder transaction. Each
+ * payload is written as a four byte big-endian length followed by the payload bytes.
+ * 
+ * @author Derek
+ */
+public class PayloadFrames {
+
+	/** Size of length prefix for each frame */
+	public static final int FRAME_HEADER_SIZE = 4;
+
+	/**
+	 * Get the framed size of a payload.
+	 * 
+	 * @param payload
+	 * @return
+	 */
+	public static int getFramedSize(byte[] payload) {
+		return FRAME_HEADER_SIZE + payload.length;
+	}
+
+	/**
+	 * Pack a range of payloads into a single buffer.
+	 * 
+	 * @param payloads
+	 * @param offset
+	 * @param count
+	 * @return
+	 */
+	public static byte[] encode(byte[][] payloads, int offset, int count) {
+		int size = 0;
+		for (int i = offset; i < offset + count; i++) {
+			size += getFramedSize(payloads[i]);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (int i = offset; i < offset + count; i++) {
+			buffer.putInt(payloads[i].length);
+			buffer.put(payloads[i]);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Unpack payloads from a buffer created by {@link #encode(byte[][], int, int)}.
+	 * 
+	 * @param frames
+	 * @return
+	 * @throws SiteWhereMessagingException if the buffer is not correctly framed
+	 */
+	public static List<byte[]> decode(byte[] frames) throws SiteWhereMessagingException {
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		ByteBuffer buffer = ByteBuffer.wrap(frames);
+		while (buffer.hasRemaining()) {
+			if (buffer.remaining() < FRAME_HEADER_SIZE) {
+				throw new SiteWhereMessagingException("Truncated frame header.");
+			}
+			int length = buffer.getInt();
+			if ((length < 0) || (length > buffer.remaining())) {
+				throw new SiteWhereMessagingException("Invalid frame length: " + length);
+			}
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			payloads.add(payload);
+		}
+		return payloads;
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.messaging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Moves payloads that are too large to marshal efficiently in a binder transaction through a pipe.
+ * The sender gets the read end of a pipe from {@link #open(byte[])} and passes it across the binder
+ * interface along with the payload length. A background thread writes the payload into the pipe
+ * while the receiver reads it with {@link #read(ParcelFileDescriptor, int)}. Reads never block
+ * waiting for data, so a sender that writes too little or never closes its end can not hold the
+ * receiving binder thread for longer than the read timeout.
+ * 
+ * @author Derek
+ */
+public class PayloadPipe {
+
+	/** Tag for logging */
+	private static final String TAG = "SiteWherePayloadPipe";
+
+	/** Default time allowed for a payload to arrive through a pipe */
+	public static final long DEFAULT_READ_TIMEOUT_MS = 5000;
+
+	/** Time to wait before checking an empty pipe again */
+	private static final long POLL_INTERVAL_MS = 1;
+
+	/** Writes payloads into pipes */
+	private static final ExecutorService WRITERS = Executors.newCachedThreadPool(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "SiteWhere payload writer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Indicates whether a payload should be sent through a pipe rather than inline.
+	 * 
+	 * @param payload
+	 * @return
+	 */
+	public static boolean isLarge(byte[] payload) {
+		return payload.length > ISiteWhereMessaging.LARGE_PAYLOAD_THRESHOLD;
+	}
+
+	/**
+	 * Create a pipe, start writing the payload into it and return the read end. The caller must
+	 * close the returned descriptor once it has been passed to the receiver.
+	 * 
+	 * @param payload
+	 * @return
+	 * @throws IOException
+	 */
+	public static ParcelFileDescriptor open(final byte[] payload) throws IOException {
+		if (payload.length > ISiteWhereMessaging.MAX_PAYLOAD_SIZE) {
+			throw new IOException("Payload of " + payload.length + " bytes exceeds maximum of "
+					+ ISiteWhereMessaging.MAX_PAYLOAD_SIZE + " bytes.");
+		}
+		ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+		final ParcelFileDescriptor sink = pipe[1];
+		WRITERS.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(sink);
+				try {
+					out.write(payload);
+				} catch (IOException e) {
+					Log.w(TAG, "Unable to write payload to pipe.", e);
+				} finally {
+					try {
+						out.close();
+					} catch (IOException e) {
+						Log.w(TAG, "Unable to close payload pipe.", e);
+					}
+				}
+			}
+		});
+		return pipe[0];
+	}
+
+	/**
+	 * Read a payload of the given length from a pipe using the default timeout.
+	 * 
+	 * @param source
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] read(ParcelFileDescriptor source, int length) throws IOException {
+		return read(source, length, DEFAULT_READ_TIMEOUT_MS);
+	}
+
+	/**
+	 * Read a payload of the given length from a pipe and close it. The length comes from the other
+	 * side of the binder interface, so it is checked against the maximum payload size before anything
+	 * is allocated. Only bytes already in the pipe are read, so a pipe that is closed early or that
+	 * never receives the full payload fails once the timeout has passed. Bytes left in the pipe after
+	 * the payload are rejected.
+	 * 
+	 * @param source
+	 * @param length
+	 * @param timeoutMs
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] read(ParcelFileDescriptor source, int length, long timeoutMs) throws IOException {
+		InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(source);
+		try {
+			if ((length < 0) || (length > ISiteWhereMessaging.MAX_PAYLOAD_SIZE)) {
+				throw new IOException("Declared payload length " + length + " is not between 0 and "
+						+ ISiteWhereMessaging.MAX_PAYLOAD_SIZE + " bytes.");
+			}
+			byte[] payload = new byte[length];
+			int offset = 0;
+			long deadline = System.currentTimeMillis() + timeoutMs;
+			while (offset < length) {
+				int available = in.available();
+				if (available > 0) {
+					int read = in.read(payload, offset, Math.min(available, length - offset));
+					if (read < 0) {
+						break;
+					}
+					offset += read;
+				} else if (System.currentTimeMillis() < deadline) {
+					try {
+						Thread.sleep(POLL_INTERVAL_MS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted after " + offset + " of " + length
+								+ " bytes.");
+					}
+				} else {
+					break;
+				}
+			}
+			if (offset < length) {
+				throw new InterruptedIOException("Received " + offset + " of " + length + " bytes in "
+						+ timeoutMs + " ms.");
+			}
+			if (in.available() > 0) {
+				throw new IOException("Pipe holds more than the declared " + length + " bytes.");
+			}
+			return payload;
+		} finally {
+			in.close();
+		}
+	}
+}
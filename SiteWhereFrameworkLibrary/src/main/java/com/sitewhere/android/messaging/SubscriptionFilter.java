@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.messaging;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.sitewhere.android.protobuf.CommandDictionary;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device;
+
+/**
+ * Describes which commands a client wants to receive from the messaging service. Each criterion is
+ * either unset, which accepts everything, or a set of accepted values. A new filter accepts all
+ * commands.
+ * 
+ * @author Derek
+ */
+public class SubscriptionFilter implements ICommandFilter, Parcelable {
+
+	/** Accepted system command numbers or null for all */
+	private Set<Integer> systemCommands;
+
+	/** Accepted custom command names or null for all */
+	private Set<String> customCommands;
+
+	/** Accepted hardware ids or null for all */
+	private Set<String> hardwareIds;
+
+	/** Dictionary that names compact commands sent as indexes or null if none */
+	private CommandDictionary commandDictionary;
+
+	public SubscriptionFilter() {
+	}
+
+	public SubscriptionFilter(Parcel parcel) {
+		int count = parcel.readInt();
+		if (count >= 0) {
+			systemCommands = new HashSet<Integer>();
+			for (int i = 0; i < count; i++) {
+				systemCommands.add(parcel.readInt());
+			}
+		}
+		customCommands = readStrings(parcel);
+		hardwareIds = readStrings(parcel);
+		Set<String> commandNames = readStrings(parcel);
+		if (commandNames != null) {
+			commandDictionary = new CommandDictionary(commandNames);
+		}
+	}
+
+	/**
+	 * Accept the given system command. Once a system command is included, only included system
+	 * commands are accepted.
+	 * 
+	 * @param command
+	 * @return
+	 */
+	public SubscriptionFilter includeSystemCommand(Device.Command command) {
+		if (systemCommands == null) {
+			systemCommands = new HashSet<Integer>();
+		}
+		systemCommands.add(command.getNumber());
+		return this;
+	}
+
+	/**
+	 * Reject all system commands except those explicitly included.
+	 * 
+	 * @return
+	 */
+	public SubscriptionFilter excludeSystemCommands() {
+		if (systemCommands == null) {
+			systemCommands = new HashSet<Integer>();
+		}
+		return this;
+	}
+
+	/**
+	 * Accept custom commands with the given name. Once a custom command is included, only included
+	 * custom commands are accepted.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public SubscriptionFilter includeCustomCommand(String name) {
+		if (customCommands == null) {
+			customCommands = new HashSet<String>();
+		}
+		customCommands.add(name);
+		return this;
+	}
+
+	/**
+	 * Reject all custom commands except those explicitly included.
+	 * 
+	 * @return
+	 */
+	public SubscriptionFilter excludeCustomCommands() {
+		if (customCommands == null) {
+			customCommands = new HashSet<String>();
+		}
+		return this;
+	}
+
+	/**
+	 * Accept commands addressed to the given hardware id. Once a hardware id is included, commands
+	 * for other hardware ids are rejected.
+	 * 
+	 * @param hardwareId
+	 * @return
+	 */
+	public SubscriptionFilter includeHardwareId(String hardwareId) {
+		if (hardwareIds == null) {
+			hardwareIds = new HashSet<String>();
+		}
+		hardwareIds.add(hardwareId);
+		return this;
+	}
+
+	/**
+	 * Share the dictionary the client uses to decode compact custom commands. SiteWhere may send a
+	 * command as an index into this dictionary, and the service needs it to find the command name
+	 * before custom command filters can be applied. Hybrid activities can pass
+	 * {@link com.sitewhere.android.protobuf.SiteWhereHybridProtobufActivity#getCommandDictionary()}.
+	 * 
+	 * @param dictionary
+	 * @return
+	 */
+	public SubscriptionFilter useCommandDictionary(CommandDictionary dictionary) {
+		this.commandDictionary = dictionary;
+		return this;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.messaging.ICommandFilter#acceptsHardwareId(java.lang.String)
+	 */
+	@Override
+	public boolean acceptsHardwareId(String hardwareId) {
+		return (hardwareIds == null) || hardwareIds.contains(hardwareId);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.messaging.ICommandFilter#getSystemCommands()
+	 */
+	@Override
+	public Set<Integer> getSystemCommands() {
+		return (systemCommands == null) ? null : Collections.unmodifiableSet(systemCommands);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.messaging.ICommandFilter#getCustomCommands()
+	 */
+	@Override
+	public Set<String> getCustomCommands() {
+		return (customCommands == null) ? null : Collections.unmodifiableSet(customCommands);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.messaging.ICommandFilter#getCommandDictionary()
+	 */
+	@Override
+	public CommandDictionary getCommandDictionary() {
+		return commandDictionary;
+	}
+
+	/**
+	 * Get accepted hardware ids.
+	 * 
+	 * @return accepted hardware ids or null if all are accepted
+	 */
+	public Set<String> getHardwareIds() {
+		return (hardwareIds == null) ? null : Collections.unmodifiableSet(hardwareIds);
+	}
+
+	/**
+	 * Read a set of strings written by {@link #writeStrings(Parcel, Set)}.
+	 * 
+	 * @param parcel
+	 * @return
+	 */
+	protected static Set<String> readStrings(Parcel parcel) {
+		int count = parcel.readInt();
+		if (count < 0) {
+			return null;
+		}
+		Set<String> values = new HashSet<String>();
+		for (int i = 0; i < count; i++) {
+			values.add(parcel.readString());
+		}
+		return values;
+	}
+
+	/**
+	 * Write a set of strings, using a negative count for null.
+	 * 
+	 * @param parcel
+	 * @param values
+	 */
+	protected static void writeStrings(Parcel parcel, Set<String> values) {
+		if (values == null) {
+			parcel.writeInt(-1);
+			return;
+		}
+		parcel.writeInt(values.size());
+		for (String value : values) {
+			parcel.writeString(value);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.os.Parcelable#describeContents()
+	 */
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see android.os.Parcelable#writeToParcel(android.os.Parcel, int)
+	 */
+	@Override
+	public void writeToParcel(Parcel parcel, int flags) {
+		if (systemCommands == null) {
+			parcel.writeInt(-1);
+		} else {
+			parcel.writeInt(systemCommands.size());
+			for (Integer command : systemCommands) {
+				parcel.writeInt(command);
+			}
+		}
+		writeStrings(parcel, customCommands);
+		writeStrings(parcel, hardwareIds);
+		writeStrings(parcel,
+				(commandDictionary != null) ? new HashSet<String>(commandDictionary.getNames()) : null);
+	}
+
+	public static final Parcelable.Creator<SubscriptionFilter> CREATOR = new Parcelable.Creator<SubscriptionFilter>() {
+		public SubscriptionFilter createFromParcel(Parcel in) {
+			return new SubscriptionFilter(in);
+		}
+
+		public SubscriptionFilter[] newArray(int size) {
+			return new SubscriptionFilter[size];
+		}
+	};
+}
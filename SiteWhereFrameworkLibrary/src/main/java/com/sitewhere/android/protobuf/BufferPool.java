@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of equally sized byte arrays. Arrays are allocated when the pool is empty and returned
+ * arrays are kept up to a fixed number, so a steady producer reuses the same arrays.
+ * 
+ * @author Derek
+ */
+public class BufferPool {
+
+	/** Size of each buffer */
+	private final int bufferSize;
+
+	/** Buffers available for reuse */
+	private final BlockingQueue<byte[]> free;
+
+	public BufferPool(int bufferSize, int maxRetained) {
+		this.bufferSize = bufferSize;
+		this.free = new ArrayBlockingQueue<byte[]>(maxRetained);
+	}
+
+	/**
+	 * Get a buffer from the pool, allocating one if none are available.
+	 * 
+	 * @return
+	 */
+	public byte[] acquire() {
+		byte[] buffer = free.poll();
+		return (buffer != null) ? buffer : new byte[bufferSize];
+	}
+
+	/**
+	 * Return a buffer to the pool. Buffers of the wrong size or beyond the retained count are
+	 * discarded.
+	 * 
+	 * @param buffer
+	 */
+	public void release(byte[] buffer) {
+		if (buffer.length == bufferSize) {
+			free.offer(buffer);
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Command names that compact hybrid payloads may refer to by index rather than by name. Names are
+ * kept in sorted order so a device and SiteWhere that know the same commands build the same
+ * dictionary. The fingerprint is sent with each payload that uses the dictionary so a payload
+ * encoded against a different set of commands is rejected rather than dispatched to the wrong method.
+ * 
+ * @author Derek
+ */
+public class CommandDictionary {
+
+	/** Encoding used for names in the fingerprint */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Command names in sorted order */
+	private final String[] names;
+
+	/** Index of each name */
+	private final Map<String, Integer> indexes;
+
+	/** CRC32 of the names */
+	private final int fingerprint;
+
+	public CommandDictionary(Collection<String> commandNames) {
+		this.names = commandNames.toArray(new String[commandNames.size()]);
+		Arrays.sort(names);
+		this.indexes = new HashMap<String, Integer>(names.length * 2);
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < names.length; i++) {
+			indexes.put(names[i], Integer.valueOf(i));
+			crc.update(names[i].getBytes(UTF8));
+			crc.update(0);
+		}
+		this.fingerprint = (int) crc.getValue();
+	}
+
+	/**
+	 * Get the name at an index.
+	 * 
+	 * @param index
+	 * @return name or null if the index is not in the dictionary
+	 */
+	public String getName(int index) {
+		return ((index >= 0) && (index < names.length)) ? names[index] : null;
+	}
+
+	/**
+	 * Get the index of a name.
+	 * 
+	 * @param name
+	 * @return index or -1 if the name is not in the dictionary
+	 */
+	public int indexOf(String name) {
+		Integer index = indexes.get(name);
+		return (index != null) ? index.intValue() : -1;
+	}
+
+	/**
+	 * Get command names in index order.
+	 * 
+	 * @return
+	 */
+	public List<String> getNames() {
+		return Collections.unmodifiableList(Arrays.asList(names));
+	}
+
+	public int getFingerprint() {
+		return fingerprint;
+	}
+
+	public int size() {
+		return names.length;
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Table of the methods a class exposes as hybrid custom commands. The table is built once per class
+ * and cached, so dispatching a command only matches the decoded parameters against the methods
+ * registered for the command name.
+ * 
+ * Methods annotated with {@link SiteWhereCommand} are registered, including non-public methods
+ * declared by superclasses. A class without annotated methods has all of its public methods
+ * registered so existing command handlers keep working. For each command, a method whose last
+ * parameter is an {@link IDeviceEventOriginator} is preferred over one that does not take the
+ * originator.
+ * 
+ * @author Derek
+ */
+public class CommandDispatchTable {
+
+	/** Tables for classes that have received commands */
+	private static final ConcurrentMap<Class<?>, CommandDispatchTable> TABLES =
+			new ConcurrentHashMap<Class<?>, CommandDispatchTable>();
+
+	/** Class commands are called on */
+	private final Class<?> type;
+
+	/** Candidate methods by command name, preferred methods first */
+	private final Map<String, Handler[]> handlers = new HashMap<String, Handler[]>();
+
+	/** Names of the commands for compact payloads */
+	private final CommandDictionary dictionary;
+
+	protected CommandDispatchTable(Class<?> type) {
+		this.type = type;
+		Map<String, List<Handler>> found = new HashMap<String, List<Handler>>();
+		if (!addAnnotated(type, found)) {
+			addPublic(type, found);
+		}
+		for (Map.Entry<String, List<Handler>> entry : found.entrySet()) {
+			List<Handler> candidates = entry.getValue();
+			List<Handler> ordered = new ArrayList<Handler>(candidates.size());
+			for (Handler handler : candidates) {
+				if (handler.originator) {
+					ordered.add(handler);
+				}
+			}
+			for (Handler handler : candidates) {
+				if (!handler.originator) {
+					ordered.add(handler);
+				}
+			}
+			handlers.put(entry.getKey(), ordered.toArray(new Handler[ordered.size()]));
+		}
+		this.dictionary = new CommandDictionary(handlers.keySet());
+	}
+
+	/**
+	 * Get the dispatch table for a class, building it the first time the class is used.
+	 * 
+	 * @param type
+	 * @return
+	 */
+	public static CommandDispatchTable forClass(Class<?> type) {
+		CommandDispatchTable table = TABLES.get(type);
+		if (table == null) {
+			table = new CommandDispatchTable(type);
+			CommandDispatchTable existing = TABLES.putIfAbsent(type, table);
+			if (existing != null) {
+				table = existing;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Call the method that handles a command on the target.
+	 * 
+	 * @param target
+	 * @param commandName
+	 * @param parameters
+	 * @param originator
+	 * @throws NoSuchMethodException
+	 * @throws IllegalAccessException
+	 * @throws InvocationTargetException
+	 */
+	public void dispatch(Object target, String commandName, Object[] parameters,
+			IDeviceEventOriginator originator) throws NoSuchMethodException, IllegalAccessException,
+			InvocationTargetException {
+		Handler[] candidates = handlers.get(commandName);
+		if (candidates != null) {
+			for (Handler handler : candidates) {
+				if (handler.matches(parameters)) {
+					handler.invoke(target, parameters, originator);
+					return;
+				}
+			}
+		}
+		throw new NoSuchMethodException("No method on " + type.getName() + " handles command '"
+				+ commandName + "' with " + parameters.length + " parameter(s).");
+	}
+
+	/**
+	 * Indicates whether a command is handled by at least one method.
+	 * 
+	 * @param commandName
+	 * @return
+	 */
+	public boolean handles(String commandName) {
+		return handlers.containsKey(commandName);
+	}
+
+	/**
+	 * Get the dictionary of command names. SiteWhere must encode compact payloads with a dictionary
+	 * that has the same fingerprint to refer to commands by index.
+	 * 
+	 * @return
+	 */
+	public CommandDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Register methods annotated with {@link SiteWhereCommand} on the class and its superclasses.
+	 * Methods overridden in a subclass are registered once.
+	 * 
+	 * @param type
+	 * @param found
+	 * @return true if any annotated methods were found
+	 */
+	protected static boolean addAnnotated(Class<?> type, Map<String, List<Handler>> found) {
+		boolean any = false;
+		for (Class<?> current = type; (current != null) && (current != Object.class); current =
+				current.getSuperclass()) {
+			for (Method method : current.getDeclaredMethods()) {
+				SiteWhereCommand annotation = method.getAnnotation(SiteWhereCommand.class);
+				if ((annotation == null) || method.isBridge()) {
+					continue;
+				}
+				String name = (annotation.value().length() > 0) ? annotation.value() : method.getName();
+				method.setAccessible(true);
+				add(name, method, found);
+				any = true;
+			}
+		}
+		return any;
+	}
+
+	/**
+	 * Register all public methods of the class other than those declared by {@link Object}.
+	 * 
+	 * @param type
+	 * @param found
+	 */
+	protected static void addPublic(Class<?> type, Map<String, List<Handler>> found) {
+		for (Method method : type.getMethods()) {
+			if ((method.getDeclaringClass() == Object.class) || method.isBridge()) {
+				continue;
+			}
+			try {
+				method.setAccessible(true);
+			} catch (SecurityException e) {
+				// Access is checked on each call instead.
+			}
+			add(method.getName(), method, found);
+		}
+	}
+
+	/**
+	 * Add a handler unless a method with the same signature was already registered for the command.
+	 * 
+	 * @param name
+	 * @param method
+	 * @param found
+	 */
+	protected static void add(String name, Method method, Map<String, List<Handler>> found) {
+		List<Handler> candidates = found.get(name);
+		if (candidates == null) {
+			candidates = new ArrayList<Handler>();
+			found.put(name, candidates);
+		}
+		Handler handler = new Handler(method);
+		for (Handler existing : candidates) {
+			if (existing.sameSignature(handler)) {
+				return;
+			}
+		}
+		candidates.add(handler);
+	}
+
+	/**
+	 * Method registered for a command.
+	 * 
+	 * @author Derek
+	 */
+	protected static class Handler {
+
+		/** Method called for the command */
+		final Method method;
+
+		/** Types of the command parameters, not including the originator */
+		final Class<?>[] types;
+
+		/** Indicates the method takes the originator as its last parameter */
+		final boolean originator;
+
+		public Handler(Method method) {
+			this.method = method;
+			Class<?>[] all = method.getParameterTypes();
+			this.originator = (all.length > 0) && (all[all.length - 1] == IDeviceEventOriginator.class);
+			if (originator) {
+				this.types = new Class<?>[all.length - 1];
+				System.arraycopy(all, 0, types, 0, types.length);
+			} else {
+				this.types = all;
+			}
+		}
+
+		/**
+		 * Indicates whether the command parameters have exactly the types the method expects. A null
+		 * parameter matches any reference type.
+		 * 
+		 * @param parameters
+		 * @return
+		 */
+		public boolean matches(Object[] parameters) {
+			if (parameters.length != types.length) {
+				return false;
+			}
+			for (int i = 0; i < types.length; i++) {
+				Object parameter = parameters[i];
+				if (parameter == null) {
+					if (types[i].isPrimitive()) {
+						return false;
+					}
+				} else if (parameter.getClass() != types[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Call the method on the target.
+		 * 
+		 * @param target
+		 * @param parameters
+		 * @param eventOriginator
+		 * @throws IllegalAccessException
+		 * @throws InvocationTargetException
+		 */
+		public void invoke(Object target, Object[] parameters, IDeviceEventOriginator eventOriginator)
+				throws IllegalAccessException, InvocationTargetException {
+			if (originator) {
+				Object[] arguments = new Object[parameters.length + 1];
+				System.arraycopy(parameters, 0, arguments, 0, parameters.length);
+				arguments[parameters.length] = eventOriginator;
+				method.invoke(target, arguments);
+			} else {
+				method.invoke(target, parameters);
+			}
+		}
+
+		/**
+		 * Indicates whether another handler is called with the same parameters.
+		 * 
+		 * @param other
+		 * @return
+		 */
+		public boolean sameSignature(Handler other) {
+			return (originator == other.originator) && Arrays.equals(types, other.types);
+		}
+	}
+}
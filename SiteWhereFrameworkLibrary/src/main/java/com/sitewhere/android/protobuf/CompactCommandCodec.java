@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Map;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Compact binary encoding for hybrid custom commands. Unlike Java serialization, payloads carry no
+ * class descriptors and decoding only creates the values it reads, so a payload can not cause
+ * arbitrary classes to be instantiated.
+ * 
+ * A payload starts with {@link #MAGIC} and {@link #VERSION} followed by a flags byte. If
+ * {@link #FLAG_DICTIONARY} is set, the command is given as the fingerprint of a
+ * {@link CommandDictionary} (fixed32) and an index into it (varint). Otherwise the command name is
+ * given as a length-prefixed UTF-8 string. Next comes the number of parameters (varint), each
+ * parameter as a tagged value, and finally the originator event id as a tagged string or null.
+ * 
+ * Tagged values are a type byte followed by the value. Integers use zigzag varints, floating point
+ * values use little-endian fixed widths and strings and arrays are prefixed with their length.
+ * Supported types are the boxed primitives, {@link String}, <code>byte[]</code>,
+ * <code>int[]</code>, <code>long[]</code>, <code>double[]</code> and <code>String[]</code>.
+ * 
+ * @author Derek
+ */
+public class CompactCommandCodec {
+
+	/** First byte of a compact payload. Java serialization streams start with 0xACED */
+	public static final byte MAGIC = (byte) 0xC5;
+
+	/** Format version */
+	public static final byte VERSION = 1;
+
+	/** Flag set when the command is given as a dictionary index */
+	public static final int FLAG_DICTIONARY = 0x01;
+
+	/** Type of a null value */
+	private static final int TYPE_NULL = 0;
+
+	/** Type of a string value */
+	private static final int TYPE_STRING = 1;
+
+	/** Type of an integer value */
+	private static final int TYPE_INTEGER = 2;
+
+	/** Type of a long value */
+	private static final int TYPE_LONG = 3;
+
+	/** Type of a double value */
+	private static final int TYPE_DOUBLE = 4;
+
+	/** Type of a float value */
+	private static final int TYPE_FLOAT = 5;
+
+	/** Type of a boolean value */
+	private static final int TYPE_BOOLEAN = 6;
+
+	/** Type of a short value */
+	private static final int TYPE_SHORT = 7;
+
+	/** Type of a byte value */
+	private static final int TYPE_BYTE = 8;
+
+	/** Type of a character value */
+	private static final int TYPE_CHARACTER = 9;
+
+	/** Type of a byte array */
+	private static final int TYPE_BYTES = 10;
+
+	/** Type of an int array */
+	private static final int TYPE_INTS = 11;
+
+	/** Type of a long array */
+	private static final int TYPE_LONGS = 12;
+
+	/** Type of a double array */
+	private static final int TYPE_DOUBLES = 13;
+
+	/** Type of a string array */
+	private static final int TYPE_STRINGS = 14;
+
+	/**
+	 * Indicates whether a payload uses the compact encoding.
+	 * 
+	 * @param payload
+	 * @return
+	 */
+	public static boolean isCompact(byte[] payload) {
+		return (payload.length > 0) && (payload[0] == MAGIC);
+	}
+
+	/**
+	 * Read the command name from a compact payload without decoding its parameters. A command given
+	 * as a dictionary index is looked up in the dictionary with the fingerprint from the payload.
+	 * 
+	 * @param payload
+	 * @param dictionaries
+	 *            known dictionaries indexed by fingerprint
+	 * @return command name or null if the payload is malformed or refers to an unknown dictionary
+	 */
+	public static String getCommandName(byte[] payload, Map<Integer, CommandDictionary> dictionaries) {
+		CodedInputStream in = CodedInputStream.newInstance(payload);
+		try {
+			if ((in.readRawByte() != MAGIC) || (in.readRawByte() != VERSION)) {
+				return null;
+			}
+			if ((in.readRawByte() & FLAG_DICTIONARY) == 0) {
+				return in.readString();
+			}
+			CommandDictionary dictionary = dictionaries.get(in.readFixed32());
+			int index = in.readRawVarint32();
+			return (dictionary != null) ? dictionary.getName(index) : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Encode a command. The command name is sent as a dictionary index if the dictionary contains it.
+	 * 
+	 * @param command
+	 * @param dictionary
+	 *            dictionary shared with the device or null to always send the name
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if a parameter has a type that can not be encoded
+	 */
+	public static byte[] encode(HybridCommand command, CommandDictionary dictionary) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+		try {
+			out.writeRawByte(MAGIC);
+			out.writeRawByte(VERSION);
+			int index = (dictionary != null) ? dictionary.indexOf(command.getCommandName()) : -1;
+			if (index >= 0) {
+				out.writeRawByte(FLAG_DICTIONARY);
+				out.writeFixed32NoTag(dictionary.getFingerprint());
+				out.writeRawVarint32(index);
+			} else {
+				out.writeRawByte(0);
+				out.writeStringNoTag(command.getCommandName());
+			}
+			Object[] parameters = command.getParameters();
+			out.writeRawVarint32(parameters.length);
+			for (Object parameter : parameters) {
+				writeValue(out, parameter);
+			}
+			IDeviceEventOriginator originator = command.getOriginator();
+			writeValue(out, (originator != null) ? originator.getEventId() : null);
+			out.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to write to memory.", e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode a compact payload.
+	 * 
+	 * @param payload
+	 * @param dictionary
+	 *            dictionary used to resolve command indexes or null if none is shared
+	 * @return
+	 * @throws IOException
+	 *             if the payload is malformed or refers to a different dictionary
+	 */
+	public static HybridCommand decode(byte[] payload, CommandDictionary dictionary) throws IOException {
+		CodedInputStream in = CodedInputStream.newInstance(payload);
+		if (in.readRawByte() != MAGIC) {
+			throw new StreamCorruptedException("Payload is not a compact hybrid command.");
+		}
+		byte version = in.readRawByte();
+		if (version != VERSION) {
+			throw new StreamCorruptedException("Unsupported compact hybrid command version " + version + ".");
+		}
+		int flags = in.readRawByte();
+		String commandName;
+		if ((flags & FLAG_DICTIONARY) != 0) {
+			int fingerprint = in.readFixed32();
+			int index = in.readRawVarint32();
+			if ((dictionary == null) || (dictionary.getFingerprint() != fingerprint)) {
+				throw new StreamCorruptedException("Command was encoded with an unknown dictionary.");
+			}
+			commandName = dictionary.getName(index);
+			if (commandName == null) {
+				throw new StreamCorruptedException("Command index " + index + " is not in the dictionary.");
+			}
+		} else {
+			commandName = in.readString();
+		}
+		Object[] parameters = new Object[readCount(in, payload)];
+		for (int i = 0; i < parameters.length; i++) {
+			parameters[i] = readValue(in, payload);
+		}
+		Object eventId = readValue(in, payload);
+		IDeviceEventOriginator originator = null;
+		if (eventId instanceof String) {
+			originator = new HybridCommand.Originator((String) eventId);
+		} else if (eventId != null) {
+			throw new StreamCorruptedException("Originator event id must be a string.");
+		}
+		return new HybridCommand(commandName, parameters, originator);
+	}
+
+	/**
+	 * Write a tagged value.
+	 * 
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	protected static void writeValue(CodedOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeRawByte(TYPE_NULL);
+		} else if (value instanceof String) {
+			out.writeRawByte(TYPE_STRING);
+			out.writeStringNoTag((String) value);
+		} else if (value instanceof Integer) {
+			out.writeRawByte(TYPE_INTEGER);
+			out.writeSInt32NoTag((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeRawByte(TYPE_LONG);
+			out.writeSInt64NoTag((Long) value);
+		} else if (value instanceof Double) {
+			out.writeRawByte(TYPE_DOUBLE);
+			out.writeDoubleNoTag((Double) value);
+		} else if (value instanceof Float) {
+			out.writeRawByte(TYPE_FLOAT);
+			out.writeFloatNoTag((Float) value);
+		} else if (value instanceof Boolean) {
+			out.writeRawByte(TYPE_BOOLEAN);
+			out.writeBoolNoTag((Boolean) value);
+		} else if (value instanceof Short) {
+			out.writeRawByte(TYPE_SHORT);
+			out.writeSInt32NoTag((Short) value);
+		} else if (value instanceof Byte) {
+			out.writeRawByte(TYPE_BYTE);
+			out.writeRawByte((Byte) value);
+		} else if (value instanceof Character) {
+			out.writeRawByte(TYPE_CHARACTER);
+			out.writeRawVarint32((Character) value);
+		} else if (value instanceof byte[]) {
+			byte[] array = (byte[]) value;
+			out.writeRawByte(TYPE_BYTES);
+			out.writeRawVarint32(array.length);
+			out.writeRawBytes(array);
+		} else if (value instanceof int[]) {
+			int[] array = (int[]) value;
+			out.writeRawByte(TYPE_INTS);
+			out.writeRawVarint32(array.length);
+			for (int element : array) {
+				out.writeSInt32NoTag(element);
+			}
+		} else if (value instanceof long[]) {
+			long[] array = (long[]) value;
+			out.writeRawByte(TYPE_LONGS);
+			out.writeRawVarint32(array.length);
+			for (long element : array) {
+				out.writeSInt64NoTag(element);
+			}
+		} else if (value instanceof double[]) {
+			double[] array = (double[]) value;
+			out.writeRawByte(TYPE_DOUBLES);
+			out.writeRawVarint32(array.length);
+			for (double element : array) {
+				out.writeDoubleNoTag(element);
+			}
+		} else if (value instanceof String[]) {
+			String[] array = (String[]) value;
+			out.writeRawByte(TYPE_STRINGS);
+			out.writeRawVarint32(array.length);
+			for (String element : array) {
+				if (element == null) {
+					throw new IllegalArgumentException("String arrays can not contain null.");
+				}
+				out.writeStringNoTag(element);
+			}
+		} else {
+			throw new IllegalArgumentException("Unable to encode parameter of type "
+					+ value.getClass().getName() + ".");
+		}
+	}
+
+	/**
+	 * Read a tagged value.
+	 * 
+	 * @param in
+	 * @param payload
+	 * @return
+	 * @throws IOException
+	 */
+	protected static Object readValue(CodedInputStream in, byte[] payload) throws IOException {
+		int type = in.readRawByte();
+		switch (type) {
+		case TYPE_NULL:
+			return null;
+		case TYPE_STRING:
+			return in.readString();
+		case TYPE_INTEGER:
+			return Integer.valueOf(in.readSInt32());
+		case TYPE_LONG:
+			return Long.valueOf(in.readSInt64());
+		case TYPE_DOUBLE:
+			return Double.valueOf(in.readDouble());
+		case TYPE_FLOAT:
+			return Float.valueOf(in.readFloat());
+		case TYPE_BOOLEAN:
+			return Boolean.valueOf(in.readBool());
+		case TYPE_SHORT:
+			return Short.valueOf((short) in.readSInt32());
+		case TYPE_BYTE:
+			return Byte.valueOf(in.readRawByte());
+		case TYPE_CHARACTER:
+			return Character.valueOf((char) in.readRawVarint32());
+		case TYPE_BYTES:
+			return in.readRawBytes(readCount(in, payload));
+		case TYPE_INTS: {
+			int[] array = new int[readCount(in, payload)];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = in.readSInt32();
+			}
+			return array;
+		}
+		case TYPE_LONGS: {
+			long[] array = new long[readCount(in, payload)];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = in.readSInt64();
+			}
+			return array;
+		}
+		case TYPE_DOUBLES: {
+			double[] array = new double[readCount(in, payload)];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = in.readDouble();
+			}
+			return array;
+		}
+		case TYPE_STRINGS: {
+			String[] array = new String[readCount(in, payload)];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = in.readString();
+			}
+			return array;
+		}
+		default:
+			throw new StreamCorruptedException("Unknown value type " + type + ".");
+		}
+	}
+
+	/**
+	 * Read the number of elements that follow. Every element takes at least one byte, so a count
+	 * larger than the rest of the payload is rejected before anything is allocated for it.
+	 * 
+	 * @param in
+	 * @param payload
+	 * @return
+	 * @throws IOException
+	 */
+	protected static int readCount(CodedInputStream in, byte[] payload) throws IOException {
+		int count = in.readRawVarint32();
+		if ((count < 0) || (count > payload.length - in.getTotalBytesRead())) {
+			throw new StreamCorruptedException("Invalid element count " + count + ".");
+		}
+		return count;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.sitewhere.android.messaging.ISiteWhereMessaging;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+
+/**
+ * Default {@link IQosPolicy}. High-rate telemetry (locations, measurements and stream data) and
+ * stream data requests are sent at least once. Registrations, acknowledgements, alerts and stream
+ * creation are sent exactly once. Individual commands may be overridden.
+ * 
+ * @author Derek
+ */
+public class DefaultQosPolicy implements IQosPolicy {
+
+	/** Quality of service for each command */
+	private Map<SiteWhere.Command, Integer> levels = new EnumMap<SiteWhere.Command, Integer>(
+			SiteWhere.Command.class);
+
+	public DefaultQosPolicy() {
+		for (SiteWhere.Command command : SiteWhere.Command.values()) {
+			levels.put(command, ISiteWhereMessaging.QOS_EXACTLY_ONCE);
+		}
+		levels.put(SiteWhere.Command.SEND_DEVICE_LOCATION, ISiteWhereMessaging.QOS_AT_LEAST_ONCE);
+		levels.put(SiteWhere.Command.SEND_DEVICE_MEASUREMENTS, ISiteWhereMessaging.QOS_AT_LEAST_ONCE);
+		levels.put(SiteWhere.Command.SEND_DEVICE_STREAM_DATA, ISiteWhereMessaging.QOS_AT_LEAST_ONCE);
+		levels.put(SiteWhere.Command.REQUEST_DEVICE_STREAM_DATA, ISiteWhereMessaging.QOS_AT_LEAST_ONCE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.sitewhere.android.protobuf.IQosPolicy#getQos(com.sitewhere.device.communication.protobuf.proto
+	 * .Sitewhere.SiteWhere.Command)
+	 */
+	@Override
+	public int getQos(SiteWhere.Command command) {
+		return levels.get(command);
+	}
+
+	/**
+	 * Override quality of service for a command.
+	 * 
+	 * @param command
+	 * @param qos
+	 * @return
+	 */
+	public DefaultQosPolicy setQos(SiteWhere.Command command, int qos) {
+		if ((qos < ISiteWhereMessaging.QOS_AT_MOST_ONCE) || (qos > ISiteWhereMessaging.QOS_EXACTLY_ONCE)) {
+			throw new IllegalArgumentException("Invalid quality of service: " + qos);
+		}
+		levels.put(command, qos);
+		return this;
+	}
+}
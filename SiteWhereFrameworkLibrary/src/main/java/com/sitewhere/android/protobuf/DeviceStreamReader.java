@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.messaging.SiteWhereMessagingException;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model.DeviceStreamData;
+
+/**
+ * Reads a device stream by keeping several chunk requests outstanding rather than requesting each
+ * chunk after the previous one arrives. Replies may arrive in any order. They are held in a reorder
+ * buffer and passed to an {@link IDeviceStreamListener} in sequence order.
+ * 
+ * A chunk is missing if SiteWhere replies with no data or does not reply after the request has been
+ * retried. A missing chunk followed by chunks with data is reported as a gap. A missing chunk with no
+ * data after it marks the end of the stream. New requests are held back while the stream appears to
+ * have ended, so reading past the end costs at most one window of requests.
+ * 
+ * @author Derek
+ */
+public class DeviceStreamReader {
+
+	/** Tag for logging */
+	private static final String TAG = "DeviceStreamReader";
+
+	/** Default number of chunk requests outstanding */
+	public static final int DEFAULT_WINDOW_SIZE = 8;
+
+	/** Default time to wait for a reply before requesting a chunk again */
+	public static final long DEFAULT_REQUEST_TIMEOUT_MS = 5 * 1000;
+
+	/** Default number of times a chunk is requested again before it is considered missing */
+	public static final int DEFAULT_MAX_RETRIES = 2;
+
+	/** Stream being read */
+	private final String streamId;
+
+	/** Sends chunk requests */
+	private final IDeviceStreamRequester requester;
+
+	/** Receives chunks in order */
+	private final IDeviceStreamListener listener;
+
+	/** Number of chunk requests outstanding */
+	private final int windowSize;
+
+	/** Time to wait for a reply before requesting a chunk again */
+	private final long requestTimeoutMs;
+
+	/** Number of times a chunk is requested again before it is considered missing */
+	private final int maxRetries;
+
+	/** Outstanding requests indexed by sequence number */
+	private final TreeMap<Long, Request> outstanding = new TreeMap<Long, Request>();
+
+	/** Chunks received ahead of the next one to be delivered */
+	private final TreeMap<Long, DeviceStreamData> reorder = new TreeMap<Long, DeviceStreamData>();
+
+	/** Sequence numbers of missing chunks not yet delivered as gaps */
+	private final TreeSet<Long> missing = new TreeSet<Long>();
+
+	/** Checks for requests that have timed out */
+	private ScheduledExecutorService scheduler;
+
+	/** Sequence number of the next chunk to deliver */
+	private long nextDelivery;
+
+	/** Sequence number of the next chunk to request */
+	private long nextRequest;
+
+	/** Highest sequence number received with data */
+	private long highestData = -1;
+
+	/** Indicates reading has ended */
+	private boolean finished;
+
+	public DeviceStreamReader(String streamId, IDeviceStreamRequester requester,
+			IDeviceStreamListener listener) {
+		this(streamId, requester, listener, DEFAULT_WINDOW_SIZE, DEFAULT_REQUEST_TIMEOUT_MS,
+				DEFAULT_MAX_RETRIES);
+	}
+
+	public DeviceStreamReader(String streamId, IDeviceStreamRequester requester,
+			IDeviceStreamListener listener, int windowSize, long requestTimeoutMs, int maxRetries) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("At least one request must be allowed outstanding.");
+		}
+		this.streamId = streamId;
+		this.requester = requester;
+		this.listener = listener;
+		this.windowSize = windowSize;
+		this.requestTimeoutMs = requestTimeoutMs;
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Start reading at the given sequence number.
+	 * 
+	 * @param sequenceNumber
+	 */
+	public synchronized void start(long sequenceNumber) {
+		if (scheduler != null) {
+			throw new IllegalStateException("Reader has already been started.");
+		}
+		nextDelivery = sequenceNumber;
+		nextRequest = sequenceNumber;
+		long interval = Math.max(requestTimeoutMs / 4, 1);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(new TimeoutChecker(), interval, interval, TimeUnit.MILLISECONDS);
+		fill();
+	}
+
+	/**
+	 * Stop reading without notifying the listener.
+	 */
+	public synchronized void cancel() {
+		finish();
+	}
+
+	/**
+	 * Handle a chunk received from SiteWhere.
+	 * 
+	 * @param chunk
+	 * @return true if the chunk belongs to this reader
+	 */
+	public synchronized boolean received(DeviceStreamData chunk) {
+		if (!streamId.equals(chunk.getStreamId())) {
+			return false;
+		}
+		long sequence = chunk.getSequenceNumber();
+		if (finished || (outstanding.remove(sequence) == null)) {
+			return true;
+		}
+		if (chunk.getData().isEmpty()) {
+			missing.add(sequence);
+		} else {
+			reorder.put(sequence, chunk);
+			highestData = Math.max(highestData, sequence);
+		}
+		drain();
+		fill();
+		return true;
+	}
+
+	/**
+	 * Deliver chunks that are next in sequence, resolving missing chunks as gaps or the end of the
+	 * stream once enough is known.
+	 */
+	protected void drain() {
+		while (!finished) {
+			DeviceStreamData chunk = reorder.remove(nextDelivery);
+			if (chunk != null) {
+				listener.onStreamData(chunk);
+				nextDelivery++;
+			} else if (missing.contains(nextDelivery)) {
+				if (highestData > nextDelivery) {
+					missing.remove(nextDelivery);
+					listener.onStreamGap(nextDelivery);
+					nextDelivery++;
+				} else if (outstanding.isEmpty()) {
+					long end = nextDelivery;
+					finish();
+					listener.onStreamEnd(end);
+				} else {
+					return;
+				}
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Request chunks until the window is full. Requests stop while the highest missing chunk is past
+	 * the highest chunk with data, since that suggests the end of the stream.
+	 */
+	protected void fill() {
+		if (finished || ((!missing.isEmpty()) && (missing.last() > highestData))) {
+			return;
+		}
+		boolean sent = false;
+		while (nextRequest < nextDelivery + windowSize) {
+			Request request = new Request();
+			outstanding.put(nextRequest, request);
+			send(nextRequest, request);
+			nextRequest++;
+			sent = true;
+		}
+		if (sent) {
+			try {
+				requester.flush();
+			} catch (SiteWhereMessagingException e) {
+				Log.w(TAG, "Unable to flush requests for stream " + streamId + ".", e);
+			}
+		}
+	}
+
+	/**
+	 * Send a request for a chunk. Failures are left to the request timeout.
+	 * 
+	 * @param sequence
+	 * @param request
+	 */
+	protected void send(long sequence, Request request) {
+		request.sentAt = System.currentTimeMillis();
+		try {
+			requester.request(sequence);
+		} catch (SiteWhereMessagingException e) {
+			Log.w(TAG, "Unable to request chunk " + sequence + " of stream " + streamId + ".", e);
+		}
+	}
+
+	/**
+	 * Request timed out chunks again, or mark them missing once out of retries.
+	 */
+	protected synchronized void checkTimeouts() {
+		if (finished) {
+			return;
+		}
+		long cutoff = System.currentTimeMillis() - requestTimeoutMs;
+		boolean changed = false;
+		Iterator<Map.Entry<Long, Request>> it = outstanding.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Request> entry = it.next();
+			Request request = entry.getValue();
+			if (request.sentAt > cutoff) {
+				continue;
+			}
+			if (request.retries < maxRetries) {
+				request.retries++;
+				send(entry.getKey(), request);
+			} else {
+				it.remove();
+				missing.add(entry.getKey());
+				changed = true;
+			}
+		}
+		if (changed) {
+			drain();
+			fill();
+		}
+	}
+
+	/**
+	 * Stop the timeout checker and discard state.
+	 */
+	protected void finish() {
+		finished = true;
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		outstanding.clear();
+		reorder.clear();
+		missing.clear();
+		onFinished();
+	}
+
+	/**
+	 * Called once reading has ended or been cancelled.
+	 */
+	protected void onFinished() {
+	}
+
+	public String getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Get the sequence number of the next chunk to be delivered.
+	 * 
+	 * @return
+	 */
+	public synchronized long getNextSequenceNumber() {
+		return nextDelivery;
+	}
+
+	/**
+	 * Indicates whether reading has ended.
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Outstanding chunk request.
+	 * 
+	 * @author Derek
+	 */
+	private static class Request {
+
+		/** Time of the most recent request */
+		private long sentAt;
+
+		/** Number of times the chunk has been requested again */
+		private int retries;
+	}
+
+	/**
+	 * Periodically checks for requests that have timed out.
+	 * 
+	 * @author Derek
+	 */
+	private class TimeoutChecker implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				checkTimeouts();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Unable to check request timeouts for stream " + streamId + ".", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.ByteString;
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.messaging.ISiteWhereMessaging;
+import com.sitewhere.android.messaging.SiteWhereMessagingException;
+
+/**
+ * Writes data to a device stream as a sequence of numbered chunks. Bytes written are copied into
+ * pooled chunk buffers and each full chunk is sent asynchronously. A chunk buffer is kept until the
+ * chunk is reported delivered so it can be sent again if needed, and at most a fixed number of chunks
+ * may be awaiting delivery. Once that window is full, writes block until chunks are delivered.
+ * 
+ * Chunks reported as failed are sent again right away. A chunk that was accepted is held in the
+ * service's durable outbound queue until it is delivered, even across periods offline, so it is never
+ * sent again just because its delivery report is slow. If no delivery report arrives within the
+ * delivery timeout while the writer waits for the window, the write fails.
+ * 
+ * Data is written from a single thread. Delivery reports may arrive on any thread.
+ * 
+ * @author Derek
+ */
+public class DeviceStreamWriter extends OutputStream {
+
+	/** Tag for logging */
+	private static final String TAG = "DeviceStreamWriter";
+
+	/** Default number of data bytes per chunk */
+	public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+	/** Largest chunk size, leaving room for the header and framing within a single transaction */
+	public static final int MAX_CHUNK_SIZE = ISiteWhereMessaging.LARGE_PAYLOAD_THRESHOLD / 2;
+
+	/** Default number of chunks that may await delivery */
+	public static final int DEFAULT_WINDOW_SIZE = 8;
+
+	/** Default time the writer waits for the window without any delivery report before failing */
+	public static final long DEFAULT_DELIVERY_TIMEOUT_MS = 60 * 1000;
+
+	/** Interval at which a waiting writer retries chunks that could not be sent again */
+	private static final long RESEND_INTERVAL_MS = 1000;
+
+	/** Sends encoded chunks */
+	private final IAsyncPayloadSender sender;
+
+	/** Encoded hardware id */
+	private final ByteString hardwareId;
+
+	/** Originator included in chunk headers or null */
+	private final String originator;
+
+	/** Stream id */
+	private final String streamId;
+
+	/** Encoded stream id */
+	private final ByteString streamIdBytes;
+
+	/** Quality of service for chunks */
+	private final int qos;
+
+	/** Number of chunks that may await delivery */
+	private final int windowSize;
+
+	/** Time the writer waits for the window without any delivery report before failing */
+	private final long deliveryTimeoutMs;
+
+	/** Permits for chunks that may be sent */
+	private final Semaphore window;
+
+	/** Chunk buffers */
+	private final BufferPool pool;
+
+	/** Chunks awaiting delivery indexed by send id */
+	private final TreeMap<Long, Chunk> inFlight = new TreeMap<Long, Chunk>();
+
+	/** Failed chunks that could not be sent again, guarded by inFlight */
+	private final List<Chunk> unsent = new ArrayList<Chunk>();
+
+	/** Number of chunks sent again */
+	private final AtomicLong retransmitCount = new AtomicLong();
+
+	/** Time of the most recent delivery report */
+	private volatile long lastDelivery = System.currentTimeMillis();
+
+	/** Chunk being filled */
+	private byte[] current;
+
+	/** Number of bytes in chunk being filled */
+	private int position;
+
+	/** Sequence number of the next chunk */
+	private long nextSequenceNumber;
+
+	/** Indicates writer has been closed */
+	private boolean closed;
+
+	public DeviceStreamWriter(IAsyncPayloadSender sender, String hardwareId, String originator,
+			String streamId, int qos) {
+		this(sender, hardwareId, originator, streamId, qos, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW_SIZE,
+				DEFAULT_DELIVERY_TIMEOUT_MS);
+	}
+
+	public DeviceStreamWriter(IAsyncPayloadSender sender, String hardwareId, String originator,
+			String streamId, int qos, int chunkSize, int windowSize, long deliveryTimeoutMs) {
+		if ((chunkSize < 1) || (chunkSize > MAX_CHUNK_SIZE)) {
+			throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE + ".");
+		}
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("At least one chunk must be allowed in flight.");
+		}
+		this.sender = sender;
+		this.hardwareId = ByteString.copyFromUtf8(hardwareId);
+		this.originator = originator;
+		this.streamId = streamId;
+		this.streamIdBytes = ByteString.copyFromUtf8(streamId);
+		this.qos = qos;
+		this.windowSize = windowSize;
+		this.deliveryTimeoutMs = deliveryTimeoutMs;
+		this.window = new Semaphore(windowSize);
+		this.pool = new BufferPool(chunkSize, windowSize + 1);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.OutputStream#write(int)
+	 */
+	@Override
+	public void write(int value) throws IOException {
+		ensureOpen();
+		if (current == null) {
+			current = pool.acquire();
+		}
+		current[position++] = (byte) value;
+		if (position == current.length) {
+			emit();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		ensureOpen();
+		while (length > 0) {
+			if (current == null) {
+				current = pool.acquire();
+			}
+			int count = Math.min(length, current.length - position);
+			System.arraycopy(data, offset, current, position, count);
+			position += count;
+			offset += count;
+			length -= count;
+			if (position == current.length) {
+				emit();
+			}
+		}
+	}
+
+	/**
+	 * Send the partly filled chunk, if any, without waiting for it to be delivered.
+	 * 
+	 * @see java.io.OutputStream#flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		if (position > 0) {
+			emit();
+		}
+	}
+
+	/**
+	 * Send the partly filled chunk and wait until every chunk has been delivered.
+	 * 
+	 * @see java.io.OutputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+			acquireWindow(windowSize);
+			window.release(windowSize);
+		} finally {
+			closed = true;
+			onClosed();
+		}
+	}
+
+	/**
+	 * Called once the writer has been closed.
+	 */
+	protected void onClosed() {
+	}
+
+	/**
+	 * Report that all payloads sent up to and including the given id have been delivered.
+	 * 
+	 * @param id
+	 */
+	public void delivered(long id) {
+		lastDelivery = System.currentTimeMillis();
+		int count = 0;
+		synchronized (inFlight) {
+			Map<Long, Chunk> done = inFlight.headMap(id, true);
+			for (Chunk chunk : done.values()) {
+				pool.release(chunk.data);
+				count++;
+			}
+			done.clear();
+		}
+		if (count > 0) {
+			window.release(count);
+		}
+	}
+
+	/**
+	 * Report that payloads could not be queued for delivery. Affected chunks are sent again.
+	 * 
+	 * @param firstId
+	 * @param count
+	 */
+	public void failed(long firstId, int count) {
+		List<Chunk> chunks;
+		synchronized (inFlight) {
+			Map<Long, Chunk> range = inFlight.subMap(firstId, firstId + count);
+			chunks = new ArrayList<Chunk>(range.values());
+			range.clear();
+		}
+		for (Chunk chunk : chunks) {
+			resend(chunk);
+		}
+	}
+
+	/**
+	 * Send the current chunk once a window permit is available.
+	 * 
+	 * @throws IOException
+	 */
+	protected void emit() throws IOException {
+		acquireWindow(1);
+		Chunk chunk = new Chunk(nextSequenceNumber, current, position);
+		current = null;
+		position = 0;
+		try {
+			send(chunk);
+		} catch (IOException e) {
+			pool.release(chunk.data);
+			window.release();
+			throw e;
+		}
+		nextSequenceNumber++;
+	}
+
+	/**
+	 * Wait for window permits. The wait fails once the delivery timeout passes with no delivery
+	 * report, so progress on earlier chunks keeps the writer waiting.
+	 * 
+	 * @param permits
+	 * @throws IOException
+	 */
+	protected void acquireWindow(int permits) throws IOException {
+		long waitStart = System.currentTimeMillis();
+		try {
+			while (true) {
+				resendUnsent();
+				long progress = Math.max(waitStart, lastDelivery);
+				long remaining = progress + deliveryTimeoutMs - System.currentTimeMillis();
+				long wait = Math.min(Math.max(remaining, 0), RESEND_INTERVAL_MS);
+				if (window.tryAcquire(permits, wait, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+				if (System.currentTimeMillis() - Math.max(waitStart, lastDelivery) >= deliveryTimeoutMs) {
+					throw new IOException("Timed out waiting for delivery of stream chunks.");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for delivery of stream chunks.");
+		}
+	}
+
+	/**
+	 * Send again chunks that could not be sent when they were reported failed.
+	 */
+	protected void resendUnsent() {
+		List<Chunk> chunks;
+		synchronized (inFlight) {
+			if (unsent.isEmpty()) {
+				return;
+			}
+			chunks = new ArrayList<Chunk>(unsent);
+			unsent.clear();
+		}
+		for (Chunk chunk : chunks) {
+			resend(chunk);
+		}
+	}
+
+	/**
+	 * Send a chunk again after it failed to be queued. If the send fails, the chunk is kept aside
+	 * rather than under its old id, since a later delivery report would otherwise release it, and it
+	 * is retried while the writer waits for the window.
+	 * 
+	 * @param chunk
+	 */
+	protected void resend(Chunk chunk) {
+		retransmitCount.incrementAndGet();
+		try {
+			send(chunk);
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to resend chunk " + chunk.sequenceNumber + " of stream " + streamId + ".", e);
+			synchronized (inFlight) {
+				unsent.add(chunk);
+			}
+		}
+	}
+
+	/**
+	 * Encode and send a chunk, tracking it until it is delivered.
+	 * 
+	 * @param chunk
+	 * @throws IOException
+	 */
+	protected void send(Chunk chunk) throws IOException {
+		byte[] payload = MessageEncoder.get().encodeStreamData(hardwareId, streamIdBytes,
+				chunk.sequenceNumber, chunk.data, 0, chunk.length, originator);
+		synchronized (inFlight) {
+			try {
+				chunk.id = sender.sendAsync(payload, qos);
+			} catch (SiteWhereMessagingException e) {
+				throw new IOException("Unable to send chunk " + chunk.sequenceNumber + " of stream "
+						+ streamId + ".", e);
+			}
+			inFlight.put(chunk.id, chunk);
+		}
+	}
+
+	/**
+	 * Fail if the writer has been closed.
+	 * 
+	 * @throws IOException
+	 */
+	protected void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream writer has been closed.");
+		}
+	}
+
+	public String getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Get the sequence number that will be assigned to the next chunk.
+	 * 
+	 * @return
+	 */
+	public long getNextSequenceNumber() {
+		return nextSequenceNumber;
+	}
+
+	/**
+	 * Get number of chunks awaiting delivery.
+	 * 
+	 * @return
+	 */
+	public int getInFlightCount() {
+		return windowSize - window.availablePermits();
+	}
+
+	/**
+	 * Get number of chunks that have been sent again.
+	 * 
+	 * @return
+	 */
+	public long getRetransmitCount() {
+		return retransmitCount.get();
+	}
+
+	/**
+	 * Chunk that has been sent and is awaiting delivery.
+	 * 
+	 * @author Derek
+	 */
+	private static class Chunk {
+
+		/** Chunk sequence number */
+		private final long sequenceNumber;
+
+		/** Pooled buffer holding chunk data */
+		private final byte[] data;
+
+		/** Number of data bytes */
+		private final int length;
+
+		/** Id returned by the most recent send */
+		private long id;
+
+		public Chunk(long sequenceNumber, byte[] data, int length) {
+			this.sequenceNumber = sequenceNumber;
+			this.data = data;
+			this.length = length;
+		}
+	}
+}
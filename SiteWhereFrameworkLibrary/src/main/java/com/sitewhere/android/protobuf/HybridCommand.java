@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Custom command decoded from a hybrid payload.
+ * 
+ * @author Derek
+ */
+public class HybridCommand {
+
+	/** Name of command */
+	private final String commandName;
+
+	/** Command parameters */
+	private final Object[] parameters;
+
+	/** Originator of the command */
+	private final IDeviceEventOriginator originator;
+
+	public HybridCommand(String commandName, Object[] parameters, IDeviceEventOriginator originator) {
+		this.commandName = commandName;
+		this.parameters = parameters;
+		this.originator = originator;
+	}
+
+	public String getCommandName() {
+		return commandName;
+	}
+
+	public Object[] getParameters() {
+		return parameters;
+	}
+
+	public IDeviceEventOriginator getOriginator() {
+		return originator;
+	}
+
+	/**
+	 * Originator decoded from a compact payload.
+	 * 
+	 * @author Derek
+	 */
+	public static class Originator implements IDeviceEventOriginator {
+
+		/** Serial version UID */
+		private static final long serialVersionUID = 1L;
+
+		/** Id of event that triggered the command */
+		private final String eventId;
+
+		public Originator(String eventId) {
+			this.eventId = eventId;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.spi.device.event.IDeviceEventOriginator#getEventId()
+		 */
+		@Override
+		public String getEventId() {
+			return eventId;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.InvocationTargetException;
+
+import com.sitewhere.spi.device.event.IDeviceEventOriginator;
+
+/**
+ * Decodes hybrid custom commands and calls the matching method on a target object. Payloads that
+ * start with {@link CompactCommandCodec#MAGIC} are decoded with the {@link CompactCommandCodec}.
+ * Payloads in the legacy format hold the serialized command name, an array of parameters and the
+ * event originator. Methods are looked up in the {@link CommandDispatchTable} for the target class.
+ * 
+ * @author Derek
+ */
+public class HybridCommandDecoder {
+
+	/** First byte of a Java serialization stream */
+	private static final byte LEGACY_MAGIC = (byte) 0xAC;
+
+	/**
+	 * Decode a custom command and call the matching method on the target.
+	 * 
+	 * @param target
+	 * @param payload
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws NoSuchMethodException
+	 * @throws IllegalAccessException
+	 * @throws InvocationTargetException
+	 */
+	public static void invoke(Object target, byte[] payload) throws IOException, ClassNotFoundException,
+			NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+		invoke(CommandDispatchTable.forClass(target.getClass()), target, payload, true);
+	}
+
+	/**
+	 * Decode a custom command and call the matching method from the dispatch table on the target.
+	 * 
+	 * @param table
+	 * @param target
+	 * @param payload
+	 * @param allowLegacy
+	 *            indicates whether payloads in the legacy Java serialization format are accepted
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws NoSuchMethodException
+	 * @throws IllegalAccessException
+	 * @throws InvocationTargetException
+	 */
+	public static void invoke(CommandDispatchTable table, Object target, byte[] payload, boolean allowLegacy)
+			throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException,
+			InvocationTargetException {
+		HybridCommand command = decode(payload, table.getDictionary(), allowLegacy);
+		table.dispatch(target, command.getCommandName(), command.getParameters(), command.getOriginator());
+	}
+
+	/**
+	 * Decode a custom command in either format.
+	 * 
+	 * @param payload
+	 * @param dictionary
+	 * @param allowLegacy
+	 * @return
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static HybridCommand decode(byte[] payload, CommandDictionary dictionary, boolean allowLegacy)
+			throws IOException, ClassNotFoundException {
+		if (CompactCommandCodec.isCompact(payload)) {
+			return CompactCommandCodec.decode(payload, dictionary);
+		}
+		if ((payload.length > 0) && (payload[0] == LEGACY_MAGIC)) {
+			if (!allowLegacy) {
+				throw new StreamCorruptedException("Legacy hybrid command format is not accepted.");
+			}
+			return decodeLegacy(payload);
+		}
+		throw new StreamCorruptedException("Unrecognized hybrid command format.");
+	}
+
+	/**
+	 * Decode a custom command encoded with Java serialization.
+	 * 
+	 * @param payload
+	 * @return
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static HybridCommand decodeLegacy(byte[] payload) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+		String commandName = (String) in.readObject();
+		Object[] parameters = (Object[]) in.readObject();
+		IDeviceEventOriginator originator = (IDeviceEventOriginator) in.readObject();
+		return new HybridCommand(commandName, parameters, originator);
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import com.sitewhere.android.messaging.SiteWhereMessagingException;
+
+/**
+ * Delivers encoded payloads to SiteWhere without waiting for them to be queued. Delivery is reported
+ * later using the returned ids.
+ * 
+ * @author Derek
+ */
+public interface IAsyncPayloadSender {
+
+	/**
+	 * Send an encoded payload using the given quality of service.
+	 * 
+	 * @param payload
+	 * @param qos
+	 * @return id reported once the payload has been delivered
+	 * @throws SiteWhereMessagingException
+	 */
+	public long sendAsync(byte[] payload, int qos) throws SiteWhereMessagingException;
+
+	/**
+	 * Send several encoded payloads using the given quality of service. Payloads are passed on in as
+	 * few calls as possible and are assigned consecutive ids.
+	 * 
+	 * @param payloads
+	 * @param qos
+	 * @return id of the first payload
+	 * @throws SiteWhereMessagingException
+	 */
+	public long sendAsync(byte[][] payloads, int qos) throws SiteWhereMessagingException;
+}
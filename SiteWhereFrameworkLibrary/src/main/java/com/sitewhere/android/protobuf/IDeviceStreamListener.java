@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model.DeviceStreamData;
+
+/**
+ * Receives device stream data from a {@link DeviceStreamReader} in sequence order. Methods are called
+ * one at a time and should return quickly.
+ * 
+ * @author Derek
+ */
+public interface IDeviceStreamListener {
+
+	/**
+	 * Called with the next chunk of data.
+	 * 
+	 * @param chunk
+	 */
+	public void onStreamData(DeviceStreamData chunk);
+
+	/**
+	 * Called when a chunk is missing but later chunks exist. Reading continues with the next chunk.
+	 * 
+	 * @param sequenceNumber
+	 */
+	public void onStreamGap(long sequenceNumber);
+
+	/**
+	 * Called when the end of the stream has been reached. No further methods are called.
+	 * 
+	 * @param sequenceNumber
+	 *            sequence number one past the last chunk
+	 */
+	public void onStreamEnd(long sequenceNumber);
+}
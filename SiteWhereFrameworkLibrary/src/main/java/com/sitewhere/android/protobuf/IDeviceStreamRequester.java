@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import com.sitewhere.android.messaging.SiteWhereMessagingException;
+
+/**
+ * Sends requests for chunks of device stream data on behalf of a {@link DeviceStreamReader}.
+ * 
+ * @author Derek
+ */
+public interface IDeviceStreamRequester {
+
+	/**
+	 * Request the chunk with the given sequence number.
+	 * 
+	 * @param sequenceNumber
+	 * @throws SiteWhereMessagingException
+	 */
+	public void request(long sequenceNumber) throws SiteWhereMessagingException;
+
+	/**
+	 * Send any requests that are being held for batching.
+	 * 
+	 * @throws SiteWhereMessagingException
+	 */
+	public void flush() throws SiteWhereMessagingException;
+}
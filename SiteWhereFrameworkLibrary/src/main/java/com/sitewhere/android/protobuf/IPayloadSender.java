@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import com.sitewhere.android.messaging.SiteWhereMessagingException;
+
+/**
+ * Delivers an encoded payload to SiteWhere.
+ * 
+ * @author Derek
+ */
+public interface IPayloadSender {
+
+	/**
+	 * Send an encoded payload using the given quality of service.
+	 * 
+	 * @param payload
+	 * @param qos
+	 * @throws SiteWhereMessagingException
+	 */
+	public void send(byte[] payload, int qos) throws SiteWhereMessagingException;
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+
+/**
+ * Chooses the MQTT quality of service used to deliver each type of outbound SiteWhere message.
+ * Values are the QOS constants defined in {@link com.sitewhere.android.messaging.ISiteWhereMessaging}.
+ * 
+ * @author Derek
+ */
+public interface IQosPolicy {
+
+	/**
+	 * Get quality of service for messages sent with the given command.
+	 * 
+	 * @param command
+	 * @return
+	 */
+	public int getQos(SiteWhere.Command command);
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.messaging.ISiteWhereMessaging;
+import com.sitewhere.android.messaging.PayloadFrames;
+import com.sitewhere.android.messaging.SiteWhereMessagingException;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+
+/**
+ * Accumulates outbound messages and sends them together when a batch reaches a size or count
+ * threshold, or when the oldest message in it has waited for the linger time. A batch is handed to an
+ * {@link IAsyncPayloadSender} in a single call, so it reaches the messaging service in as few binder
+ * transactions as possible. SiteWhere decodes a single header and message from each payload, so every
+ * message in a batch is still published as its own payload, in the order it was added. Messages with
+ * different quality of service are kept in separate batches.
+ * 
+ * Consecutive measurements for the same device, originator and explicit event date are merged into a
+ * single {@link Model.DeviceMeasurements} message as long as their measurement ids are distinct.
+ * Measurements without an event date are never merged, since SiteWhere assigns each one the time it
+ * is received.
+ * 
+ * @author Derek
+ */
+public class MessageBatcher {
+
+	/** Default maximum size of a batch in bytes */
+	public static final int DEFAULT_MAX_BYTES = 16 * 1024;
+
+	/** Default maximum number of events in a batch */
+	public static final int DEFAULT_MAX_COUNT = 64;
+
+	/** Default time a message may wait before its batch is sent */
+	public static final long DEFAULT_LINGER_MS = 250;
+
+	/** Sends messages too large to be passed with others */
+	private final IPayloadSender sender;
+
+	/** Sends completed batches */
+	private final IAsyncPayloadSender asyncSender;
+
+	/** Maximum size of a batch in bytes */
+	private final int maxBytes;
+
+	/** Maximum number of events in a batch */
+	private final int maxCount;
+
+	/** Maximum time a message waits before its batch is sent */
+	private final long lingerMs;
+
+	/** Pending batches indexed by quality of service */
+	private final Batch[] batches = new Batch[ISiteWhereMessaging.QOS_EXACTLY_ONCE + 1];
+
+	/** Sends batches whose linger time has expired */
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	public MessageBatcher(IPayloadSender sender, IAsyncPayloadSender asyncSender) {
+		this(sender, asyncSender, DEFAULT_MAX_BYTES, DEFAULT_MAX_COUNT, DEFAULT_LINGER_MS);
+	}
+
+	public MessageBatcher(IPayloadSender sender, IAsyncPayloadSender asyncSender, int maxBytes, int maxCount,
+			long lingerMs) {
+		this.sender = sender;
+		this.asyncSender = asyncSender;
+		this.maxBytes = maxBytes;
+		this.maxCount = maxCount;
+		this.lingerMs = lingerMs;
+		for (int qos = 0; qos < batches.length; qos++) {
+			batches[qos] = new Batch(qos);
+		}
+	}
+
+	/**
+	 * Add a message to the batch for the given quality of service.
+	 * 
+	 * @param command
+	 * @param message
+	 * @param originator
+	 * @param qos
+	 * @throws SiteWhereMessagingException
+	 */
+	public synchronized void add(SiteWhere.Command command, AbstractMessageLite message, String originator,
+			int qos) throws SiteWhereMessagingException {
+		Batch batch = batches[qos];
+		try {
+			if ((command == SiteWhere.Command.SEND_DEVICE_MEASUREMENTS)
+					&& (message instanceof Model.DeviceMeasurements)
+					&& (isMergeable((Model.DeviceMeasurements) message))) {
+				batch.merge((Model.DeviceMeasurements) message, originator);
+			} else {
+				batch.append(command, message, originator);
+			}
+		} catch (IOException e) {
+			throw new SiteWhereMessagingException("Unable to add message to batch.", e);
+		}
+		if ((batch.count >= maxCount) || (batch.size >= maxBytes)) {
+			send(batch);
+		} else if (batch.linger == null) {
+			batch.linger = scheduler.schedule(new LingerExpired(batch), lingerMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Indicates whether measurements may be merged with others. Only measurements with an explicit
+	 * event date, no metadata and distinct measurement ids are merged.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	protected static boolean isMergeable(Model.DeviceMeasurements message) {
+		if ((!message.hasEventDate()) || (message.getMetadataCount() > 0)) {
+			return false;
+		}
+		Set<String> ids = new HashSet<String>();
+		for (Model.Measurement measurement : message.getMeasurementList()) {
+			if (!ids.add(measurement.getMeasurementId())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Send all pending batches immediately.
+	 * 
+	 * @throws SiteWhereMessagingException
+	 */
+	public synchronized void flush() throws SiteWhereMessagingException {
+		for (Batch batch : batches) {
+			send(batch);
+		}
+	}
+
+	/**
+	 * Send pending batches and stop the linger timer.
+	 * 
+	 * @throws SiteWhereMessagingException
+	 */
+	public synchronized void close() throws SiteWhereMessagingException {
+		try {
+			flush();
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Encode the messages in a batch and send them with a single asynchronous call. A message too large
+	 * to be framed with others is sent on its own, after the messages added before it.
+	 * 
+	 * @param batch
+	 * @throws SiteWhereMessagingException
+	 */
+	protected void send(Batch batch) throws SiteWhereMessagingException {
+		if (batch.linger != null) {
+			batch.linger.cancel(false);
+			batch.linger = null;
+		}
+		if (batch.count == 0) {
+			return;
+		}
+		int count = batch.count;
+		List<byte[]> payloads;
+		try {
+			payloads = batch.drain();
+		} catch (IOException e) {
+			throw new SiteWhereMessagingException("Unable to encode message batch.", e);
+		}
+		int start = 0;
+		for (int i = 0; i < payloads.size(); i++) {
+			byte[] payload = payloads.get(i);
+			if (PayloadFrames.getFramedSize(payload) > ISiteWhereMessaging.LARGE_PAYLOAD_THRESHOLD) {
+				sendAsync(payloads, start, i, batch.qos);
+				sender.send(payload, batch.qos);
+				start = i + 1;
+			}
+		}
+		sendAsync(payloads, start, payloads.size(), batch.qos);
+		Log.d(SiteWhereProtobufClient.TAG, "Sent batch of " + count + " events in " + payloads.size()
+				+ " messages.");
+	}
+
+	/**
+	 * Send a range of encoded payloads with a single asynchronous call.
+	 * 
+	 * @param payloads
+	 * @param start
+	 * @param end
+	 * @param qos
+	 * @throws SiteWhereMessagingException
+	 */
+	protected void sendAsync(List<byte[]> payloads, int start, int end, int qos)
+			throws SiteWhereMessagingException {
+		if (end > start) {
+			asyncSender.sendAsync(payloads.subList(start, end).toArray(new byte[end - start][]), qos);
+		}
+	}
+
+	/**
+	 * Messages waiting to be sent with a given quality of service.
+	 * 
+	 * @author Derek
+	 */
+	private static class Batch {
+
+		/** Quality of service for batch */
+		final int qos;
+
+		/** Pending messages in the order they were added */
+		final List<Entry> entries = new ArrayList<Entry>();
+
+		/** Number of events in batch */
+		int count;
+
+		/** Approximate encoded size of batch */
+		int size;
+
+		/** Pending linger timeout */
+		ScheduledFuture<?> linger;
+
+		Batch(int qos) {
+			this.qos = qos;
+		}
+
+		/**
+		 * Append a message as its own payload.
+		 * 
+		 * @param command
+		 * @param message
+		 * @param originator
+		 * @throws IOException
+		 */
+		void append(SiteWhere.Command command, AbstractMessageLite message, String originator)
+				throws IOException {
+			byte[] encoded = MessageEncoder.get().encode(command, message, originator);
+			entries.add(new Entry(encoded));
+			size += encoded.length;
+			count++;
+		}
+
+		/**
+		 * Merge measurements into the last pending message if it holds measurements for the same
+		 * device, originator and event date with none of the same ids. Otherwise start a new message.
+		 * 
+		 * @param message
+		 * @param originator
+		 */
+		void merge(Model.DeviceMeasurements message, String originator) {
+			String key = message.getHardwareId() + "|" + originator + "|" + message.getEventDate();
+			Entry last = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+			if ((last != null) && (key.equals(last.key)) && (last.accepts(message))) {
+				last.measurements.addAllMeasurement(message.getMeasurementList());
+				for (Model.Measurement measurement : message.getMeasurementList()) {
+					last.ids.add(measurement.getMeasurementId());
+					int added = measurement.getSerializedSize() + 2;
+					last.size += added;
+					size += added;
+				}
+			} else {
+				Entry entry = new Entry(key, originator, message);
+				entries.add(entry);
+				size += entry.size;
+			}
+			count++;
+		}
+
+		/**
+		 * Encode the pending messages in order and reset the batch.
+		 * 
+		 * @return
+		 * @throws IOException
+		 */
+		List<byte[]> drain() throws IOException {
+			List<byte[]> payloads = new ArrayList<byte[]>(entries.size());
+			for (Entry entry : entries) {
+				if (entry.encoded != null) {
+					payloads.add(entry.encoded);
+				} else {
+					payloads.add(MessageEncoder.get().encode(SiteWhere.Command.SEND_DEVICE_MEASUREMENTS,
+							entry.measurements.build(), entry.originator));
+				}
+			}
+			entries.clear();
+			count = 0;
+			size = 0;
+			return payloads;
+		}
+	}
+
+	/**
+	 * A pending message. Either an encoded payload or measurements that may still be merged.
+	 * 
+	 * @author Derek
+	 */
+	private static class Entry {
+
+		/** Encoded payload or null for merged measurements */
+		final byte[] encoded;
+
+		/** Device, originator and event date of merged measurements */
+		final String key;
+
+		/** Originator for merged measurements */
+		final String originator;
+
+		/** Accumulates merged measurements */
+		final Model.DeviceMeasurements.Builder measurements;
+
+		/** Ids of merged measurements */
+		final Set<String> ids;
+
+		/** Approximate encoded size */
+		int size;
+
+		Entry(byte[] encoded) {
+			this.encoded = encoded;
+			this.key = null;
+			this.originator = null;
+			this.measurements = null;
+			this.ids = null;
+			this.size = encoded.length;
+		}
+
+		Entry(String key, String originator, Model.DeviceMeasurements message) {
+			this.encoded = null;
+			this.key = key;
+			this.originator = originator;
+			this.measurements = Model.DeviceMeasurements.newBuilder(message);
+			this.ids = new HashSet<String>();
+			for (Model.Measurement measurement : message.getMeasurementList()) {
+				ids.add(measurement.getMeasurementId());
+			}
+			this.size = message.getSerializedSize();
+		}
+
+		/**
+		 * Indicates whether measurements can be merged without repeating an id.
+		 * 
+		 * @param message
+		 * @return
+		 */
+		boolean accepts(Model.DeviceMeasurements message) {
+			for (Model.Measurement measurement : message.getMeasurementList()) {
+				if (ids.contains(measurement.getMeasurementId())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Sends a batch once its linger time has expired.
+	 * 
+	 * @author Derek
+	 */
+	private class LingerExpired implements Runnable {
+
+		/** Batch to send */
+		private Batch batch;
+
+		public LingerExpired(Batch batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void run() {
+			synchronized (MessageBatcher.this) {
+				batch.linger = null;
+				try {
+					send(batch);
+				} catch (SiteWhereMessagingException e) {
+					Log.e(SiteWhereProtobufClient.TAG, "Unable to send message batch.", e);
+				}
+			}
+		}
+	}
+}
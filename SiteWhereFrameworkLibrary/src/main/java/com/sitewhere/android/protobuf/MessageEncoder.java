@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model.DeviceStreamData;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+
+/**
+ * Encodes header and message frames into a buffer that is reused between calls. Each thread gets
+ * its own encoder from {@link #get()}, so no locking is needed. Delimited headers are cached per
+ * command and originator, so sending the same kind of event repeatedly only encodes the message body.
+ * If encoding fails, the buffer and output stream are replaced so partial output never leaks into the
+ * next frame.
+ * 
+ * @author Derek
+ */
+public class MessageEncoder {
+
+	/** Initial size of the reusable buffer */
+	private static final int INITIAL_BUFFER_SIZE = 512;
+
+	/** Buffers that grow past this size are discarded after use */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+	/** Maximum number of cached headers per command that include an originator */
+	private static final int MAX_CACHED_ORIGINATORS = 16;
+
+	/** Hex digits used for payload dumps */
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/** Encoder used by each thread */
+	private static final ThreadLocal<MessageEncoder> ENCODERS = new ThreadLocal<MessageEncoder>() {
+
+		@Override
+		protected MessageEncoder initialValue() {
+			return new MessageEncoder();
+		}
+	};
+
+	/** Headers without an originator indexed by command */
+	private final Map<SiteWhere.Command, byte[]> headers = new EnumMap<SiteWhere.Command, byte[]>(
+			SiteWhere.Command.class);
+
+	/** Headers with an originator indexed by command, then originator */
+	private final Map<SiteWhere.Command, Map<String, byte[]>> originatorHeaders =
+			new EnumMap<SiteWhere.Command, Map<String, byte[]>>(SiteWhere.Command.class);
+
+	/** Holds encoded frame */
+	private ReusableBuffer buffer;
+
+	/** Writes into buffer */
+	private CodedOutputStream coded;
+
+	private MessageEncoder() {
+		resetBuffer();
+	}
+
+	/**
+	 * Get the encoder for the calling thread.
+	 * 
+	 * @return
+	 */
+	public static MessageEncoder get() {
+		return ENCODERS.get();
+	}
+
+	/**
+	 * Encode a delimited header followed by a delimited message.
+	 * 
+	 * @param command
+	 * @param message
+	 * @param originator
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] encode(SiteWhere.Command command, AbstractMessageLite message, String originator)
+			throws IOException {
+		boolean complete = false;
+		try {
+			writeFrame(command, message, originator);
+			byte[] encoded = buffer.toByteArray();
+			complete = true;
+			return encoded;
+		} finally {
+			finish(complete);
+		}
+	}
+
+	/**
+	 * Encode a device stream data frame with data taken from a region of an array. The message is
+	 * written field by field so the data is not first copied into a {@link ByteString}.
+	 * 
+	 * @param hardwareId
+	 * @param streamId
+	 * @param sequenceNumber
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param originator
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] encodeStreamData(ByteString hardwareId, ByteString streamId, long sequenceNumber,
+			byte[] data, int offset, int length, String originator) throws IOException {
+		boolean complete = false;
+		try {
+			buffer.reset();
+			coded.writeRawBytes(getHeader(SiteWhere.Command.SEND_DEVICE_STREAM_DATA, originator));
+			int size = CodedOutputStream.computeBytesSize(DeviceStreamData.HARDWAREID_FIELD_NUMBER,
+					hardwareId)
+					+ CodedOutputStream.computeBytesSize(DeviceStreamData.STREAMID_FIELD_NUMBER, streamId)
+					+ CodedOutputStream.computeFixed64Size(DeviceStreamData.SEQUENCENUMBER_FIELD_NUMBER,
+							sequenceNumber)
+					+ CodedOutputStream.computeTagSize(DeviceStreamData.DATA_FIELD_NUMBER)
+					+ CodedOutputStream.computeRawVarint32Size(length) + length;
+			coded.writeRawVarint32(size);
+			coded.writeBytes(DeviceStreamData.HARDWAREID_FIELD_NUMBER, hardwareId);
+			coded.writeBytes(DeviceStreamData.STREAMID_FIELD_NUMBER, streamId);
+			coded.writeFixed64(DeviceStreamData.SEQUENCENUMBER_FIELD_NUMBER, sequenceNumber);
+			coded.writeTag(DeviceStreamData.DATA_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+			coded.writeRawVarint32(length);
+			coded.writeRawBytes(data, offset, length);
+			coded.flush();
+			byte[] encoded = buffer.toByteArray();
+			complete = true;
+			return encoded;
+		} finally {
+			finish(complete);
+		}
+	}
+
+	/**
+	 * Write a frame into the reusable buffer. Callers must pass the result to {@link #finish(boolean)}.
+	 * 
+	 * @param command
+	 * @param message
+	 * @param originator
+	 * @throws IOException
+	 */
+	protected void writeFrame(SiteWhere.Command command, AbstractMessageLite message, String originator)
+			throws IOException {
+		buffer.reset();
+		coded.writeRawBytes(getHeader(command, originator));
+		coded.writeRawVarint32(message.getSerializedSize());
+		message.writeTo(coded);
+		coded.flush();
+	}
+
+	/**
+	 * Get the delimited header for a command and originator, encoding it if not cached.
+	 * 
+	 * @param command
+	 * @param originator
+	 * @return
+	 * @throws IOException
+	 */
+	protected byte[] getHeader(SiteWhere.Command command, String originator) throws IOException {
+		if (originator == null) {
+			byte[] header = headers.get(command);
+			if (header == null) {
+				header = encodeHeader(command, null);
+				headers.put(command, header);
+			}
+			return header;
+		}
+		Map<String, byte[]> byOriginator = originatorHeaders.get(command);
+		if (byOriginator == null) {
+			byOriginator = new LinkedHashMap<String, byte[]>(MAX_CACHED_ORIGINATORS, 0.75f, true) {
+
+				/** Serial version UID */
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+					return size() > MAX_CACHED_ORIGINATORS;
+				}
+			};
+			originatorHeaders.put(command, byOriginator);
+		}
+		byte[] header = byOriginator.get(originator);
+		if (header == null) {
+			header = encodeHeader(command, originator);
+			byOriginator.put(originator, header);
+		}
+		return header;
+	}
+
+	/**
+	 * Encode a delimited header.
+	 * 
+	 * @param command
+	 * @param originator
+	 * @return
+	 * @throws IOException
+	 */
+	protected static byte[] encodeHeader(SiteWhere.Command command, String originator) throws IOException {
+		SiteWhere.Header.Builder builder = SiteWhere.Header.newBuilder();
+		builder.setCommand(command);
+		if (originator != null) {
+			builder.setOriginator(originator);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		builder.build().writeDelimitedTo(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Called after each encode. A failed encode may leave bytes in the buffer or unflushed in the
+	 * output stream, so both are replaced. Otherwise the buffer is only dropped if a large frame caused
+	 * it to grow past the retained size.
+	 * 
+	 * @param complete
+	 */
+	protected void finish(boolean complete) {
+		if ((!complete) || (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE)) {
+			resetBuffer();
+		}
+	}
+
+	/**
+	 * Allocate a new buffer and output stream.
+	 */
+	protected void resetBuffer() {
+		buffer = new ReusableBuffer(INITIAL_BUFFER_SIZE);
+		coded = CodedOutputStream.newInstance(buffer, INITIAL_BUFFER_SIZE);
+	}
+
+	/**
+	 * Format a payload as hex for debug logging.
+	 * 
+	 * @param payload
+	 * @return
+	 */
+	public static String toHex(byte[] payload) {
+		StringBuilder hex = new StringBuilder(payload.length * 3);
+		for (byte current : payload) {
+			hex.append(HEX[(current >> 4) & 0x0f]).append(HEX[current & 0x0f]).append(' ');
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Byte array stream that exposes its capacity.
+	 * 
+	 * @author Derek
+	 */
+	private static class ReusableBuffer extends ByteArrayOutputStream {
+
+		public ReusableBuffer(int size) {
+			super(size);
+		}
+
+		public int capacity() {
+			return buf.length;
+		}
+	}
+}
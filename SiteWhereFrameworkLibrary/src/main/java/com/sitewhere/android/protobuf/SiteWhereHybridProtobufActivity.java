@@ -15,27 +15,27 @@
  */
 package com.sitewhere.android.protobuf;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.StreamCorruptedException;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 
 import android.util.Log;
 
-import com.sitewhere.spi.device.event.IDeviceEventOriginator;
-
 /**
  * Extends {@link SiteWhereProtobufActivity} to automatically decode custom commands that were encoded using
  * the hybrid Java format. The hybid format uses protocol buffers for system commands and responses, but
  * encoded custom commands as serialized Java objects so methods can dynamically be called rather than relying
- * on compiled stubs from protocol buffers.
+ * on compiled stubs from protocol buffers. Methods that handle commands should be annotated with
+ * {@link SiteWhereCommand}. Commands encoded with the {@link CompactCommandCodec} are decoded without
+ * Java serialization.
  * 
  * @author Derek
  */
 public abstract class SiteWhereHybridProtobufActivity extends SiteWhereProtobufActivity {
 
+	/** Methods that handle custom commands, shared by all instances of the activity class */
+	private final CommandDispatchTable commands = CommandDispatchTable.forClass(getClass());
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -46,33 +46,7 @@ public abstract class SiteWhereHybridProtobufActivity extends SiteWhereProtobufA
 		super.onReceivedCustomCommand(payload);
 
 		try {
-			ByteArrayInputStream encoded = new ByteArrayInputStream(payload);
-			ObjectInputStream in = new ObjectInputStream(encoded);
-
-			String commandName = (String) in.readObject();
-			Object[] parameters = (Object[]) in.readObject();
-			Object[] parametersWithOriginator = new Object[parameters.length + 1];
-			Class<?>[] types = new Class[parameters.length];
-			Class<?>[] typesWithOriginator = new Class[parameters.length + 1];
-			int i = 0;
-			for (Object parameter : parameters) {
-				types[i] = parameter.getClass();
-				typesWithOriginator[i] = types[i];
-				parametersWithOriginator[i] = parameters[i];
-				i++;
-			}
-			IDeviceEventOriginator originator = (IDeviceEventOriginator) in.readObject();
-			typesWithOriginator[i] = IDeviceEventOriginator.class;
-			parametersWithOriginator[i] = originator;
-
-			Method method = null;
-			try {
-				method = getClass().getMethod(commandName, typesWithOriginator);
-				method.invoke(this, parametersWithOriginator);
-			} catch (NoSuchMethodException e) {
-				method = getClass().getMethod(commandName, types);
-				method.invoke(this, parameters);
-			}
+			HybridCommandDecoder.invoke(commands, this, payload, isLegacyFormatAllowed());
 		} catch (StreamCorruptedException e) {
 			Log.e(TAG, "Unable to decode command in hybrid mode.", e);
 		} catch (IOException e) {
@@ -89,4 +63,23 @@ public abstract class SiteWhereHybridProtobufActivity extends SiteWhereProtobufA
 			Log.e(TAG, "Unable to call method for command.", e);
 		}
 	}
+
+	/**
+	 * Get the dictionary SiteWhere uses to refer to commands by index in compact payloads.
+	 * 
+	 * @return
+	 */
+	public CommandDictionary getCommandDictionary() {
+		return commands.getDictionary();
+	}
+
+	/**
+	 * Indicates whether commands encoded with Java serialization are accepted. Override to return
+	 * false once SiteWhere sends all commands in the compact format.
+	 * 
+	 * @return
+	 */
+	protected boolean isLegacyFormatAllowed() {
+		return true;
+	}
 }
\ No newline at end of file
@@ -15,36 +15,64 @@
  */
 package com.sitewhere.android.protobuf;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 
 import android.util.Log;
 
 import com.google.protobuf.AbstractMessageLite;
-import com.google.protobuf.ByteString;
 import com.sitewhere.android.SiteWhereActivity;
 import com.sitewhere.android.messaging.SiteWhereMessagingException;
-import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAck;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.Header;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.RegistrationAck;
-import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model.DeviceStreamData;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
-import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere.Command;
-import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere.RegisterDevice;
 
 /**
  * Extension of {@link SiteWhereActivity} that adds support for default Google Protocol Buffers interactions
- * with remote SiteWhere instance.
+ * with remote SiteWhere instance. Encoding and decoding is done by a {@link SiteWhereProtobufClient}.
  * 
  * @author Derek
  */
 public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 
 	/** Tag for logging */
-	public static final String TAG = "SiteWhereProtobuf";
+	public static final String TAG = SiteWhereProtobufClient.TAG;
+
+	/** Encodes events and decodes system commands */
+	protected final SiteWhereProtobufClient protobuf = new SiteWhereProtobufClient(new IPayloadSender() {
+
+		@Override
+		public void send(byte[] payload, int qos) throws SiteWhereMessagingException {
+			sendCommand(payload, qos);
+		}
+	}, new IAsyncPayloadSender() {
+
+		@Override
+		public long sendAsync(byte[] payload, int qos) throws SiteWhereMessagingException {
+			return sendCommandAsync(payload, qos);
+		}
+
+		@Override
+		public long sendAsync(byte[][] payloads, int qos) throws SiteWhereMessagingException {
+			return sendCommandsAsync(payloads, qos);
+		}
+	}) {
+
+		@Override
+		public void handleRegistrationAck(Header header, RegistrationAck ack) {
+			SiteWhereProtobufActivity.this.handleRegistrationAck(header, ack);
+		}
+
+		@Override
+		public void handleDeviceStreamAck(Header header, DeviceStreamAck ack) {
+			SiteWhereProtobufActivity.this.handleDeviceStreamAck(header, ack);
+		}
+
+		@Override
+		public void handleReceivedDeviceStreamData(Header header, DeviceStreamData data) {
+			SiteWhereProtobufActivity.this.handleReceivedDeviceStreamData(header, data);
+		}
+	};
 
 	/*
 	 * (non-Javadoc)
@@ -66,7 +94,7 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	public void registerDevice(String hardwareId, String specificationToken, String originator)
 			throws SiteWhereMessagingException {
-		registerDevice(hardwareId, specificationToken, null, originator);
+		protobuf.registerDevice(hardwareId, specificationToken, originator);
 	}
 
 	/**
@@ -80,12 +108,7 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	public void registerDevice(String hardwareId, String specificationToken, String siteToken,
 			String originator) throws SiteWhereMessagingException {
-		RegisterDevice.Builder rb = RegisterDevice.newBuilder();
-		rb.setHardwareId(hardwareId).setSpecificationToken(specificationToken);
-		if (siteToken != null) {
-			rb.setSiteToken(siteToken);
-		}
-		sendMessage(Command.SEND_REGISTRATION, rb.build(), originator, "registration");
+		protobuf.registerDevice(hardwareId, specificationToken, siteToken, originator);
 	}
 
 	/**
@@ -107,9 +130,7 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	public void sendAck(String hardwareId, String originator, String message)
 			throws SiteWhereMessagingException {
-		SiteWhere.Acknowledge.Builder builder = SiteWhere.Acknowledge.newBuilder();
-		SiteWhere.Acknowledge ack = builder.setHardwareId(hardwareId).setMessage(message).build();
-		sendMessage(Command.SEND_ACKNOWLEDGEMENT, ack, originator, "ack");
+		protobuf.sendAck(hardwareId, originator, message);
 	}
 
 	/**
@@ -123,11 +144,7 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	public void sendMeasurement(String hardwareId, String originator, String name, double value)
 			throws SiteWhereMessagingException {
-		Model.DeviceMeasurements.Builder mxsb = Model.DeviceMeasurements.newBuilder();
-		Model.Measurement.Builder mxb = Model.Measurement.newBuilder();
-		mxb.setMeasurementId(name).setMeasurementValue(value);
-		mxsb.setHardwareId(hardwareId).addMeasurement(mxb.build());
-		sendMessage(Command.SEND_DEVICE_MEASUREMENTS, mxsb.build(), originator, "measurement");
+		protobuf.sendMeasurement(hardwareId, originator, name, value);
 	}
 
 	/**
@@ -142,9 +159,7 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	public void sendLocation(String hardwareId, String originator, double latitude, double longitude,
 			double elevation) throws SiteWhereMessagingException {
-		Model.DeviceLocation.Builder lb = Model.DeviceLocation.newBuilder();
-		lb.setHardwareId(hardwareId).setLatitude(latitude).setLongitude(longitude).setElevation(elevation);
-		sendMessage(Command.SEND_DEVICE_LOCATION, lb.build(), originator, "location");
+		protobuf.sendLocation(hardwareId, originator, latitude, longitude, elevation);
 	}
 
 	/**
@@ -158,9 +173,7 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	public void sendAlert(String hardwareId, String originator, String alertType, String message)
 			throws SiteWhereMessagingException {
-		Model.DeviceAlert.Builder ab = Model.DeviceAlert.newBuilder();
-		ab.setHardwareId(hardwareId).setAlertType(alertType).setAlertMessage(message);
-		sendMessage(Command.SEND_DEVICE_ALERT, ab.build(), originator, "alert");
+		protobuf.sendAlert(hardwareId, originator, alertType, message);
 	}
 
 	/**
@@ -174,9 +187,7 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	public void sendDeviceStreamCreate(String hardwareId, String originator, String streamId,
 			String contentType) throws SiteWhereMessagingException {
-		Model.DeviceStream.Builder builder = Model.DeviceStream.newBuilder();
-		builder.setHardwareId(hardwareId).setStreamId(streamId).setContentType(contentType);
-		sendMessage(Command.SEND_DEVICE_STREAM, builder.build(), originator, "device stream");
+		protobuf.sendDeviceStreamCreate(hardwareId, originator, streamId, contentType);
 	}
 
 	/**
@@ -200,10 +211,71 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	public void sendDeviceStreamData(String hardwareId, String originator, String streamId,
 			long sequenceNumber, byte[] data) throws SiteWhereMessagingException {
-		Model.DeviceStreamData.Builder builder = Model.DeviceStreamData.newBuilder();
-		builder.setHardwareId(hardwareId).setStreamId(streamId).setSequenceNumber(sequenceNumber)
-				.setData(ByteString.copyFrom(data));
-		sendMessage(Command.SEND_DEVICE_STREAM_DATA, builder.build(), originator, "device stream data");
+		protobuf.sendDeviceStreamData(hardwareId, originator, streamId, sequenceNumber, data);
+	}
+
+	/**
+	 * Create a device stream and open a writer for its data. The create request is sent ahead of any
+	 * data so it reaches SiteWhere first.
+	 * 
+	 * @param hardwareId
+	 * @param streamId
+	 * @param contentType
+	 * @return
+	 * @throws SiteWhereMessagingException
+	 */
+	public DeviceStreamWriter openDeviceStream(String hardwareId, String streamId, String contentType)
+			throws SiteWhereMessagingException {
+		return protobuf.openDeviceStream(hardwareId, streamId, contentType);
+	}
+
+	/**
+	 * Open a writer for data on an existing device stream using default chunk and window sizes.
+	 * 
+	 * @param hardwareId
+	 * @param streamId
+	 * @return
+	 */
+	public DeviceStreamWriter openDeviceStream(String hardwareId, String streamId) {
+		return protobuf.openDeviceStream(hardwareId, streamId);
+	}
+
+	/**
+	 * Open a writer for data on an existing device stream. Data is sent in chunks of the given size
+	 * and writes block while the given number of chunks are awaiting delivery.
+	 * 
+	 * @param hardwareId
+	 * @param originator
+	 * @param streamId
+	 * @param chunkSize
+	 * @param windowSize
+	 * @return
+	 */
+	public DeviceStreamWriter openDeviceStream(String hardwareId, String originator, String streamId,
+			int chunkSize, int windowSize) {
+		return protobuf.openDeviceStream(hardwareId, originator, streamId, chunkSize, windowSize);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.SiteWhereActivity#onDelivered(long)
+	 */
+	@Override
+	protected void onDelivered(long id) {
+		super.onDelivered(id);
+		protobuf.delivered(id);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.SiteWhereActivity#onSendFailed(long, int)
+	 */
+	@Override
+	protected void onSendFailed(long firstId, int count) {
+		super.onSendFailed(firstId, count);
+		protobuf.failed(firstId, count);
 	}
 
 	/**
@@ -216,9 +288,39 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	public void requestDeviceStreamData(String hardwareId, String streamId, long sequenceNumber)
 			throws SiteWhereMessagingException {
-		SiteWhere.DeviceStreamDataRequest.Builder builder = SiteWhere.DeviceStreamDataRequest.newBuilder();
-		builder.setHardwareId(hardwareId).setStreamId(streamId).setSequenceNumber(sequenceNumber);
-		sendMessage(Command.REQUEST_DEVICE_STREAM_DATA, builder.build(), null, "request device stream data");
+		protobuf.requestDeviceStreamData(hardwareId, streamId, sequenceNumber);
+	}
+
+	/**
+	 * Read a device stream starting at the given sequence number, keeping several chunk requests
+	 * outstanding. Chunks are passed to the listener in order and are not passed to
+	 * {@link #handleReceivedDeviceStreamData(Header, DeviceStreamData)}.
+	 * 
+	 * @param hardwareId
+	 * @param streamId
+	 * @param sequenceNumber
+	 * @param listener
+	 * @return
+	 */
+	public DeviceStreamReader readDeviceStream(String hardwareId, String streamId, long sequenceNumber,
+			IDeviceStreamListener listener) {
+		return protobuf.readDeviceStream(hardwareId, streamId, sequenceNumber, listener);
+	}
+
+	/**
+	 * Read a device stream starting at the given sequence number with the given number of chunk
+	 * requests outstanding.
+	 * 
+	 * @param hardwareId
+	 * @param streamId
+	 * @param sequenceNumber
+	 * @param windowSize
+	 * @param listener
+	 * @return
+	 */
+	public DeviceStreamReader readDeviceStream(final String hardwareId, final String streamId,
+			long sequenceNumber, int windowSize, IDeviceStreamListener listener) {
+		return protobuf.readDeviceStream(hardwareId, streamId, sequenceNumber, windowSize, listener);
 	}
 
 	/**
@@ -241,28 +343,89 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	protected void sendMessage(SiteWhere.Command command, AbstractMessageLite message, String originator,
 			String label) throws SiteWhereMessagingException {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		try {
-			SiteWhere.Header.Builder builder = SiteWhere.Header.newBuilder();
-			builder.setCommand(command);
-			if (originator != null) {
-				builder.setOriginator(originator);
-			}
-			builder.build().writeDelimitedTo(out);
-			message.writeDelimitedTo(out);
-			byte[] encoded = out.toByteArray();
-			StringBuffer hex = new StringBuffer();
-			for (byte current : encoded) {
-				hex.append(String.format("%02X ", current));
-				hex.append(" ");
-			}
-			Log.d(TAG, hex.toString());
-			sendCommand(encoded);
-		} catch (IOException e) {
-			throw new SiteWhereMessagingException("Problem encoding " + label + " message.", e);
-		} catch (Exception e) {
-			throw new SiteWhereMessagingException(e);
-		}
+		protobuf.sendMessage(command, message, originator, label);
+	}
+
+	/**
+	 * Enable batching of outbound messages using default thresholds.
+	 */
+	public void enableBatching() {
+		protobuf.enableBatching();
+	}
+
+	/**
+	 * Enable batching of outbound messages. Messages are held until a batch reaches the given size or
+	 * count, or until the linger time has passed.
+	 * 
+	 * @param maxBytes
+	 * @param maxCount
+	 * @param lingerMs
+	 */
+	public void enableBatching(int maxBytes, int maxCount, long lingerMs) {
+		protobuf.enableBatching(maxBytes, maxCount, lingerMs);
+	}
+
+	/**
+	 * Send any batched messages and send future messages immediately.
+	 */
+	public void disableBatching() {
+		protobuf.disableBatching();
+	}
+
+	/**
+	 * Send any batched messages without waiting for batch thresholds.
+	 * 
+	 * @throws SiteWhereMessagingException
+	 */
+	public void flushMessages() throws SiteWhereMessagingException {
+		protobuf.flushMessages();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.SiteWhereActivity#disconnectFromSiteWhere()
+	 */
+	@Override
+	protected void disconnectFromSiteWhere() {
+		protobuf.flushOnDisconnect();
+		super.disconnectFromSiteWhere();
+	}
+
+	/**
+	 * Indicates whether encoded payloads are logged as hex.
+	 * 
+	 * @return
+	 */
+	public boolean isPayloadDumpEnabled() {
+		return protobuf.isPayloadDumpEnabled();
+	}
+
+	/**
+	 * Enable or disable logging of encoded payloads as hex. Intended for debugging only.
+	 * 
+	 * @param payloadDumpEnabled
+	 */
+	public void setPayloadDumpEnabled(boolean payloadDumpEnabled) {
+		protobuf.setPayloadDumpEnabled(payloadDumpEnabled);
+	}
+
+	/**
+	 * Get policy that chooses quality of service for outbound messages.
+	 * 
+	 * @return
+	 */
+	public IQosPolicy getQosPolicy() {
+		return protobuf.getQosPolicy();
+	}
+
+	/**
+	 * Set policy that chooses quality of service for outbound messages.
+	 * 
+	 * @param qosPolicy
+	 */
+	public void setQosPolicy(IQosPolicy qosPolicy) {
+		protobuf.setQosPolicy(qosPolicy);
 	}
 
 	/*
@@ -272,28 +435,6 @@ public abstract class SiteWhereProtobufActivity extends SiteWhereActivity {
 	 */
 	@Override
 	protected void onReceivedSystemCommand(byte[] payload) {
-		ByteArrayInputStream stream = new ByteArrayInputStream(payload);
-		try {
-			Header header = Device.Header.parseDelimitedFrom(stream);
-			switch (header.getCommand()) {
-			case ACK_REGISTRATION: {
-				RegistrationAck ack = RegistrationAck.parseDelimitedFrom(stream);
-				handleRegistrationAck(header, ack);
-				break;
-			}
-			case ACK_DEVICE_STREAM: {
-				DeviceStreamAck ack = DeviceStreamAck.parseDelimitedFrom(stream);
-				handleDeviceStreamAck(header, ack);
-				break;
-			}
-			case RECEIVE_DEVICE_STREAM_DATA: {
-				DeviceStreamData chunk = DeviceStreamData.parseDelimitedFrom(stream);
-				handleReceivedDeviceStreamData(header, chunk);
-				break;
-			}
-			}
-		} catch (IOException e) {
-			Log.e(TAG, "Unable to process system command.", e);
-		}
+		protobuf.receivedSystemCommand(payload);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.protobuf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.google.protobuf.AbstractMessageLite;
+import com.google.protobuf.ByteString;
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.messaging.SiteWhereMessagingException;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAck;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.Header;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.RegistrationAck;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model.DeviceStreamData;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere.Command;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere.RegisterDevice;
+
+/**
+ * Sends events to SiteWhere and handles system commands using the default Google Protocol Buffers
+ * format. Encoded payloads are passed to an {@link IPayloadSender}, so the client does not depend on
+ * Android and can run on a plain JVM. Handlers for system commands are empty and are meant to be
+ * overridden.
+ * 
+ * @author Derek
+ */
+public class SiteWhereProtobufClient {
+
+	/** Tag for logging */
+	public static final String TAG = "SiteWhereProtobuf";
+
+	/** Sends encoded payloads */
+	private final IPayloadSender sender;
+
+	/** Sends encoded payloads and reports their delivery */
+	private final IAsyncPayloadSender asyncSender;
+
+	/** Chooses quality of service for outbound messages */
+	private IQosPolicy qosPolicy = new DefaultQosPolicy();
+
+	/** Batches outbound messages if batching is enabled */
+	private volatile MessageBatcher batcher;
+
+	/** Indicates whether encoded payloads are logged as hex */
+	private boolean payloadDumpEnabled;
+
+	/** Open device stream writers that receive delivery reports */
+	private final List<DeviceStreamWriter> streamWriters = new CopyOnWriteArrayList<DeviceStreamWriter>();
+
+	/** Active device stream readers that receive stream data */
+	private final List<DeviceStreamReader> streamReaders = new CopyOnWriteArrayList<DeviceStreamReader>();
+
+	/**
+	 * Create a client that sends payloads without tracking delivery. Device stream writers can not be
+	 * opened by such a client.
+	 * 
+	 * @param sender
+	 */
+	public SiteWhereProtobufClient(IPayloadSender sender) {
+		this(sender, null);
+	}
+
+	/**
+	 * Create a client.
+	 * 
+	 * @param sender
+	 *            sends payloads
+	 * @param asyncSender
+	 *            sends payloads written by device stream writers, whose delivery must be reported
+	 *            with {@link #delivered(long)} and {@link #failed(long, int)}
+	 */
+	public SiteWhereProtobufClient(IPayloadSender sender, IAsyncPayloadSender asyncSender) {
+		this.sender = sender;
+		this.asyncSender = asyncSender;
+	}
+
+	/**
+	 * Register a device with SiteWhere.
+	 * 
+	 * @param hardwareId
+	 * @param specificationToken
+	 * @param originator
+	 * @throws SiteWhereMessagingException
+	 */
+	public void registerDevice(String hardwareId, String specificationToken, String originator)
+			throws SiteWhereMessagingException {
+		registerDevice(hardwareId, specificationToken, null, originator);
+	}
+
+	/**
+	 * Register a device with SiteWhere. (Includes token of Site for device)
+	 * 
+	 * @param hardwareId
+	 * @param specificationToken
+	 * @param siteToken
+	 * @param originator
+	 * @throws SiteWhereMessagingException
+	 */
+	public void registerDevice(String hardwareId, String specificationToken, String siteToken,
+			String originator) throws SiteWhereMessagingException {
+		RegisterDevice.Builder rb = RegisterDevice.newBuilder();
+		rb.setHardwareId(hardwareId).setSpecificationToken(specificationToken);
+		if (siteToken != null) {
+			rb.setSiteToken(siteToken);
+		}
+		sendMessage(Command.SEND_REGISTRATION, rb.build(), originator, "registration");
+	}
+
+	/**
+	 * Handle response from registration request.
+	 * 
+	 * @param header
+	 * @param ack
+	 */
+	public void handleRegistrationAck(Header header, RegistrationAck ack) {
+	}
+
+	/**
+	 * Send an acknowledgement event to SiteWhere.
+	 * 
+	 * @param hardwareId
+	 * @param originator
+	 * @param message
+	 * @throws SiteWhereMessagingException
+	 */
+	public void sendAck(String hardwareId, String originator, String message)
+			throws SiteWhereMessagingException {
+		SiteWhere.Acknowledge.Builder builder = SiteWhere.Acknowledge.newBuilder();
+		SiteWhere.Acknowledge ack = builder.setHardwareId(hardwareId).setMessage(message).build();
+		sendMessage(Command.SEND_ACKNOWLEDGEMENT, ack, originator, "ack");
+	}
+
+	/**
+	 * Send a measurement event to SiteWhere.
+	 * 
+	 * @param hardwareId
+	 * @param originator
+	 * @param name
+	 * @param value
+	 * @throws SiteWhereMessagingException
+	 */
+	public void sendMeasurement(String hardwareId, String originator, String name, double value)
+			throws SiteWhereMessagingException {
+		Model.DeviceMeasurements.Builder mxsb = Model.DeviceMeasurements.newBuilder();
+		Model.Measurement.Builder mxb = Model.Measurement.newBuilder();
+		mxb.setMeasurementId(name).setMeasurementValue(value);
+		mxsb.setHardwareId(hardwareId).addMeasurement(mxb.build());
+		sendMessage(Command.SEND_DEVICE_MEASUREMENTS, mxsb.build(), originator, "measurement");
+	}
+
+	/**
+	 * Send a location event to SiteWhere.
+	 * 
+	 * @param hardwareId
+	 * @param originator
+	 * @param latitude
+	 * @param longitude
+	 * @param elevation
+	 * @throws SiteWhereMessagingException
+	 */
+	public void sendLocation(String hardwareId, String originator, double latitude, double longitude,
+			double elevation) throws SiteWhereMessagingException {
+		Model.DeviceLocation.Builder lb = Model.DeviceLocation.newBuilder();
+		lb.setHardwareId(hardwareId).setLatitude(latitude).setLongitude(longitude).setElevation(elevation);
+		sendMessage(Command.SEND_DEVICE_LOCATION, lb.build(), originator, "location");
+	}
+
+	/**
+	 * Send an alert event to SiteWhere.
+	 * 
+	 * @param hardwareId
+	 * @param originator
+	 * @param alertType
+	 * @param message
+	 * @throws SiteWhereMessagingException
+	 */
+	public void sendAlert(String hardwareId, String originator, String alertType, String message)
+			throws SiteWhereMessagingException {
+		Model.DeviceAlert.Builder ab = Model.DeviceAlert.newBuilder();
+		ab.setHardwareId(hardwareId).setAlertType(alertType).setAlertMessage(message);
+		sendMessage(Command.SEND_DEVICE_ALERT, ab.build(), originator, "alert");
+	}
+
+	/**
+	 * Send a device stream create request to SiteWhere.
+	 * 
+	 * @param hardwareId
+	 * @param originator
+	 * @param streamId
+	 * @param contentType
+	 * @throws SiteWhereMessagingException
+	 */
+	public void sendDeviceStreamCreate(String hardwareId, String originator, String streamId,
+			String contentType) throws SiteWhereMessagingException {
+		Model.DeviceStream.Builder builder = Model.DeviceStream.newBuilder();
+		builder.setHardwareId(hardwareId).setStreamId(streamId).setContentType(contentType);
+		sendMessage(Command.SEND_DEVICE_STREAM, builder.build(), originator, "device stream");
+	}
+
+	/**
+	 * Handle response from device stream create request.
+	 * 
+	 * @param header
+	 * @param ack
+	 */
+	public void handleDeviceStreamAck(Header header, DeviceStreamAck ack) {
+	}
+
+	/**
+	 * Send a device stream data request to SiteWhere.
+	 * 
+	 * @param hardwareId
+	 * @param originator
+	 * @param streamId
+	 * @param sequenceNumber
+	 * @param data
+	 * @throws SiteWhereMessagingException
+	 */
+	public void sendDeviceStreamData(String hardwareId, String originator, String streamId,
+			long sequenceNumber, byte[] data) throws SiteWhereMessagingException {
+		Model.DeviceStreamData.Builder builder = Model.DeviceStreamData.newBuilder();
+		builder.setHardwareId(hardwareId).setStreamId(streamId).setSequenceNumber(sequenceNumber)
+				.setData(ByteString.copyFrom(data));
+		sendMessage(Command.SEND_DEVICE_STREAM_DATA, builder.build(), originator, "device stream data");
+	}
+
+	/**
+	 * Create a device stream and open a writer for its data. The create request is sent ahead of any
+	 * data so it reaches SiteWhere first.
+	 * 
+	 * @param hardwareId
+	 * @param streamId
+	 * @param contentType
+	 * @return
+	 * @throws SiteWhereMessagingException
+	 */
+	public DeviceStreamWriter openDeviceStream(String hardwareId, String streamId, String contentType)
+			throws SiteWhereMessagingException {
+		sendDeviceStreamCreate(hardwareId, null, streamId, contentType);
+		flushMessages();
+		return openDeviceStream(hardwareId, streamId);
+	}
+
+	/**
+	 * Open a writer for data on an existing device stream using default chunk and window sizes.
+	 * 
+	 * @param hardwareId
+	 * @param streamId
+	 * @return
+	 */
+	public DeviceStreamWriter openDeviceStream(String hardwareId, String streamId) {
+		return openDeviceStream(hardwareId, null, streamId, DeviceStreamWriter.DEFAULT_CHUNK_SIZE,
+				DeviceStreamWriter.DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Open a writer for data on an existing device stream. Data is sent in chunks of the given size
+	 * and writes block while the given number of chunks are awaiting delivery.
+	 * 
+	 * @param hardwareId
+	 * @param originator
+	 * @param streamId
+	 * @param chunkSize
+	 * @param windowSize
+	 * @return
+	 */
+	public DeviceStreamWriter openDeviceStream(String hardwareId, String originator, String streamId,
+			int chunkSize, int windowSize) {
+		if (asyncSender == null) {
+			throw new IllegalStateException("Device streams require a sender that reports delivery.");
+		}
+		DeviceStreamWriter writer = new DeviceStreamWriter(asyncSender, hardwareId, originator, streamId,
+				getQosPolicy().getQos(Command.SEND_DEVICE_STREAM_DATA), chunkSize, windowSize,
+				DeviceStreamWriter.DEFAULT_DELIVERY_TIMEOUT_MS) {
+
+			@Override
+			protected void onClosed() {
+				streamWriters.remove(this);
+			}
+		};
+		streamWriters.add(writer);
+		return writer;
+	}
+
+	/**
+	 * Report delivery of all payloads sent asynchronously up to and including the given id.
+	 * 
+	 * @param id
+	 */
+	public void delivered(long id) {
+		for (DeviceStreamWriter writer : streamWriters) {
+			writer.delivered(id);
+		}
+	}
+
+	/**
+	 * Report that payloads sent asynchronously could not be queued for delivery.
+	 * 
+	 * @param firstId
+	 * @param count
+	 */
+	public void failed(long firstId, int count) {
+		for (DeviceStreamWriter writer : streamWriters) {
+			writer.failed(firstId, count);
+		}
+	}
+
+	/**
+	 * Send request for a chunk of device stream data.
+	 * 
+	 * @param hardwareId
+	 * @param streamId
+	 * @param sequenceNumber
+	 * @throws SiteWhereMessagingException
+	 */
+	public void requestDeviceStreamData(String hardwareId, String streamId, long sequenceNumber)
+			throws SiteWhereMessagingException {
+		SiteWhere.DeviceStreamDataRequest.Builder builder = SiteWhere.DeviceStreamDataRequest.newBuilder();
+		builder.setHardwareId(hardwareId).setStreamId(streamId).setSequenceNumber(sequenceNumber);
+		sendMessage(Command.REQUEST_DEVICE_STREAM_DATA, builder.build(), null, "request device stream data");
+	}
+
+	/**
+	 * Read a device stream starting at the given sequence number, keeping several chunk requests
+	 * outstanding. Chunks are passed to the listener in order and are not passed to
+	 * {@link #handleReceivedDeviceStreamData(Header, DeviceStreamData)}.
+	 * 
+	 * @param hardwareId
+	 * @param streamId
+	 * @param sequenceNumber
+	 * @param listener
+	 * @return
+	 */
+	public DeviceStreamReader readDeviceStream(String hardwareId, String streamId, long sequenceNumber,
+			IDeviceStreamListener listener) {
+		return readDeviceStream(hardwareId, streamId, sequenceNumber, DeviceStreamReader.DEFAULT_WINDOW_SIZE,
+				listener);
+	}
+
+	/**
+	 * Read a device stream starting at the given sequence number with the given number of chunk
+	 * requests outstanding.
+	 * 
+	 * @param hardwareId
+	 * @param streamId
+	 * @param sequenceNumber
+	 * @param windowSize
+	 * @param listener
+	 * @return
+	 */
+	public DeviceStreamReader readDeviceStream(final String hardwareId, final String streamId,
+			long sequenceNumber, int windowSize, IDeviceStreamListener listener) {
+		IDeviceStreamRequester requester = new IDeviceStreamRequester() {
+
+			@Override
+			public void request(long sequenceNumber) throws SiteWhereMessagingException {
+				requestDeviceStreamData(hardwareId, streamId, sequenceNumber);
+			}
+
+			@Override
+			public void flush() throws SiteWhereMessagingException {
+				flushMessages();
+			}
+		};
+		DeviceStreamReader reader = new DeviceStreamReader(streamId, requester, listener, windowSize,
+				DeviceStreamReader.DEFAULT_REQUEST_TIMEOUT_MS, DeviceStreamReader.DEFAULT_MAX_RETRIES) {
+
+			@Override
+			protected void onFinished() {
+				streamReaders.remove(this);
+			}
+		};
+		streamReaders.add(reader);
+		reader.start(sequenceNumber);
+		return reader;
+	}
+
+	/**
+	 * Handle device stream data being streamed from SiteWhere.
+	 * 
+	 * @param header
+	 * @param data
+	 */
+	public void handleReceivedDeviceStreamData(Header header, DeviceStreamData data) {
+	}
+
+	/**
+	 * Build message from header and message, then send it to the underlying delivery mechanism.
+	 * 
+	 * @param command
+	 * @param message
+	 * @param originator
+	 * @param label
+	 * @throws SiteWhereMessagingException
+	 */
+	public void sendMessage(SiteWhere.Command command, AbstractMessageLite message, String originator,
+			String label) throws SiteWhereMessagingException {
+		MessageBatcher active = batcher;
+		if (active != null) {
+			active.add(command, message, originator, getQosPolicy().getQos(command));
+			return;
+		}
+		try {
+			byte[] encoded = MessageEncoder.get().encode(command, message, originator);
+			if (payloadDumpEnabled) {
+				Log.d(TAG, MessageEncoder.toHex(encoded));
+			}
+			sender.send(encoded, getQosPolicy().getQos(command));
+		} catch (IOException e) {
+			throw new SiteWhereMessagingException("Problem encoding " + label + " message.", e);
+		} catch (Exception e) {
+			throw new SiteWhereMessagingException(e);
+		}
+	}
+
+	/**
+	 * Enable batching of outbound messages using default thresholds.
+	 */
+	public void enableBatching() {
+		enableBatching(MessageBatcher.DEFAULT_MAX_BYTES, MessageBatcher.DEFAULT_MAX_COUNT,
+				MessageBatcher.DEFAULT_LINGER_MS);
+	}
+
+	/**
+	 * Enable batching of outbound messages. Messages are held until a batch reaches the given size or
+	 * count, or until the linger time has passed. Batches are passed on with the asynchronous
+	 * sender, so the client must have been created with one.
+	 * 
+	 * @param maxBytes
+	 * @param maxCount
+	 * @param lingerMs
+	 */
+	public void enableBatching(int maxBytes, int maxCount, long lingerMs) {
+		if (asyncSender == null) {
+			throw new IllegalStateException("Batching requires a sender that reports delivery.");
+		}
+		disableBatching();
+		batcher = new MessageBatcher(sender, asyncSender, maxBytes, maxCount, lingerMs);
+	}
+
+	/**
+	 * Send any batched messages and send future messages immediately.
+	 */
+	public void disableBatching() {
+		MessageBatcher current = batcher;
+		batcher = null;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (SiteWhereMessagingException e) {
+				Log.e(TAG, "Unable to send batched messages.", e);
+			}
+		}
+	}
+
+	/**
+	 * Send any batched messages without waiting for batch thresholds.
+	 * 
+	 * @throws SiteWhereMessagingException
+	 */
+	public void flushMessages() throws SiteWhereMessagingException {
+		MessageBatcher current = batcher;
+		if (current != null) {
+			current.flush();
+		}
+	}
+
+	/**
+	 * Send any batched messages before the connection is closed.
+	 */
+	public void flushOnDisconnect() {
+		MessageBatcher current = batcher;
+		if (current != null) {
+			try {
+				current.flush();
+			} catch (SiteWhereMessagingException e) {
+				Log.e(TAG, "Unable to send batched messages.", e);
+			}
+		}
+	}
+
+	/**
+	 * Indicates whether encoded payloads are logged as hex.
+	 * 
+	 * @return
+	 */
+	public boolean isPayloadDumpEnabled() {
+		return payloadDumpEnabled;
+	}
+
+	/**
+	 * Enable or disable logging of encoded payloads as hex. Intended for debugging only.
+	 * 
+	 * @param payloadDumpEnabled
+	 */
+	public void setPayloadDumpEnabled(boolean payloadDumpEnabled) {
+		this.payloadDumpEnabled = payloadDumpEnabled;
+	}
+
+	/**
+	 * Get policy that chooses quality of service for outbound messages.
+	 * 
+	 * @return
+	 */
+	public IQosPolicy getQosPolicy() {
+		return qosPolicy;
+	}
+
+	/**
+	 * Set policy that chooses quality of service for outbound messages.
+	 * 
+	 * @param qosPolicy
+	 */
+	public void setQosPolicy(IQosPolicy qosPolicy) {
+		this.qosPolicy = qosPolicy;
+	}
+
+	/**
+	 * Decode a system command payload and pass it to its handler.
+	 * 
+	 * @param payload
+	 */
+	public void receivedSystemCommand(byte[] payload) {
+		ByteArrayInputStream stream = new ByteArrayInputStream(payload);
+		try {
+			Header header = Device.Header.parseDelimitedFrom(stream);
+			switch (header.getCommand()) {
+			case ACK_REGISTRATION: {
+				RegistrationAck ack = RegistrationAck.parseDelimitedFrom(stream);
+				handleRegistrationAck(header, ack);
+				break;
+			}
+			case ACK_DEVICE_STREAM: {
+				DeviceStreamAck ack = DeviceStreamAck.parseDelimitedFrom(stream);
+				handleDeviceStreamAck(header, ack);
+				break;
+			}
+			case RECEIVE_DEVICE_STREAM_DATA: {
+				DeviceStreamData chunk = DeviceStreamData.parseDelimitedFrom(stream);
+				boolean consumed = false;
+				for (DeviceStreamReader reader : streamReaders) {
+					consumed |= reader.received(chunk);
+				}
+				if (!consumed) {
+					handleReceivedDeviceStreamData(header, chunk);
+				}
+				break;
+			}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to process system command.", e);
+		}
+	}
+}
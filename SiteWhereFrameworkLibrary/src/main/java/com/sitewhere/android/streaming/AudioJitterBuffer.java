@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jitter buffer for PCM audio passed from a network thread to a playback thread. Capacity and the
+ * start watermark are given in milliseconds of audio. Playback does not start until the watermark
+ * is reached. Once it runs dry the buffer goes back to buffering until the watermark is reached
+ * again. Storage is a {@link ByteRingBuffer}, so one thread must write and one thread must read.
+ * 
+ * @author Derek
+ */
+public class AudioJitterBuffer {
+
+	/** Interval at which a waiting reader checks for a finished stream */
+	private static final long WAIT_INTERVAL_MS = 100;
+
+	/** Ring holding buffered audio */
+	private final ByteRingBuffer ring;
+
+	/** Sample rate in Hz */
+	private final int sampleRate;
+
+	/** Bytes in one frame (one sample for every channel) */
+	private final int frameSize;
+
+	/** Bytes that must be buffered before playback starts */
+	private final int startWatermark;
+
+	/** Indicates reader is waiting for the start watermark */
+	private volatile boolean buffering = true;
+
+	/** Indicates no more audio will be written */
+	private volatile boolean finished;
+
+	/** Number of times the reader found the buffer empty while playing */
+	private volatile long underrunCount;
+
+	/** Number of writes that did not fit in the buffer */
+	private volatile long overrunCount;
+
+	/** Number of bytes dropped by overruns */
+	private volatile long droppedBytes;
+
+	/**
+	 * Create a jitter buffer for the given audio format.
+	 * 
+	 * @param sampleRate
+	 *            sample rate in Hz
+	 * @param channels
+	 *            number of channels
+	 * @param bytesPerSample
+	 *            bytes in one sample for one channel
+	 * @param capacityMs
+	 *            milliseconds of audio the buffer can hold
+	 * @param startWatermarkMs
+	 *            milliseconds of audio buffered before playback starts
+	 */
+	public AudioJitterBuffer(int sampleRate, int channels, int bytesPerSample, int capacityMs,
+			int startWatermarkMs) {
+		if (startWatermarkMs > capacityMs) {
+			throw new IllegalArgumentException("Start watermark can not be larger than capacity.");
+		}
+		this.sampleRate = sampleRate;
+		this.frameSize = channels * bytesPerSample;
+		this.startWatermark = Math.max(frameSize, toBytes(startWatermarkMs));
+		this.ring = new ByteRingBuffer(Math.max(startWatermark, toBytes(capacityMs)));
+	}
+
+	/**
+	 * Add audio to the buffer. If it does not all fit, the bytes that do not fit are dropped and
+	 * counted as an overrun.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return number of bytes accepted
+	 */
+	public int write(byte[] data, int offset, int length) {
+		int accepted = accept(length);
+		ring.write(data, offset, accepted);
+		return accepted;
+	}
+
+	/**
+	 * Add the remaining bytes of a buffer. The buffer position is not changed. If it does not all
+	 * fit, the bytes that do not fit are dropped and counted as an overrun.
+	 * 
+	 * @param data
+	 * @return number of bytes accepted
+	 */
+	public int write(ByteBuffer data) {
+		int accepted = accept(data.remaining());
+		ByteBuffer source = data.duplicate();
+		source.limit(source.position() + accepted);
+		ring.write(source);
+		return accepted;
+	}
+
+	/**
+	 * Get number of bytes that fit from a write, recording an overrun if some will not.
+	 * 
+	 * @param length
+	 * @return
+	 */
+	protected int accept(int length) {
+		int space = ring.remaining();
+		if (length <= space) {
+			return length;
+		}
+		int accepted = space - (space % frameSize);
+		overrunCount++;
+		droppedBytes += length - accepted;
+		return accepted;
+	}
+
+	/**
+	 * Indicate that no more audio will be written. Audio still buffered can be read, after which
+	 * {@link #read(byte[], int, int)} returns -1.
+	 */
+	public void finish() {
+		finished = true;
+		ring.wakeConsumer();
+	}
+
+	/**
+	 * Read buffered audio. While buffering, waits until the start watermark is reached or the
+	 * stream is finished. Only whole frames are returned.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 *            maximum number of bytes to read, at least one frame
+	 * @return bytes read, 0 if the buffer ran dry and has gone back to buffering, or -1 if the
+	 *         stream is finished and all audio has been read
+	 * @throws InterruptedException
+	 */
+	public int read(byte[] data, int offset, int length) throws InterruptedException {
+		if (buffering) {
+			while ((ring.size() < startWatermark) && (!finished)) {
+				ring.awaitSize(startWatermark, WAIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+			buffering = false;
+		}
+		int available = ring.size();
+		if (available == 0) {
+			if (finished) {
+				return -1;
+			}
+			underrunCount++;
+			buffering = true;
+			return 0;
+		}
+		int count = Math.min(length, available);
+		count -= count % frameSize;
+		ring.read(data, offset, count);
+		return count;
+	}
+
+	/**
+	 * Convert milliseconds of audio to a whole number of frames in bytes.
+	 * 
+	 * @param millis
+	 * @return
+	 */
+	public int toBytes(int millis) {
+		return (int) (((long) sampleRate * millis) / 1000) * frameSize;
+	}
+
+	/**
+	 * Get milliseconds of audio currently buffered.
+	 * 
+	 * @return
+	 */
+	public int getBufferedMillis() {
+		return (int) (((long) ring.size() / frameSize) * 1000 / sampleRate);
+	}
+
+	/**
+	 * Get capacity in bytes.
+	 * 
+	 * @return
+	 */
+	public int getCapacity() {
+		return ring.getCapacity();
+	}
+
+	public boolean isBuffering() {
+		return buffering;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public long getUnderrunCount() {
+		return underrunCount;
+	}
+
+	public long getOverrunCount() {
+		return overrunCount;
+	}
+
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+}
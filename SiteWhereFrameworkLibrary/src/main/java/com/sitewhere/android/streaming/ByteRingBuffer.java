@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-size byte ring shared by exactly one producer thread and one consumer thread. Storage is
+ * allocated once and no locks are taken. The producer only advances the write position and the
+ * consumer only advances the read position, each published with an ordered store the other side
+ * reads.
+ * 
+ * @author Derek
+ */
+public class ByteRingBuffer {
+
+	/** Storage, sized to a power of two */
+	private final byte[] buffer;
+
+	/** Maps a position to an index in storage */
+	private final int mask;
+
+	/** Maximum number of bytes held */
+	private final int capacity;
+
+	/** Total bytes read, advanced only by the consumer */
+	private final AtomicLong readPosition = new AtomicLong();
+
+	/** Total bytes written, advanced only by the producer */
+	private final AtomicLong writePosition = new AtomicLong();
+
+	/** Consumer thread waiting for data or null */
+	private volatile Thread waiter;
+
+	/**
+	 * Create a ring that holds up to the given number of bytes.
+	 * 
+	 * @param capacity
+	 */
+	public ByteRingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Ring buffer must hold at least one byte.");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.buffer = new byte[size];
+		this.mask = size - 1;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Copy bytes into the ring. Called only by the producer.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	public void write(byte[] data, int offset, int length) {
+		long position = writePosition.get();
+		int start = (int) (position & mask);
+		int first = Math.min(length, buffer.length - start);
+		System.arraycopy(data, offset, buffer, start, first);
+		System.arraycopy(data, offset + first, buffer, 0, length - first);
+		publish(position + length);
+	}
+
+	/**
+	 * Copy the remaining bytes of a buffer into the ring. Called only by the producer.
+	 * 
+	 * @param data
+	 */
+	public void write(ByteBuffer data) {
+		int length = data.remaining();
+		long position = writePosition.get();
+		int start = (int) (position & mask);
+		int first = Math.min(length, buffer.length - start);
+		data.get(buffer, start, first);
+		data.get(buffer, 0, length - first);
+		publish(position + length);
+	}
+
+	/**
+	 * Make written bytes visible to the consumer and wake it if waiting.
+	 * 
+	 * @param position
+	 */
+	protected void publish(long position) {
+		writePosition.lazySet(position);
+		Thread current = waiter;
+		if (current != null) {
+			LockSupport.unpark(current);
+		}
+	}
+
+	/**
+	 * Copy bytes out of the ring. Called only by the consumer.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 *            number of bytes to read, which must not exceed {@link #size()}
+	 */
+	public void read(byte[] data, int offset, int length) {
+		long position = readPosition.get();
+		int start = (int) (position & mask);
+		int first = Math.min(length, buffer.length - start);
+		System.arraycopy(buffer, start, data, offset, first);
+		System.arraycopy(buffer, 0, data, offset + first, length - first);
+		readPosition.lazySet(position + length);
+	}
+
+	/**
+	 * Wait until at least the given number of bytes are held or the timeout passes. Called only by
+	 * the consumer. May return early, so callers check {@link #size()} afterwards.
+	 * 
+	 * @param bytes
+	 * @param timeout
+	 * @param unit
+	 */
+	public void awaitSize(int bytes, long timeout, TimeUnit unit) {
+		if (size() >= bytes) {
+			return;
+		}
+		waiter = Thread.currentThread();
+		try {
+			if (size() < bytes) {
+				LockSupport.parkNanos(this, unit.toNanos(timeout));
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+
+	/**
+	 * Wake the consumer if it is waiting.
+	 */
+	public void wakeConsumer() {
+		Thread current = waiter;
+		if (current != null) {
+			LockSupport.unpark(current);
+		}
+	}
+
+	/**
+	 * Get number of bytes held.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return (int) (writePosition.get() - readPosition.get());
+	}
+
+	/**
+	 * Get number of bytes that can be written.
+	 * 
+	 * @return
+	 */
+	public int remaining() {
+		return capacity - size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
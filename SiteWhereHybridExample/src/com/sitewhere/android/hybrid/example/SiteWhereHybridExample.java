@@ -34,6 +34,7 @@ import com.sitewhere.android.mqtt.preferences.MqttServicePreferences;
 import com.sitewhere.android.mqtt.ui.ConnectivityWizardFragment;
 import com.sitewhere.android.mqtt.ui.IConnectivityWizardListener;
 import com.sitewhere.android.preferences.IConnectivityPreferences;
+import com.sitewhere.android.protobuf.SiteWhereCommand;
 import com.sitewhere.android.protobuf.SiteWhereHybridProtobufActivity;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAck;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.Header;
@@ -233,6 +234,7 @@ public class SiteWhereHybridExample extends SiteWhereHybridProtobufActivity impl
 	 * @param originator
 	 * @throws SiteWhereMessagingException
 	 */
+	@SiteWhereCommand
 	public void changeBackground(final String color, IDeviceEventOriginator originator)
 			throws SiteWhereMessagingException {
 		runOnUiThread(new Runnable() {
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+import java.io.IOException;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.messaging.IFromSiteWhere;
+import com.sitewhere.android.messaging.PayloadPipe;
+
+/**
+ * Adapts an {@link IFromSiteWhere} binder to {@link IRegisteredClient}. Clients are equal when
+ * they share a binder, so registering the same client twice is detected. Commands too large to
+ * pass inline are sent through a pipe.
+ * 
+ * @author Derek
+ */
+public class BinderClient implements IRegisteredClient {
+
+	/** Wrapped client */
+	private final IFromSiteWhere client;
+
+	/** Name including the process id of the caller that created the wrapper */
+	private final String name;
+
+	/** Recipient linked to the binder for the current death listener */
+	private DeathRecipient deathRecipient;
+
+	public BinderClient(IFromSiteWhere client) {
+		this.client = client;
+		this.name = "pid" + Binder.getCallingPid();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IRegisteredClient#getName()
+	 */
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IRegisteredClient#connected()
+	 */
+	@Override
+	public void connected() throws SiteWhereMqttException {
+		try {
+			client.connected();
+		} catch (RemoteException e) {
+			throw new SiteWhereMqttException(e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IRegisteredClient#receivedSystemCommand(byte[])
+	 */
+	@Override
+	public void receivedSystemCommand(byte[] payload) throws SiteWhereMqttException {
+		try {
+			if (PayloadPipe.isLarge(payload)) {
+				sendLargeCommand(payload, true);
+			} else {
+				client.receivedSystemCommand(payload);
+			}
+		} catch (RemoteException e) {
+			throw new SiteWhereMqttException(e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IRegisteredClient#receivedCustomCommand(byte[])
+	 */
+	@Override
+	public void receivedCustomCommand(byte[] payload) throws SiteWhereMqttException {
+		try {
+			if (PayloadPipe.isLarge(payload)) {
+				sendLargeCommand(payload, false);
+			} else {
+				client.receivedCustomCommand(payload);
+			}
+		} catch (RemoteException e) {
+			throw new SiteWhereMqttException(e);
+		}
+	}
+
+	/**
+	 * Pass a command that is too large to send inline to the client through a pipe.
+	 * 
+	 * @param payload
+	 * @param system
+	 * @throws RemoteException
+	 */
+	protected void sendLargeCommand(byte[] payload, boolean system) throws RemoteException {
+		ParcelFileDescriptor pipe;
+		try {
+			pipe = PayloadPipe.open(payload);
+		} catch (IOException e) {
+			Log.e(IMqttInteractionManager.TAG, "Unable to open pipe for large command.", e);
+			return;
+		}
+		try {
+			if (system) {
+				client.receivedLargeSystemCommand(pipe, payload.length);
+			} else {
+				client.receivedLargeCustomCommand(pipe, payload.length);
+			}
+		} finally {
+			try {
+				pipe.close();
+			} catch (IOException e) {
+				Log.w(IMqttInteractionManager.TAG, "Unable to close pipe for large command.", e);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IRegisteredClient#delivered(long)
+	 */
+	@Override
+	public void delivered(long id) throws SiteWhereMqttException {
+		try {
+			client.delivered(id);
+		} catch (RemoteException e) {
+			throw new SiteWhereMqttException(e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IRegisteredClient#sendFailed(long, int)
+	 */
+	@Override
+	public void sendFailed(long firstId, int count) throws SiteWhereMqttException {
+		try {
+			client.sendFailed(firstId, count);
+		} catch (RemoteException e) {
+			throw new SiteWhereMqttException(e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IRegisteredClient#disconnected()
+	 */
+	@Override
+	public void disconnected() throws SiteWhereMqttException {
+		try {
+			client.disconnected();
+		} catch (RemoteException e) {
+			throw new SiteWhereMqttException(e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.sitewhere.android.mqtt.IRegisteredClient#linkToDeath(com.sitewhere.android.mqtt.IRegisteredClient
+	 * .IDeathListener)
+	 */
+	@Override
+	public synchronized void linkToDeath(IDeathListener listener) throws SiteWhereMqttException {
+		DeathRecipient recipient = new DeathRecipient(listener);
+		try {
+			client.asBinder().linkToDeath(recipient, 0);
+		} catch (RemoteException e) {
+			throw new SiteWhereMqttException(e);
+		}
+		deathRecipient = recipient;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.sitewhere.android.mqtt.IRegisteredClient#unlinkToDeath(com.sitewhere.android.mqtt.IRegisteredClient
+	 * .IDeathListener)
+	 */
+	@Override
+	public synchronized void unlinkToDeath(IDeathListener listener) {
+		if ((deathRecipient != null) && (deathRecipient.listener == listener)) {
+			client.asBinder().unlinkToDeath(deathRecipient, 0);
+			deathRecipient = null;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof BinderClient)) {
+			return false;
+		}
+		return client.asBinder() == ((BinderClient) other).client.asBinder();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return client.asBinder().hashCode();
+	}
+
+	public IFromSiteWhere getClient() {
+		return client;
+	}
+
+	/**
+	 * Forwards binder death to a listener.
+	 * 
+	 * @author Derek
+	 */
+	private static class DeathRecipient implements IBinder.DeathRecipient {
+
+		/** Listener to notify */
+		private final IDeathListener listener;
+
+		DeathRecipient(IDeathListener listener) {
+			this.listener = listener;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see android.os.IBinder.DeathRecipient#binderDied()
+		 */
+		@Override
+		public void binderDied() {
+			listener.clientDied();
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.messaging.ICommandFilter;
+
+/**
+ * Delivers notifications to a single client on a dedicated thread so that a slow client does not
+ * delay delivery to others. Notifications are queued in order up to a fixed capacity, after which the
+ * {@link ClientOverflowPolicy} decides whether to drop the oldest notification or disconnect the
+ * client. Client death is reported by the {@link IRegisteredClient} so dead clients are removed
+ * right away. The time each notification spends queued and being delivered is recorded per client.
+ * 
+ * @author Derek
+ */
+public class ClientDispatcher implements IRegisteredClient.IDeathListener {
+
+	/** Client receiving notifications */
+	private final IRegisteredClient client;
+
+	/** Commands the client wants to receive or null for all */
+	private volatile ICommandFilter filter;
+
+	/** Name used for this client in metrics */
+	private final String name;
+
+	/** Notifications waiting to be delivered */
+	private final BlockingDeque<Queued> queue;
+
+	/** Action taken when queue is full */
+	private final ClientOverflowPolicy overflowPolicy;
+
+	/** Called when the client must be removed */
+	private final IListener listener;
+
+	/** Delivers queued notifications */
+	private final Thread worker;
+
+	/** Indicates dispatcher has been shut down */
+	private volatile boolean closed = false;
+
+	/** Metrics that hold the per-client histogram and queue depth */
+	private final ServiceMetrics metrics;
+
+	/** Time from queueing a notification until it is delivered */
+	private LatencyHistogram latency;
+
+	/** Number of notifications dropped because the queue was full */
+	private final AtomicLong dropped;
+
+	public ClientDispatcher(IRegisteredClient client, ICommandFilter filter, int capacity,
+			ClientOverflowPolicy overflowPolicy, IListener listener) {
+		this(client, filter, capacity, overflowPolicy, listener, new ServiceMetrics(), "client");
+	}
+
+	public ClientDispatcher(IRegisteredClient client, ICommandFilter filter, int capacity,
+			ClientOverflowPolicy overflowPolicy, IListener listener, ServiceMetrics metrics, String name) {
+		this.client = client;
+		this.filter = filter;
+		this.name = name;
+		this.queue = new LinkedBlockingDeque<Queued>(capacity);
+		this.overflowPolicy = overflowPolicy;
+		this.listener = listener;
+		this.metrics = metrics;
+		this.dropped = metrics.getCounter(ServiceMetrics.DISPATCH_DROPPED);
+		this.worker = new Thread(new Worker(), "SiteWhere client dispatcher " + name);
+		this.worker.setDaemon(true);
+	}
+
+	/**
+	 * Watch for client death and start delivering notifications.
+	 * 
+	 * @throws SiteWhereMqttException if the client has already died
+	 */
+	public void start() throws SiteWhereMqttException {
+		client.linkToDeath(this);
+		latency = metrics.getHistogram(ServiceMetrics.DISPATCH_LATENCY + name);
+		metrics.setGauge(ServiceMetrics.DISPATCH_DEPTH + name, new ServiceMetrics.IGauge() {
+
+			@Override
+			public long getValue() {
+				return queue.size();
+			}
+		});
+		worker.start();
+	}
+
+	/**
+	 * Stop delivering notifications and discard any that are queued.
+	 * 
+	 * @return true if this call closed the dispatcher, false if it was already closed
+	 */
+	public synchronized boolean close() {
+		if (closed) {
+			return false;
+		}
+		closed = true;
+		client.unlinkToDeath(this);
+		worker.interrupt();
+		queue.clear();
+		metrics.remove(ServiceMetrics.DISPATCH_DEPTH + name, ServiceMetrics.DISPATCH_LATENCY + name);
+		return true;
+	}
+
+	/**
+	 * Queue a notification for delivery.
+	 * 
+	 * @param notification
+	 */
+	public void dispatch(INotification notification) {
+		if (closed) {
+			return;
+		}
+		Queued queued = new Queued(notification);
+		while (!queue.offerLast(queued)) {
+			switch (overflowPolicy) {
+			case DropOldest: {
+				if (queue.pollFirst() != null) {
+					dropped.incrementAndGet();
+					Log.w(IMqttInteractionManager.TAG, "Client queue full. Dropped oldest notification.");
+				}
+				break;
+			}
+			case Disconnect: {
+				Log.w(IMqttInteractionManager.TAG, "Client queue full. Disconnecting client.");
+				remove();
+				return;
+			}
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IRegisteredClient.IDeathListener#clientDied()
+	 */
+	@Override
+	public void clientDied() {
+		Log.d(IMqttInteractionManager.TAG, "Client died. Removing from list.");
+		remove();
+	}
+
+	/**
+	 * Shut down and ask the listener to remove this client.
+	 */
+	protected void remove() {
+		if (close()) {
+			listener.onClientRemoved(this);
+		}
+	}
+
+	/**
+	 * Indicates whether the delivery thread is still running.
+	 * 
+	 * @return
+	 */
+	public boolean isWorkerAlive() {
+		return worker.isAlive();
+	}
+
+	public IRegisteredClient getClient() {
+		return client;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ICommandFilter getFilter() {
+		return filter;
+	}
+
+	public void setFilter(ICommandFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Notification delivered to a client.
+	 * 
+	 * @author Derek
+	 */
+	public static interface INotification {
+
+		/**
+		 * Deliver the notification.
+		 * 
+		 * @param client
+		 * @throws SiteWhereMqttException
+		 */
+		public void deliver(IRegisteredClient client) throws SiteWhereMqttException;
+	}
+
+	/**
+	 * Receives notice when a client must be removed.
+	 * 
+	 * @author Derek
+	 */
+	public static interface IListener {
+
+		/**
+		 * Called when a client died, could not be reached or fell too far behind.
+		 * 
+		 * @param dispatcher
+		 */
+		public void onClientRemoved(ClientDispatcher dispatcher);
+	}
+
+	/**
+	 * Notification waiting in the queue along with the time it was queued.
+	 * 
+	 * @author Derek
+	 */
+	private static class Queued {
+
+		/** Notification to deliver */
+		private final INotification notification;
+
+		/** Value of {@link System#nanoTime()} when queued */
+		private final long queuedAt;
+
+		public Queued(INotification notification) {
+			this.notification = notification;
+			this.queuedAt = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Delivers queued notifications in order.
+	 * 
+	 * @author Derek
+	 */
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			while (!closed) {
+				Queued queued;
+				try {
+					queued = queue.takeFirst();
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					queued.notification.deliver(client);
+					latency.recordSince(queued.queuedAt);
+				} catch (SiteWhereMqttException e) {
+					Log.w(IMqttInteractionManager.TAG,
+							"Unable to send message to client. Removing from list.", e);
+					remove();
+					return;
+				} catch (RuntimeException e) {
+					Log.e(IMqttInteractionManager.TAG, "Client failed to process notification.", e);
+				}
+			}
+		}
+	}
+}
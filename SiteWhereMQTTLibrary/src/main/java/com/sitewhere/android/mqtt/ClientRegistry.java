@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sitewhere.android.messaging.ICommandFilter;
+import com.sitewhere.android.protobuf.CommandDictionary;
+
+/**
+ * Registry of client dispatchers keyed by client. The registry is copy-on-write: each change
+ * publishes a new immutable snapshot, so dispatching to clients never takes a lock and never sees a
+ * partially updated registry. Updates use compare-and-set so concurrent registrations do not block
+ * each other either. Each snapshot also indexes clients by the commands their
+ * {@link ICommandFilter} accepts, so a command is only routed to clients that want it. A command that
+ * can not be identified is only routed to clients that accept all commands of its kind. The command
+ * dictionaries shared by filters are kept with the snapshot so compact custom commands sent as
+ * dictionary indexes can be named before routing.
+ * 
+ * @author Derek
+ */
+public class ClientRegistry {
+
+	/** Current snapshot of registered clients */
+	private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(new Snapshot(
+			Collections.<IRegisteredClient, ClientDispatcher> emptyMap()));
+
+	/**
+	 * Add a dispatcher unless one is already registered for the same client.
+	 * 
+	 * @param dispatcher
+	 * @return dispatcher now registered for the client
+	 */
+	public ClientDispatcher putIfAbsent(ClientDispatcher dispatcher) {
+		IRegisteredClient client = dispatcher.getClient();
+		while (true) {
+			Snapshot snapshot = current.get();
+			ClientDispatcher existing = snapshot.clients.get(client);
+			if (existing != null) {
+				return existing;
+			}
+			Map<IRegisteredClient, ClientDispatcher> updated =
+					new HashMap<IRegisteredClient, ClientDispatcher>(snapshot.clients);
+			updated.put(client, dispatcher);
+			if (current.compareAndSet(snapshot, new Snapshot(updated))) {
+				return dispatcher;
+			}
+		}
+	}
+
+	/**
+	 * Change the filter for a registered dispatcher and rebuild the routing index.
+	 * 
+	 * @param dispatcher
+	 * @param filter
+	 */
+	public void updateFilter(ClientDispatcher dispatcher, ICommandFilter filter) {
+		dispatcher.setFilter(filter);
+		while (true) {
+			Snapshot snapshot = current.get();
+			if (current.compareAndSet(snapshot, new Snapshot(snapshot.clients))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Remove the dispatcher for a client.
+	 * 
+	 * @param client
+	 * @return removed dispatcher or null if client was not registered
+	 */
+	public ClientDispatcher remove(IRegisteredClient client) {
+		return remove(client, null);
+	}
+
+	/**
+	 * Remove a dispatcher if it is still the one registered for its client.
+	 * 
+	 * @param dispatcher
+	 * @return true if the dispatcher was removed
+	 */
+	public boolean remove(ClientDispatcher dispatcher) {
+		return remove(dispatcher.getClient(), dispatcher) != null;
+	}
+
+	/**
+	 * Remove the dispatcher registered for a client, optionally only if it matches an expected one.
+	 * 
+	 * @param client
+	 * @param expected
+	 * @return
+	 */
+	protected ClientDispatcher remove(IRegisteredClient client, ClientDispatcher expected) {
+		while (true) {
+			Snapshot snapshot = current.get();
+			ClientDispatcher existing = snapshot.clients.get(client);
+			if ((existing == null) || ((expected != null) && (existing != expected))) {
+				return null;
+			}
+			Map<IRegisteredClient, ClientDispatcher> updated =
+					new HashMap<IRegisteredClient, ClientDispatcher>(snapshot.clients);
+			updated.remove(client);
+			if (current.compareAndSet(snapshot, new Snapshot(updated))) {
+				return existing;
+			}
+		}
+	}
+
+	/**
+	 * Get the dispatchers registered at the time of the call.
+	 * 
+	 * @return
+	 */
+	public Collection<ClientDispatcher> snapshot() {
+		return current.get().clients.values();
+	}
+
+	/**
+	 * Get dispatchers whose filters accept the given system command.
+	 * 
+	 * @param command
+	 *            command number or null if the command could not be determined
+	 * @return
+	 */
+	public List<ClientDispatcher> getSystemCommandRoute(Integer command) {
+		Snapshot snapshot = current.get();
+		return snapshot.route(snapshot.allSystemCommands, snapshot.systemCommands, command);
+	}
+
+	/**
+	 * Get dispatchers whose filters accept the given custom command.
+	 * 
+	 * @param name
+	 *            command name or null if the name could not be determined
+	 * @return
+	 */
+	public List<ClientDispatcher> getCustomCommandRoute(String name) {
+		Snapshot snapshot = current.get();
+		return snapshot.route(snapshot.allCustomCommands, snapshot.customCommands, name);
+	}
+
+	/**
+	 * Get the command dictionaries shared by client filters.
+	 * 
+	 * @return dictionaries indexed by fingerprint
+	 */
+	public Map<Integer, CommandDictionary> getCommandDictionaries() {
+		return current.get().dictionaries;
+	}
+
+	/**
+	 * Get number of registered clients.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return current.get().clients.size();
+	}
+
+	/**
+	 * Immutable view of registered clients and the routing index built from their filters.
+	 * 
+	 * @author Derek
+	 */
+	private static class Snapshot {
+
+		/** Dispatchers indexed by client */
+		final Map<IRegisteredClient, ClientDispatcher> clients;
+
+		/** Dispatchers that accept all system commands */
+		final List<ClientDispatcher> allSystemCommands = new ArrayList<ClientDispatcher>();
+
+		/** Dispatchers indexed by accepted system command number */
+		final Map<Integer, List<ClientDispatcher>> systemCommands =
+				new HashMap<Integer, List<ClientDispatcher>>();
+
+		/** Dispatchers that accept all custom commands */
+		final List<ClientDispatcher> allCustomCommands = new ArrayList<ClientDispatcher>();
+
+		/** Dispatchers indexed by accepted custom command name */
+		final Map<String, List<ClientDispatcher>> customCommands =
+				new HashMap<String, List<ClientDispatcher>>();
+
+		/** Command dictionaries shared by filters, indexed by fingerprint */
+		final Map<Integer, CommandDictionary> dictionaries;
+
+		Snapshot(Map<IRegisteredClient, ClientDispatcher> clients) {
+			this.clients = Collections.unmodifiableMap(clients);
+			Map<Integer, CommandDictionary> shared = new HashMap<Integer, CommandDictionary>();
+			for (ClientDispatcher dispatcher : clients.values()) {
+				ICommandFilter filter = dispatcher.getFilter();
+				Set<Integer> system = (filter != null) ? filter.getSystemCommands() : null;
+				if (system == null) {
+					allSystemCommands.add(dispatcher);
+				} else {
+					for (Integer command : system) {
+						index(systemCommands, command, dispatcher);
+					}
+				}
+				Set<String> custom = (filter != null) ? filter.getCustomCommands() : null;
+				if (custom == null) {
+					allCustomCommands.add(dispatcher);
+				} else {
+					for (String name : custom) {
+						index(customCommands, name, dispatcher);
+					}
+				}
+				CommandDictionary dictionary = (filter != null) ? filter.getCommandDictionary() : null;
+				if (dictionary != null) {
+					shared.put(dictionary.getFingerprint(), dictionary);
+				}
+			}
+			this.dictionaries = Collections.unmodifiableMap(shared);
+		}
+
+		/**
+		 * Add a dispatcher to the list for a key.
+		 * 
+		 * @param index
+		 * @param key
+		 * @param dispatcher
+		 */
+		static <K> void index(Map<K, List<ClientDispatcher>> index, K key, ClientDispatcher dispatcher) {
+			List<ClientDispatcher> route = index.get(key);
+			if (route == null) {
+				route = new ArrayList<ClientDispatcher>();
+				index.put(key, route);
+			}
+			route.add(dispatcher);
+		}
+
+		/**
+		 * Combine dispatchers that accept everything with those indexed under a key. If the key is not
+		 * known, only dispatchers that accept everything are returned.
+		 * 
+		 * @param all
+		 * @param index
+		 * @param key
+		 * @return
+		 */
+		<K> List<ClientDispatcher> route(List<ClientDispatcher> all, Map<K, List<ClientDispatcher>> index,
+				K key) {
+			List<ClientDispatcher> matched = (key != null) ? index.get(key) : null;
+			if (matched == null) {
+				return all;
+			}
+			if (all.isEmpty()) {
+				return matched;
+			}
+			List<ClientDispatcher> route = new ArrayList<ClientDispatcher>(all.size() + matched.size());
+			route.addAll(all);
+			route.addAll(matched);
+			return route;
+		}
+	}
+}
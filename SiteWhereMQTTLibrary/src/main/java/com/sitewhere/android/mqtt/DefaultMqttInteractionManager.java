@@ -15,32 +15,79 @@
  */
 package com.sitewhere.android.mqtt;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.Callback;
+import org.fusesource.mqtt.client.FutureConnection;
 import org.fusesource.mqtt.client.Message;
 import org.fusesource.mqtt.client.QoS;
 import org.fusesource.mqtt.client.Topic;
 
-import android.util.Log;
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.mqtt.queue.IOutboundEventQueue;
+import com.sitewhere.android.mqtt.queue.QueuedEvent;
 
 /**
  * Default implementation of {@link IMqttInteractionManager} that has a single outbound topic sending events
- * to SiteWhere and two inbound topics for system and custom messsages.
+ * to SiteWhere and two inbound topics for system and custom messsages. Outbound events are written to an
+ * {@link IOutboundEventQueue} and published from a background thread while connected, so events sent
+ * while offline are delivered once the connection is restored. Publishes are pipelined over a
+ * {@link FutureConnection}, with up to a configurable number of messages awaiting acknowledgement from the
+ * broker at once. Each event is published with the quality of service requested by the sender, which is
+ * stored in the queue record flags.
+ * 
+ * Inbound messages are received on a dedicated thread, acknowledged once they are placed in a bounded
+ * queue, and handed to workers that notify the {@link IMqttCallback}. This is a fixed two-lane split
+ * rather than a sized worker pool: every inbound topic carries the same hardware id, so the only
+ * partition that keeps per-device order is by topic. System commands have one lane and custom commands
+ * the other, so system commands are not held up behind slow custom command handlers, and messages on
+ * each topic are still processed in order.
  * 
  * @author Derek
  */
 public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 
 	/** Topic name for outbound messages */
-	private static final String OUTBOUND_TOPIC = "SiteWhere/input/protobuf";
+	public static final String OUTBOUND_TOPIC = "SiteWhere/input/protobuf";
 
 	/** Topic prefix for inbound system messages */
-	private static final String SYSTEM_TOPIC_PREFIX = "SiteWhere/system/";
+	public static final String SYSTEM_TOPIC_PREFIX = "SiteWhere/system/";
 
 	/** Topic prefix for inbound command messages */
-	private static final String COMMAND_TOPIC_PREFIX = "SiteWhere/commands/";
+	public static final String COMMAND_TOPIC_PREFIX = "SiteWhere/commands/";
+
+	/** Interval at which the drain thread checks for disconnect while idle */
+	private static final long DRAIN_POLL_INTERVAL_MS = 1000;
+
+	/** Time to wait for background threads to finish on shutdown */
+	private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
+	/** Quality of service levels indexed by value stored in queue record flags */
+	private static final QoS[] QOS_LEVELS = QoS.values();
+
+	/** Default number of publishes that may await acknowledgement at once */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+	/** Inbound lane for system commands */
+	private static final int SYSTEM_LANE = 0;
+
+	/** Inbound lane for custom commands */
+	private static final int CUSTOM_LANE = 1;
+
+	/** Number of inbound lanes, one for each subscribed topic */
+	private static final int INBOUND_LANES = 2;
+
+	/** Default number of inbound messages queued for each lane */
+	public static final int DEFAULT_INBOUND_QUEUE_CAPACITY = 64;
 
 	/** Topic for receiving commands */
 	private Topic commandTopic;
@@ -52,107 +99,527 @@ public class DefaultMqttInteractionManager implements IMqttInteractionManager {
 	private IMqttCallback callback;
 
 	/** MQTT connection */
-	private BlockingConnection connection;
+	private FutureConnection connection;
 
 	/** Used to handle message processing */
 	private ExecutorService executor;
 
+	/** Number of inbound messages queued for each lane */
+	private final int inboundQueueCapacity;
+
+	/** Holds outbound events until they are acknowledged by the broker */
+	private final IOutboundEventQueue queue;
+
+	/** Used to publish events from the outbound queue */
+	private ExecutorService drainer;
+
+	/** Connection state as seen by the drain thread */
+	private volatile MqttConnectionState state = MqttConnectionState.Disconnected;
+
+	/** Maximum number of publishes awaiting acknowledgement */
+	private final int maxInFlight;
+
+	/** Queues feeding inbound lanes for the current connection */
+	private volatile List<BlockingQueue<Message>> lanes;
+
+	/** Publish latency indexed by quality of service */
+	private LatencyHistogram[] publishLatency;
+
+	/** Number of publishes that failed */
+	private AtomicLong publishFailures;
+
+	/** Number of messages published */
+	private AtomicLong messagesOut;
+
+	/** Number of payload bytes published */
+	private AtomicLong bytesOut;
+
+	/** Number of messages received */
+	private AtomicLong messagesIn;
+
+	/** Number of payload bytes received */
+	private AtomicLong bytesIn;
+
+	public DefaultMqttInteractionManager(IOutboundEventQueue queue) {
+		this(queue, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	public DefaultMqttInteractionManager(IOutboundEventQueue queue, int maxInFlight) {
+		this(queue, maxInFlight, DEFAULT_INBOUND_QUEUE_CAPACITY);
+	}
+
+	public DefaultMqttInteractionManager(IOutboundEventQueue queue, int maxInFlight,
+			int inboundQueueCapacity) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("At least one publish must be allowed in flight.");
+		}
+		if (inboundQueueCapacity < 1) {
+			throw new IllegalArgumentException("At least one inbound queue slot is required.");
+		}
+		this.queue = queue;
+		this.maxInFlight = maxInFlight;
+		this.inboundQueueCapacity = inboundQueueCapacity;
+		setMetrics(new ServiceMetrics());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.sitewhere.android.mqtt.IMqttInteractionManager#setMetrics(com.sitewhere.android.mqtt.ServiceMetrics
+	 * )
+	 */
+	@Override
+	public void setMetrics(ServiceMetrics metrics) {
+		LatencyHistogram[] latency = new LatencyHistogram[QOS_LEVELS.length];
+		for (int i = 0; i < latency.length; i++) {
+			latency[i] = metrics.getHistogram(ServiceMetrics.PUBLISH_LATENCY + i);
+		}
+		this.publishLatency = latency;
+		this.publishFailures = metrics.getCounter(ServiceMetrics.PUBLISH_FAILURES);
+		this.messagesOut = metrics.getCounter(ServiceMetrics.MESSAGES_OUT);
+		this.bytesOut = metrics.getCounter(ServiceMetrics.BYTES_OUT);
+		this.messagesIn = metrics.getCounter(ServiceMetrics.MESSAGES_IN);
+		this.bytesIn = metrics.getCounter(ServiceMetrics.BYTES_IN);
+		metrics.setGauge(ServiceMetrics.INBOUND_DEPTH, new ServiceMetrics.IGauge() {
+
+			@Override
+			public long getValue() {
+				return getInboundQueueDepth();
+			}
+		});
+	}
+
+	/**
+	 * Get number of received messages waiting for an inbound worker.
+	 * 
+	 * @return
+	 */
+	public int getInboundQueueDepth() {
+		List<BlockingQueue<Message>> current = lanes;
+		if (current == null) {
+			return 0;
+		}
+		int depth = 0;
+		for (BlockingQueue<Message> lane : current) {
+			depth += lane.size();
+		}
+		return depth;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#connect(java.lang.String,
-	 * org.fusesource.mqtt.client.BlockingConnection)
+	 * org.fusesource.mqtt.client.FutureConnection, boolean)
 	 */
 	@Override
-	public void connect(String hardwareId, BlockingConnection connection) throws SiteWhereMqttException {
+	public void connect(String hardwareId, FutureConnection connection, boolean resumed)
+			throws SiteWhereMqttException {
 		this.connection = connection;
+		stopReceiving();
+		startReceiving(connection);
+		commandTopic = new Topic(getCommandTopicPrefix() + hardwareId, QoS.EXACTLY_ONCE);
+		systemTopic = new Topic(getSystemTopicPrefix() + hardwareId, QoS.EXACTLY_ONCE);
+		Log.d(IMqttInteractionManager.TAG, "System command topic: " + systemTopic.name());
+		Log.d(IMqttInteractionManager.TAG, "Custom command topic: " + commandTopic.name());
+		if (resumed) {
+			refreshSubscriptions(connection);
+		} else {
+			try {
+				connection.subscribe(new Topic[] { commandTopic, systemTopic }).await();
+				Log.d(IMqttInteractionManager.TAG, "Subscribed to topics successfully.");
+			} catch (Exception e) {
+				throw new SiteWhereMqttException("Unable to subscribe to topics.", e);
+			}
+		}
+		startDraining(connection);
+	}
+
+	/**
+	 * Repeat the subscribe for a resumed session without waiting for the broker to respond. The
+	 * session already holds the subscriptions, so this only matters if the broker has lost its
+	 * session state.
+	 * 
+	 * @param connection
+	 */
+	protected void refreshSubscriptions(FutureConnection connection) {
+		connection.subscribe(new Topic[] { commandTopic, systemTopic }).then(new Callback<byte[]>() {
+
+			@Override
+			public void onSuccess(byte[] value) {
+				Log.d(IMqttInteractionManager.TAG, "Refreshed subscriptions for resumed session.");
+			}
+
+			@Override
+			public void onFailure(Throwable value) {
+				Log.w(IMqttInteractionManager.TAG,
+						"Unable to refresh subscriptions for resumed session.", value);
+			}
+		});
+	}
+
+	/**
+	 * Start the receive thread and a worker for each inbound lane.
+	 * 
+	 * @param connection
+	 */
+	protected void startReceiving(FutureConnection connection) {
+		executor = Executors.newFixedThreadPool(INBOUND_LANES + 1);
+		List<BlockingQueue<Message>> lanes = new ArrayList<BlockingQueue<Message>>(INBOUND_LANES);
+		for (int i = 0; i < INBOUND_LANES; i++) {
+			BlockingQueue<Message> lane = new ArrayBlockingQueue<Message>(inboundQueueCapacity);
+			lanes.add(lane);
+			executor.submit(new InboundMessageWorker(lane));
+		}
+		this.lanes = lanes;
+		executor.submit(new MqttMessageProcessor(connection, lanes));
+	}
+
+	/**
+	 * Stop the receive thread and inbound lane workers.
+	 */
+	protected void stopReceiving() {
 		if ((executor != null) && (!executor.isShutdown())) {
 			executor.shutdownNow();
 		}
-		executor = Executors.newSingleThreadExecutor();
-		executor.submit(new MqttMessageProcessor());
-		commandTopic = new Topic(getCommandTopicPrefix() + hardwareId, QoS.EXACTLY_ONCE);
-		systemTopic = new Topic(getSystemTopicPrefix() + hardwareId, QoS.EXACTLY_ONCE);
-		try {
-			Log.d(MqttService.TAG, "System command topic: " + systemTopic.name());
-			Log.d(MqttService.TAG, "Custom command topic: " + commandTopic.name());
-			connection.subscribe(new Topic[] { commandTopic, systemTopic });
-			Log.d(MqttService.TAG, "Subscribed to topics successfully.");
-		} catch (Exception e) {
-			throw new SiteWhereMqttException("Unable to subscribe to topics.", e);
+	}
+
+	/**
+	 * Start publishing events from the outbound queue, beginning with the oldest one that has not
+	 * been acknowledged.
+	 * 
+	 * @param connection
+	 */
+	protected void startDraining(FutureConnection connection) {
+		stopDraining();
+		queue.rewind();
+		state = MqttConnectionState.Connected;
+		drainer = Executors.newSingleThreadExecutor();
+		drainer.submit(new OutboundQueueDrainer(connection));
+		Log.d(IMqttInteractionManager.TAG,
+				"Draining outbound queue with " + queue.getPendingCount() + " pending events.");
+	}
+
+	/**
+	 * Stop publishing events from the outbound queue.
+	 */
+	protected void stopDraining() {
+		state = MqttConnectionState.Disconnected;
+		if ((drainer != null) && (!drainer.isShutdown())) {
+			drainer.shutdownNow();
 		}
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#send(byte[])
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#send(byte[],
+	 * org.fusesource.mqtt.client.QoS)
 	 */
 	@Override
-	public void send(byte[] payload) throws SiteWhereMqttException {
-		if (connection == null) {
-			throw new SiteWhereMqttException("Attempting to send a message while disconnected.");
-		}
-		try {
-			connection.publish(getOutboundTopic(), payload, QoS.EXACTLY_ONCE, false);
-			Log.d(MqttService.TAG, "Sent message successfully to: " + getOutboundTopic());
-		} catch (Exception e) {
-			throw new SiteWhereMqttException("Unable to publish message.", e);
-		}
+	public long send(byte[] payload, QoS qos) throws SiteWhereMqttException {
+		return queue.append((byte) qos.ordinal(), payload);
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#disconnect(java.lang.String,
-	 * org.fusesource.mqtt.client.BlockingConnection)
+	 * org.fusesource.mqtt.client.FutureConnection, boolean)
 	 */
 	@Override
-	public void disconnect(String hardwareId, BlockingConnection connection) throws SiteWhereMqttException {
+	public void disconnect(String hardwareId, FutureConnection connection, boolean keepSession)
+			throws SiteWhereMqttException {
+		stopDraining();
 		try {
-			connection.unsubscribe(new String[] { getCommandTopicPrefix() + hardwareId,
-					getSystemTopicPrefix() + hardwareId });
+			if (!keepSession) {
+				connection.unsubscribe(new String[] { getCommandTopicPrefix() + hardwareId,
+						getSystemTopicPrefix() + hardwareId }).await();
+				Log.d(IMqttInteractionManager.TAG, "Unsubscribed from topics successfully.");
+			}
 			this.connection = null;
-			this.executor.shutdownNow();
-			Log.d(MqttService.TAG, "Unsubscribed from topics successfully.");
+			stopReceiving();
 		} catch (Exception e) {
 			throw new SiteWhereMqttException("Unable to subscribe to topics.", e);
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IMqttInteractionManager#shutdown()
+	 */
+	@Override
+	public void shutdown() {
+		stopDraining();
+		stopReceiving();
+		awaitTermination(drainer);
+		awaitTermination(executor);
+	}
+
+	/**
+	 * Wait for an executor that has been shut down to finish running tasks.
+	 * 
+	 * @param service
+	 */
+	protected void awaitTermination(ExecutorService service) {
+		if (service == null) {
+			return;
+		}
+		try {
+			if (!service.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				Log.w(IMqttInteractionManager.TAG, "Timed out waiting for MQTT threads to stop.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	/**
-	 * Handles message processing in a background thread.
+	 * Receives messages from the connection and places them on the lane for their topic, either the
+	 * system command lane or the custom command lane. Messages are acknowledged once queued.
 	 * 
 	 * @author Derek
 	 */
 	private class MqttMessageProcessor implements Runnable {
 
+		/** Connection messages are received from */
+		private FutureConnection connection;
+
+		/** Queues feeding inbound lanes */
+		private List<BlockingQueue<Message>> lanes;
+
+		public MqttMessageProcessor(FutureConnection connection, List<BlockingQueue<Message>> lanes) {
+			this.connection = connection;
+			this.lanes = lanes;
+		}
+
 		@Override
 		public void run() {
-			Log.d(MqttService.TAG, "Started MQTT subscription processing thread.");
+			Log.d(IMqttInteractionManager.TAG, "Started MQTT subscription processing thread.");
 			while (true) {
 				try {
-					Message message = connection.receive();
+					Message message = connection.receive().await();
+					messagesIn.incrementAndGet();
+					bytesIn.addAndGet(message.getPayloadBuffer().length());
+					boolean system = message.getTopic().startsWith(getSystemTopicPrefix());
+					lanes.get(system ? SYSTEM_LANE : CUSTOM_LANE).put(message);
 					message.ack();
-					Log.d(MqttService.TAG, "Received message from: " + message.getTopic());
+				} catch (InterruptedException e) {
+					Log.d(IMqttInteractionManager.TAG, "Device event processor interrupted.");
+					break;
+				} catch (Throwable e) {
+					if (connection.isConnected()) {
+						Log.e(IMqttInteractionManager.TAG, "Unhandled MQTT exception.", e);
+					} else {
+						Log.d(IMqttInteractionManager.TAG,
+								"Ending message processing due to failed connection.");
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes received messages from a queue and notifies the callback based on the message topic.
+	 * 
+	 * @author Derek
+	 */
+	private class InboundMessageWorker implements Runnable {
+
+		/** Messages waiting to be processed */
+		private BlockingQueue<Message> messages;
+
+		public InboundMessageWorker(BlockingQueue<Message> messages) {
+			this.messages = messages;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Message message;
+				try {
+					message = messages.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					Log.d(IMqttInteractionManager.TAG, "Received message from: " + message.getTopic());
 					if (message.getTopic().startsWith(getCommandTopicPrefix())) {
 						callback.onCustomCommandReceived(message.getTopic(), message.getPayload());
 					} else if (message.getTopic().startsWith(getSystemTopicPrefix())) {
 						callback.onSystemCommandReceived(message.getTopic(), message.getPayload());
 					} else {
-						Log.w(MqttService.TAG, "Response from unknown topic: " + message.getTopic());
+						Log.w(IMqttInteractionManager.TAG,
+								"Response from unknown topic: " + message.getTopic());
 					}
-				} catch (InterruptedException e) {
-					Log.d(MqttService.TAG, "Device event processor interrupted.");
-					break;
 				} catch (Throwable e) {
-					if (connection.isConnected()) {
-						Log.e(MqttService.TAG, "Unhandled MQTT exception.", e);
-					} else {
-						Log.d(MqttService.TAG, "Ending message processing due to failed connection.");
-						break;
+					Log.e(IMqttInteractionManager.TAG, "Unhandled exception processing inbound message.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publishes events from the outbound queue while connected. Publishes are issued without waiting for
+	 * earlier ones to complete, up to the in-flight limit. Events are acknowledged in the queue once the
+	 * broker has completed every publish up to and including them, so a failure leaves them queued for the
+	 * next connection.
+	 * 
+	 * @author Derek
+	 */
+	private class OutboundQueueDrainer implements Runnable {
+
+		/** Connection used for publishing */
+		private FutureConnection connection;
+
+		/** Limits number of publishes awaiting acknowledgement */
+		private Semaphore window = new Semaphore(maxInFlight);
+
+		/** Sequence numbers of publishes awaiting acknowledgement */
+		private TreeSet<Long> inFlight = new TreeSet<Long>();
+
+		/** Highest sequence number that has been published */
+		private long highestSent = -1;
+
+		/** Highest sequence number acknowledged in the queue */
+		private long highestAcknowledged = -1;
+
+		/** Orders queue acknowledgements and delivery reports */
+		private final Object acknowledgeLock = new Object();
+
+		/** Set when a publish fails so in-flight events can be resent */
+		private volatile boolean failed;
+
+		public OutboundQueueDrainer(FutureConnection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void run() {
+			Log.d(IMqttInteractionManager.TAG, "Started outbound queue drain thread.");
+			while ((state == MqttConnectionState.Connected) && (!Thread.currentThread().isInterrupted())) {
+				try {
+					window.acquire();
+					if (failed) {
+						window.release();
+						if (!connection.isConnected()) {
+							Log.d(IMqttInteractionManager.TAG,
+									"Ending outbound queue drain due to failed connection.");
+							break;
+						}
+						recover();
+						continue;
 					}
+					QueuedEvent event = queue.poll(DRAIN_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+					if (event == null) {
+						window.release();
+						continue;
+					}
+					publish(event);
+				} catch (InterruptedException e) {
+					Log.d(IMqttInteractionManager.TAG, "Outbound queue drain thread interrupted.");
+					break;
+				} catch (SiteWhereMqttException e) {
+					Log.d(IMqttInteractionManager.TAG, "Ending outbound queue drain since queue is closed.");
+					break;
+				} catch (RuntimeException e) {
+					Log.e(IMqttInteractionManager.TAG, "Ending outbound queue drain due to unexpected error.",
+							e);
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Start an asynchronous publish for an event. The window permit is released on completion.
+		 * 
+		 * @param event
+		 */
+		protected void publish(final QueuedEvent event) {
+			synchronized (this) {
+				inFlight.add(event.getSequence());
+				highestSent = event.getSequence();
+			}
+			final int qos = event.getFlags();
+			final long start = System.nanoTime();
+			connection.publish(getOutboundTopic(), event.getPayload(), QOS_LEVELS[qos], false).then(
+					new Callback<Void>() {
+
+						@Override
+						public void onSuccess(Void value) {
+							publishLatency[qos].recordSince(start);
+							messagesOut.incrementAndGet();
+							bytesOut.addAndGet(event.getPayload().length);
+							completed(event.getSequence());
+							window.release();
+						}
+
+						@Override
+						public void onFailure(Throwable e) {
+							Log.w(IMqttInteractionManager.TAG,
+									"Publish failed for queued event " + event.getSequence() + ".", e);
+							publishFailures.incrementAndGet();
+							failed = true;
+							window.release();
+						}
+					});
+		}
+
+		/**
+		 * Record completion of a publish and acknowledge the contiguous range of completed events.
+		 * Completions may arrive on several threads, so the acknowledgement and delivery report are
+		 * made under a lock and only when the contiguous range has grown. The callback therefore sees
+		 * strictly increasing values.
+		 * 
+		 * @param sequence
+		 */
+		protected void completed(long sequence) {
+			long through;
+			synchronized (this) {
+				inFlight.remove(sequence);
+				through = inFlight.isEmpty() ? highestSent : inFlight.first() - 1;
+			}
+			synchronized (acknowledgeLock) {
+				if (through <= highestAcknowledged) {
+					return;
+				}
+				highestAcknowledged = through;
+				try {
+					queue.acknowledge(through);
+				} catch (SiteWhereMqttException e) {
+					Log.e(IMqttInteractionManager.TAG, "Unable to acknowledge queued events.", e);
+				}
+				if (callback != null) {
+					callback.onDelivered(through);
+				}
+			}
+		}
+
+		/**
+		 * Wait for outstanding publishes to settle, then rewind the queue so unacknowledged events are
+		 * published again.
+		 * 
+		 * @throws InterruptedException
+		 */
+		protected void recover() throws InterruptedException {
+			window.acquire(maxInFlight);
+			try {
+				long acknowledged;
+				synchronized (acknowledgeLock) {
+					acknowledged = highestAcknowledged;
+				}
+				synchronized (this) {
+					inFlight.clear();
+					highestSent = acknowledged;
 				}
+				failed = false;
+				queue.rewind();
+				Log.d(IMqttInteractionManager.TAG, "Resending unacknowledged events after publish failure.");
+			} finally {
+				window.release(maxInFlight);
 			}
 		}
 	}
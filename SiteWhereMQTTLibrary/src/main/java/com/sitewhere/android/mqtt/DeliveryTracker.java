@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.sitewhere.android.logging.Log;
+
+/**
+ * Maps outbound queue sequence numbers back to the ids that clients assigned to payloads sent with
+ * {@link com.sitewhere.android.messaging.IToSiteWhere#sendFramed}
+ * and notifies clients when the broker acknowledges them. Tracking is held in memory, so payloads
+ * still queued when the service restarts are delivered without a notification.
+ * 
+ * @author Derek
+ */
+public class DeliveryTracker {
+
+	/** Pending notifications indexed by the last queue sequence number they cover */
+	private final TreeMap<Long, PendingDelivery> pending = new TreeMap<Long, PendingDelivery>();
+
+	/** Highest queue sequence number reported as delivered */
+	private long highestDelivered = -1;
+
+	/**
+	 * Record that a client id was assigned the given queue sequence number.
+	 * 
+	 * @param client
+	 * @param id
+	 * @param sequence
+	 */
+	public void track(IRegisteredClient client, long id, long sequence) {
+		synchronized (this) {
+			if (sequence > highestDelivered) {
+				pending.put(sequence, new PendingDelivery(client, id));
+				return;
+			}
+		}
+
+		// Delivery completed before the send was recorded.
+		try {
+			client.delivered(id);
+		} catch (SiteWhereMqttException e) {
+			Log.w(IMqttInteractionManager.TAG, "Unable to notify client of delivery.", e);
+		}
+	}
+
+	/**
+	 * Notify clients of all deliveries up to and including the given queue sequence number.
+	 * 
+	 * @param sequence
+	 */
+	public void delivered(long sequence) {
+		Map<IRegisteredClient, PendingDelivery> latest = new HashMap<IRegisteredClient, PendingDelivery>();
+		synchronized (this) {
+			highestDelivered = Math.max(highestDelivered, sequence);
+			SortedMap<Long, PendingDelivery> done = pending.headMap(sequence + 1);
+			if (done.isEmpty()) {
+				return;
+			}
+			for (Iterator<PendingDelivery> it = done.values().iterator(); it.hasNext();) {
+				PendingDelivery delivery = it.next();
+				PendingDelivery previous = latest.get(delivery.client);
+				if ((previous == null) || (previous.id < delivery.id)) {
+					latest.put(delivery.client, delivery);
+				}
+				it.remove();
+			}
+		}
+		for (PendingDelivery delivery : latest.values()) {
+			try {
+				delivery.client.delivered(delivery.id);
+			} catch (SiteWhereMqttException e) {
+				Log.w(IMqttInteractionManager.TAG, "Unable to notify client of delivery.", e);
+			}
+		}
+	}
+
+	/**
+	 * Notify a client that payloads could not be queued.
+	 * 
+	 * @param client
+	 * @param firstId
+	 * @param count
+	 */
+	public void failed(IRegisteredClient client, long firstId, int count) {
+		try {
+			client.sendFailed(firstId, count);
+		} catch (SiteWhereMqttException e) {
+			Log.w(IMqttInteractionManager.TAG, "Unable to notify client of failed send.", e);
+		}
+	}
+
+	/**
+	 * Stop tracking deliveries for a client.
+	 * 
+	 * @param client
+	 */
+	public synchronized void remove(IRegisteredClient client) {
+		for (Iterator<PendingDelivery> it = pending.values().iterator(); it.hasNext();) {
+			if (it.next().client.equals(client)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Client id waiting for a delivery notification.
+	 * 
+	 * @author Derek
+	 */
+	private static class PendingDelivery {
+
+		/** Client to notify */
+		final IRegisteredClient client;
+
+		/** Client-assigned id */
+		final long id;
+
+		PendingDelivery(IRegisteredClient client, long id) {
+			this.client = client;
+			this.id = id;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.fusesource.mqtt.client.Tracer;
+import org.fusesource.mqtt.codec.MQTTFrame;
+
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.messaging.ISiteWhereMessaging;
+
+/**
+ * {@link Tracer} that records MQTT frame headers into a fixed-size ring buffer. The level can be
+ * changed at runtime using the TRACE_* constants in {@link ISiteWhereMessaging}. When tracing is
+ * off, each frame costs a single volatile read. When recording, sampled frames cost a few array
+ * writes and nothing is formatted until the buffer is dumped. Only the log level formats frames as
+ * they pass, and never includes the payload.
+ * 
+ * Frames may be traced from several threads at once. Entries overwritten while a dump is in progress
+ * may appear mixed, which is acceptable for diagnostics.
+ * 
+ * @author Derek
+ */
+public class FrameTracer extends Tracer {
+
+	/** Default number of frames held in the ring buffer */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** Frame type names indexed by MQTT message type */
+	private static final String[] FRAME_TYPES = { "RESERVED", "CONNECT", "CONNACK", "PUBLISH", "PUBACK",
+			"PUBREC", "PUBREL", "PUBCOMP", "SUBSCRIBE", "SUBACK", "UNSUBSCRIBE", "UNSUBACK", "PINGREQ",
+			"PINGRESP", "DISCONNECT", "RESERVED" };
+
+	/** Current trace level */
+	private volatile int level = ISiteWhereMessaging.TRACE_OFF;
+
+	/** Record one of every this many frames */
+	private volatile int sampleInterval = 1;
+
+	/** Number of frames seen while tracing, used for sampling */
+	private final AtomicLong seen = new AtomicLong();
+
+	/** Number of frames recorded, which also selects the next slot */
+	private final AtomicLong recorded = new AtomicLong();
+
+	/** Mask that maps a record number to a slot */
+	private final int mask;
+
+	/** Time each frame was traced */
+	private final long[] times;
+
+	/** Fixed header byte of each frame */
+	private final byte[] headers;
+
+	/** Encoded size of each frame excluding the fixed header */
+	private final int[] sizes;
+
+	/** Indicates whether each frame was sent or received */
+	private final boolean[] sent;
+
+	public FrameTracer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a tracer that holds the given number of frames, rounded up to a power of two.
+	 * 
+	 * @param capacity
+	 */
+	public FrameTracer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Trace buffer must hold at least one frame.");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.times = new long[size];
+		this.headers = new byte[size];
+		this.sizes = new int[size];
+		this.sent = new boolean[size];
+	}
+
+	/**
+	 * Set the trace level and sampling interval.
+	 * 
+	 * @param level
+	 *            one of the TRACE_* constants in {@link ISiteWhereMessaging}
+	 * @param sampleInterval
+	 *            record one of every this many frames
+	 */
+	public void configure(int level, int sampleInterval) {
+		if ((level < ISiteWhereMessaging.TRACE_OFF) || (level > ISiteWhereMessaging.TRACE_LOG)) {
+			throw new IllegalArgumentException("Invalid trace level: " + level);
+		}
+		if (sampleInterval < 1) {
+			throw new IllegalArgumentException("Sample interval must be at least one.");
+		}
+		this.sampleInterval = sampleInterval;
+		this.level = level;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.fusesource.mqtt.client.Tracer#onSend(org.fusesource.mqtt.codec.MQTTFrame)
+	 */
+	@Override
+	public void onSend(MQTTFrame frame) {
+		trace(frame, true);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.fusesource.mqtt.client.Tracer#onReceive(org.fusesource.mqtt.codec.MQTTFrame)
+	 */
+	@Override
+	public void onReceive(MQTTFrame frame) {
+		trace(frame, false);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.fusesource.mqtt.client.Tracer#debug(java.lang.String, java.lang.Object[])
+	 */
+	@Override
+	public void debug(String message, Object... args) {
+		if (level == ISiteWhereMessaging.TRACE_LOG) {
+			Log.d(IMqttInteractionManager.TAG, String.format(Locale.US, message, args));
+		}
+	}
+
+	/**
+	 * Record a frame if tracing is enabled and it is selected by sampling.
+	 * 
+	 * @param frame
+	 * @param outbound
+	 */
+	protected void trace(MQTTFrame frame, boolean outbound) {
+		int current = level;
+		if (current == ISiteWhereMessaging.TRACE_OFF) {
+			return;
+		}
+		int interval = sampleInterval;
+		if ((interval > 1) && ((seen.getAndIncrement() % interval) != 0)) {
+			return;
+		}
+		int slot = (int) (recorded.getAndIncrement() & mask);
+		times[slot] = System.currentTimeMillis();
+		headers[slot] = frame.header();
+		sizes[slot] = getSize(frame);
+		sent[slot] = outbound;
+		if (current == ISiteWhereMessaging.TRACE_LOG) {
+			Log.d(IMqttInteractionManager.TAG, format(slot));
+		}
+	}
+
+	/**
+	 * Get the encoded size of a frame without copying its buffers.
+	 * 
+	 * @param frame
+	 * @return
+	 */
+	protected static int getSize(MQTTFrame frame) {
+		if (frame.buffers == null) {
+			return 0;
+		}
+		int size = 0;
+		for (int i = 0; i < frame.buffers.length; i++) {
+			if (frame.buffers[i] != null) {
+				size += frame.buffers[i].length;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Describe the frame held in a slot.
+	 * 
+	 * @param slot
+	 * @return
+	 */
+	protected String format(int slot) {
+		int header = headers[slot] & 0xff;
+		return String.format(Locale.US, "%tT.%<tL %s %s qos=%d%s%s size=%d", times[slot],
+				sent[slot] ? "SEND" : "RECV", FRAME_TYPES[header >>> 4], (header >> 1) & 0x03,
+				((header & 0x08) != 0) ? " dup" : "", ((header & 0x01) != 0) ? " retain" : "", sizes[slot]);
+	}
+
+	/**
+	 * Describe the frames held in the ring buffer, oldest first, one per line.
+	 * 
+	 * @return
+	 */
+	public String dump() {
+		long end = recorded.get();
+		long start = Math.max(0, end - (mask + 1));
+		StringBuilder sb = new StringBuilder();
+		for (long i = start; i < end; i++) {
+			sb.append(format((int) (i & mask))).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -43,6 +43,13 @@ public interface IMqttCallback {
 	 */
 	public void onCustomCommandReceived(String topic, byte[] payload);
 
+	/**
+	 * Called when the broker has acknowledged all sent messages up to and including the given id.
+	 * 
+	 * @param id
+	 */
+	public void onDelivered(long id);
+
 	/**
 	 * Called when a client is disconnected from SiteWhere.
 	 */
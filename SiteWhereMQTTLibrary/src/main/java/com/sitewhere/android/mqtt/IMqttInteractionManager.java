@@ -15,7 +15,8 @@
  */
 package com.sitewhere.android.mqtt;
 
-import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.FutureConnection;
+import org.fusesource.mqtt.client.QoS;
 
 /**
  * Allows interaction with MQTT implementation to be customized.
@@ -24,38 +25,62 @@ import org.fusesource.mqtt.client.BlockingConnection;
  */
 public interface IMqttInteractionManager {
 
+	/** Tag used when logging MQTT activity */
+	public static final String TAG = "MQTTService";
+
 	/**
 	 * Handle topic-related connect logic.
 	 * 
 	 * @param hardwareId
 	 * @param connection
+	 * @param resumed
+	 *            true if the connection resumed a persistent session that already holds the
+	 *            subscriptions
 	 * @throws SiteWhereMqttException
 	 */
-	public void connect(String hardwareId, BlockingConnection connection)
+	public void connect(String hardwareId, FutureConnection connection, boolean resumed)
 			throws SiteWhereMqttException;
 
 	/**
-	 * Send a message payload to SiteWhere.
+	 * Send a message payload to SiteWhere. Implementations may queue the payload and deliver it
+	 * asynchronously, reporting completion via {@link IMqttCallback#onDelivered(long)}.
 	 * 
 	 * @param payload
+	 * @param qos
+	 * @return id used to report delivery of the payload
 	 * @throws SiteWhereMqttException
 	 */
-	public void send(byte[] payload) throws SiteWhereMqttException;
+	public long send(byte[] payload, QoS qos) throws SiteWhereMqttException;
 
 	/**
 	 * Handle topic-related disconnect logic.
 	 * 
 	 * @param hardwareId
 	 * @param connection
+	 * @param keepSession
+	 *            true if subscriptions should be left in place for a persistent session
 	 * @throws SiteWhereMqttException
 	 */
-	public void disconnect(String hardwareId, BlockingConnection connection)
+	public void disconnect(String hardwareId, FutureConnection connection, boolean keepSession)
 			throws SiteWhereMqttException;
 
+	/**
+	 * Stop the threads that publish queued events and process received messages, whether or not a
+	 * connection is active. Called before the outbound queue is closed.
+	 */
+	public void shutdown();
+
 	/**
 	 * Set callback for MQTT message notifications.
 	 * 
 	 * @param callback
 	 */
 	public void setCallback(IMqttCallback callback);
-}
\ No newline at end of file
+
+	/**
+	 * Set the metrics updated while sending and receiving.
+	 * 
+	 * @param metrics
+	 */
+	public void setMetrics(ServiceMetrics metrics);
+}
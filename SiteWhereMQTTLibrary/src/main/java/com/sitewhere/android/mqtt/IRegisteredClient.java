@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+/**
+ * Client registered to receive notifications from the MQTT service. Keeps the dispatch and
+ * delivery tracking code independent of how clients are reached, so it runs outside of Android
+ * as well as for clients bound to the service.
+ * 
+ * @author Derek
+ */
+public interface IRegisteredClient {
+
+	/**
+	 * Get a name that identifies where the client came from. Used when naming client metrics.
+	 * 
+	 * @return
+	 */
+	public String getName();
+
+	/**
+	 * Called when connected to SiteWhere.
+	 * 
+	 * @throws SiteWhereMqttException
+	 */
+	public void connected() throws SiteWhereMqttException;
+
+	/**
+	 * Called when a system command is received.
+	 * 
+	 * @param payload
+	 * @throws SiteWhereMqttException
+	 */
+	public void receivedSystemCommand(byte[] payload) throws SiteWhereMqttException;
+
+	/**
+	 * Called when a custom command is received.
+	 * 
+	 * @param payload
+	 * @throws SiteWhereMqttException
+	 */
+	public void receivedCustomCommand(byte[] payload) throws SiteWhereMqttException;
+
+	/**
+	 * Called when all payloads sent by the client up to and including the given id are delivered.
+	 * 
+	 * @param id
+	 * @throws SiteWhereMqttException
+	 */
+	public void delivered(long id) throws SiteWhereMqttException;
+
+	/**
+	 * Called when payloads sent by the client could not be queued for delivery.
+	 * 
+	 * @param firstId
+	 * @param count
+	 * @throws SiteWhereMqttException
+	 */
+	public void sendFailed(long firstId, int count) throws SiteWhereMqttException;
+
+	/**
+	 * Called when disconnected from SiteWhere.
+	 * 
+	 * @throws SiteWhereMqttException
+	 */
+	public void disconnected() throws SiteWhereMqttException;
+
+	/**
+	 * Ask to be told when the client goes away without unregistering.
+	 * 
+	 * @param listener
+	 * @throws SiteWhereMqttException
+	 *             if the client is already gone
+	 */
+	public void linkToDeath(IDeathListener listener) throws SiteWhereMqttException;
+
+	/**
+	 * Stop listening for client death.
+	 * 
+	 * @param listener
+	 */
+	public void unlinkToDeath(IDeathListener listener);
+
+	/**
+	 * Receives notice that a client has gone away.
+	 * 
+	 * @author Derek
+	 */
+	public static interface IDeathListener {
+
+		/**
+		 * Called when the client is no longer reachable.
+		 */
+		public void clientDied();
+	}
+}
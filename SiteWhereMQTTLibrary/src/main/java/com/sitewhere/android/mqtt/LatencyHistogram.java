@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sitewhere.android.messaging.MetricsSnapshot;
+
+/**
+ * Records latencies in microseconds into power-of-two buckets. Recording is lock-free and does not
+ * allocate, so it is safe to use on hot paths from any thread.
+ * 
+ * @author Derek
+ */
+public class LatencyHistogram {
+
+	/** Number of buckets, enough to cover every positive long value */
+	public static final int BUCKET_COUNT = 64;
+
+	/** Number of values in each bucket */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	/** Number of recorded values */
+	private final AtomicLong count = new AtomicLong();
+
+	/** Sum of recorded values */
+	private final AtomicLong sum = new AtomicLong();
+
+	/** Largest recorded value */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record the time elapsed since a value previously returned by {@link System#nanoTime()}.
+	 * 
+	 * @param startNanos
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * Record a latency.
+	 * 
+	 * @param micros
+	 */
+	public void record(long micros) {
+		buckets.incrementAndGet(getBucket(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long current;
+		while (micros > (current = max.get())) {
+			if (max.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Get the bucket a value is counted in. Bucket zero holds values below one and bucket n holds
+	 * values from 2^(n-1) up to 2^n.
+	 * 
+	 * @param micros
+	 * @return
+	 */
+	protected static int getBucket(long micros) {
+		return (micros <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+	}
+
+	/**
+	 * Copy the current values. Values recorded while the copy is made may be partly included.
+	 * 
+	 * @return
+	 */
+	public MetricsSnapshot.Histogram snapshot() {
+		long[] copy = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			copy[i] = buckets.get(i);
+		}
+		return new MetricsSnapshot.Histogram(count.get(), sum.get(), max.get(), copy);
+	}
+}
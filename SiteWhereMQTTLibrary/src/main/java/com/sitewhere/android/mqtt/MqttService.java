@@ -15,14 +15,20 @@
  */
 package com.sitewhere.android.mqtt;
 
-import java.net.URISyntaxException;
-import java.util.Formatter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.FutureConnection;
 import org.fusesource.mqtt.client.MQTT;
-import org.fusesource.mqtt.client.Tracer;
-import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.client.QoS;
 
 import android.app.Service;
 import android.content.BroadcastReceiver;
@@ -30,15 +36,28 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.provider.Settings.Secure;
 import android.util.Log;
 
+import com.sitewhere.android.logging.AndroidLogHandler;
 import com.sitewhere.android.messaging.IFromSiteWhere;
 import com.sitewhere.android.messaging.ISiteWhereMessaging;
 import com.sitewhere.android.messaging.IToSiteWhere;
+import com.sitewhere.android.messaging.MetricsSnapshot;
+import com.sitewhere.android.messaging.ParcelableMetricsSnapshot;
+import com.sitewhere.android.messaging.PayloadFrames;
+import com.sitewhere.android.messaging.PayloadPipe;
+import com.sitewhere.android.messaging.SiteWhereMessagingException;
+import com.sitewhere.android.messaging.SubscriptionFilter;
 import com.sitewhere.android.mqtt.preferences.IMqttServicePreferences;
+import com.sitewhere.android.mqtt.queue.IOutboundEventQueue;
+import com.sitewhere.android.mqtt.queue.MappedSegmentQueue;
 
 /**
  * Service that provides MQTT connectivity to external apps.
@@ -48,32 +67,125 @@ import com.sitewhere.android.mqtt.preferences.IMqttServicePreferences;
 public class MqttService extends Service {
 
 	/** Log tag */
-	public static final String TAG = "MQTTService";
+	public static final String TAG = IMqttInteractionManager.TAG;
 
 	/** Application package prefix */
 	public static final String APP_ID = "com.sitewhere.mqtt";
 
-	/** MQTT client connection state */
-	public MqttConnectionState connectionState = MqttConnectionState.Disconnected;
+	/** Directory under app files that holds queued outbound events */
+	public static final String OUTBOUND_QUEUE_DIR = "sitewhere-outbound";
+
+	/** Prefix for MQTT client ids */
+	private static final String CLIENT_ID_PREFIX = "sw-";
+
+	/** Maximum length of an MQTT 3.1 client id */
+	private static final int MAX_CLIENT_ID_LENGTH = 23;
+
+	/** Control message that applies the most recently requested configuration */
+	private static final int MSG_CONFIGURE = 1;
+
+	/** Control message that reacts to a change in network state */
+	private static final int MSG_NETWORK_CHANGED = 2;
+
+	/** Control message that logs a metrics snapshot and schedules the next one */
+	private static final int MSG_DUMP_METRICS = 3;
+
+	/** Default interval between metrics dumps to the log */
+	public static final long DEFAULT_METRICS_DUMP_INTERVAL_MS = 5 * 60 * 1000;
+
+	/** Number of start requests received */
+	public static final String START_REQUESTS = "control.startRequests";
+
+	/** Number of start requests and network changes merged into one already pending */
+	public static final String COALESCED_REQUESTS = "control.coalescedRequests";
+
+	/** Number of control operations waiting to run */
+	public static final String CONTROL_DEPTH = "control.depth";
+
+	/** Number of outbound events waiting for acknowledgement */
+	public static final String OUTBOUND_DEPTH = "outbound.depth";
+
+	/** Number of live control threads */
+	public static final String CONTROL_THREADS = "threads.control";
+
+	/** Number of live reconnect scheduler threads */
+	public static final String RECONNECT_THREADS = "threads.reconnect";
+
+	/** Number of live client dispatcher threads */
+	public static final String DISPATCHER_THREADS = "threads.dispatcher";
 
 	/** MQTT client */
 	private MQTT mqtt;
 
 	/** MQTT connection */
-	private BlockingConnection connection;
+	private FutureConnection connection;
 
 	/** Manages interactions with MQTT pub/sub */
 	private IMqttInteractionManager mqttManager;
 
+	/** Holds outbound events until they are delivered */
+	private IOutboundEventQueue outboundQueue;
+
 	/** Manages client registration and notification */
 	private RegistrationManager registrationManager;
 
 	/** MQTT configuration */
-	private IMqttServicePreferences configuration;
+	private volatile IMqttServicePreferences configuration;
+
+	/** Thread that runs service control operations in order */
+	private HandlerThread controlThread;
+
+	/** Posts control operations to the control thread */
+	private Handler controlHandler;
+
+	/** Configuration waiting to be applied by the control thread */
+	private final AtomicReference<IMqttServicePreferences> pendingConfiguration =
+			new AtomicReference<IMqttServicePreferences>();
+
+	/** Counters, gauges and latency histograms for the service */
+	private final ServiceMetrics metrics = new ServiceMetrics();
+
+	/** Number of control operations waiting to run */
+	private final AtomicInteger controlQueueDepth = new AtomicInteger();
+
+	/** Number of start requests received */
+	private final AtomicLong startRequestCount = metrics.getCounter(START_REQUESTS);
+
+	/** Number of start requests and network changes merged into one already pending */
+	private final AtomicLong coalescedRequestCount = metrics.getCounter(COALESCED_REQUESTS);
+
+	/** Number of connection attempts */
+	private final AtomicLong connectAttempts = metrics.getCounter(ServiceMetrics.CONNECT_ATTEMPTS);
+
+	/** Number of failed connection attempts */
+	private final AtomicLong connectFailures = metrics.getCounter(ServiceMetrics.CONNECT_FAILURES);
+
+	/** Time taken by successful connection attempts */
+	private final LatencyHistogram connectLatency = metrics.getHistogram(ServiceMetrics.CONNECT_LATENCY);
+
+	/** Time spent in binder send calls */
+	private final LatencyHistogram sendLatency = metrics.getHistogram(ServiceMetrics.BINDER_LATENCY + "send");
+
+	/** Time spent in binder calls sending large payloads */
+	private final LatencyHistogram sendLargeLatency = metrics.getHistogram(ServiceMetrics.BINDER_LATENCY
+			+ "sendLarge");
+
+	/** Time spent in binder calls sending framed payloads */
+	private final LatencyHistogram sendFramedLatency = metrics.getHistogram(ServiceMetrics.BINDER_LATENCY
+			+ "sendFramed");
 
 	/** Network availability monitor */
 	private NetworkMonitor networkMonitor;
 
+	/** Schedules connection attempts and tracks connection state */
+	private ReconnectScheduler reconnectScheduler;
+
+	/** Records sampled MQTT frames for diagnostics */
+	private final FrameTracer frameTracer = new FrameTracer();
+
+	/** Remembers which broker session holds the command subscriptions */
+	private MqttSessionStore sessionStore;
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -82,56 +194,201 @@ public class MqttService extends Service {
 	@Override
 	public void onCreate() {
 		super.onCreate();
-
-		// Reset connection state.
-		connectionState = MqttConnectionState.Disconnected;
+		AndroidLogHandler.install();
 
 		// Start up management entities.
-		mqttManager = new DefaultMqttInteractionManager();
-		registrationManager = new RegistrationManager();
+		outboundQueue = createOutboundQueue();
+		mqttManager = createInteractionManager(outboundQueue);
+		mqttManager.setMetrics(metrics);
+		registrationManager = new RegistrationManager(metrics);
 		mqttManager.setCallback(registrationManager);
+		sessionStore = new MqttSessionStore(this);
+		registerGauges();
+
+		controlThread = new HandlerThread(TAG);
+		controlThread.start();
+		controlHandler = new Handler(controlThread.getLooper(), new ControlCallback());
+		scheduleMetricsDump();
 
 		prepareMqtt();
+		reconnectScheduler = createReconnectScheduler();
+		reconnectScheduler.start();
 		startMonitoringNetwork();
 	}
 
 	/**
-	 * Configures the MQTT top-level settings. No connection is created until the service is
-	 * requested.
+	 * Register gauges for queue depths and threads owned by the service.
 	 */
-	protected void prepareMqtt() {
-		this.mqtt = new MQTT();
-		mqtt.setConnectAttemptsMax(1);
-		mqtt.setReconnectAttemptsMax(1);
-		mqtt.setKeepAlive((short) 300);
-		mqtt.setTracer(new Tracer() {
+	protected void registerGauges() {
+		metrics.setGauge(CONTROL_DEPTH, new ServiceMetrics.IGauge() {
 
 			@Override
-			public void debug(String message, Object... args) {
-				super.debug(message, args);
-				StringBuilder sb = new StringBuilder();
-				Formatter formatter = new Formatter(sb, Locale.US);
-				try {
-					Log.d(TAG, formatter.format(message, args).toString());
-				} finally {
-					formatter.close();
-				}
+			public long getValue() {
+				return controlQueueDepth.get();
+			}
+		});
+		metrics.setGauge(OUTBOUND_DEPTH, new ServiceMetrics.IGauge() {
+
+			@Override
+			public long getValue() {
+				return outboundQueue.getPendingCount();
+			}
+		});
+		metrics.setGauge(CONTROL_THREADS, new ServiceMetrics.IGauge() {
+
+			@Override
+			public long getValue() {
+				return ((controlThread != null) && (controlThread.isAlive())) ? 1 : 0;
+			}
+		});
+		metrics.setGauge(RECONNECT_THREADS, new ServiceMetrics.IGauge() {
+
+			@Override
+			public long getValue() {
+				return (reconnectScheduler != null) ? reconnectScheduler.getLiveThreadCount() : 0;
+			}
+		});
+		metrics.setGauge(DISPATCHER_THREADS, new ServiceMetrics.IGauge() {
+
+			@Override
+			public long getValue() {
+				return registrationManager.getLiveDispatcherCount();
+			}
+		});
+	}
+
+	/**
+	 * Get the interval between metrics dumps to the log.
+	 * 
+	 * @return interval in milliseconds or zero to disable dumps
+	 */
+	protected long getMetricsDumpInterval() {
+		return DEFAULT_METRICS_DUMP_INTERVAL_MS;
+	}
+
+	/**
+	 * Schedule the next metrics dump on the control thread.
+	 */
+	protected void scheduleMetricsDump() {
+		long interval = getMetricsDumpInterval();
+		if (interval > 0) {
+			controlHandler.sendEmptyMessageDelayed(MSG_DUMP_METRICS, interval);
+		}
+	}
+
+	/**
+	 * Write a metrics snapshot to the log.
+	 */
+	protected void dumpMetrics() {
+		Log.i(TAG, "Service metrics:\n" + getMetrics());
+	}
+
+	/**
+	 * Get a snapshot of service counters, queue depths and latency histograms.
+	 * 
+	 * @return
+	 */
+	public MetricsSnapshot getMetrics() {
+		return metrics.snapshot();
+	}
+
+	/**
+	 * Creates the scheduler that makes connection attempts.
+	 * 
+	 * @return
+	 */
+	protected ReconnectScheduler createReconnectScheduler() {
+		return new ReconnectScheduler(new ReconnectScheduler.IConnectionHandler() {
+
+			@Override
+			public boolean canConnect() {
+				return hasBeenConfigured() && isOnline();
 			}
 
 			@Override
-			public void onReceive(MQTTFrame frame) {
-				super.onReceive(frame);
-				Log.d(TAG, frame.toString());
+			public boolean isConnected() {
+				return isMqttConnected();
 			}
 
 			@Override
-			public void onSend(MQTTFrame frame) {
-				super.onSend(frame);
-				Log.d(TAG, frame.toString());
+			public void connect() throws Exception {
+				MqttService.this.connect();
+			}
+
+			@Override
+			public void disconnect() {
+				MqttService.this.disconnect();
 			}
 		});
 	}
 
+	/**
+	 * Creates the persistent queue that holds outbound events while they wait for delivery.
+	 * 
+	 * @return
+	 */
+	protected IOutboundEventQueue createOutboundQueue() {
+		try {
+			return new MappedSegmentQueue(new File(getFilesDir(), OUTBOUND_QUEUE_DIR));
+		} catch (SiteWhereMqttException e) {
+			throw new RuntimeException("Unable to open outbound event queue.", e);
+		}
+	}
+
+	/**
+	 * Creates the manager that handles MQTT publish and subscribe interactions.
+	 * 
+	 * @param queue
+	 * @return
+	 */
+	protected IMqttInteractionManager createInteractionManager(IOutboundEventQueue queue) {
+		return new DefaultMqttInteractionManager(queue);
+	}
+
+	/**
+	 * Configures the MQTT top-level settings. No connection is created until the service is
+	 * requested.
+	 */
+	protected void prepareMqtt() {
+		this.mqtt = new MQTT();
+		mqtt.setConnectAttemptsMax(1);
+		mqtt.setReconnectAttemptsMax(0);
+		mqtt.setKeepAlive((short) 300);
+		frameTracer.configure(getDefaultTraceLevel(), 1);
+		mqtt.setTracer(frameTracer);
+	}
+
+	/**
+	 * Get the MQTT frame trace level used until a client changes it.
+	 * 
+	 * @return one of the TRACE_* constants in {@link ISiteWhereMessaging}
+	 */
+	protected int getDefaultTraceLevel() {
+		return ISiteWhereMessaging.TRACE_OFF;
+	}
+
+	/**
+	 * Set the MQTT frame trace level and sampling interval.
+	 * 
+	 * @param level
+	 *            one of the TRACE_* constants in {@link ISiteWhereMessaging}
+	 * @param sampleInterval
+	 *            record one of every this many frames
+	 */
+	public void setFrameTracing(int level, int sampleInterval) {
+		frameTracer.configure(level, sampleInterval);
+		Log.d(TAG, "Frame tracing set to level " + level + " sampling 1 in " + sampleInterval + ".");
+	}
+
+	/**
+	 * Get the MQTT frames held in the trace buffer, oldest first.
+	 * 
+	 * @return
+	 */
+	public String dumpFrameTrace() {
+		return frameTracer.dump();
+	}
+
 	/**
 	 * Starts listening for network broadcasts to so we can shut down or start back up
 	 * automatically.
@@ -152,7 +409,10 @@ public class MqttService extends Service {
 	public void onDestroy() {
 		super.onDestroy();
 		stopMonitoringNetwork();
-		disconnect();
+		controlThread.quit();
+		reconnectScheduler.shutdown();
+		mqttManager.shutdown();
+		outboundQueue.close();
 	}
 
 	/**
@@ -166,62 +426,155 @@ public class MqttService extends Service {
 	}
 
 	/**
-	 * Reconnect to the MQTT broker.
+	 * Reconnect to the MQTT broker, dropping any existing connection.
 	 */
 	protected void reconnect() {
 		if (!hasBeenConfigured()) {
 			Log.d(TAG, "Reconnect called without client having configured settings. Ignoring.");
 			return;
 		}
-		if (connectionState == MqttConnectionState.Connecting) {
-			Log.d(TAG, "Connection request ignored. Already in process of connecting...");
-			return;
+		reconnectScheduler.requestReconnect();
+	}
+
+	/**
+	 * Connect to the MQTT broker. Called on the {@link ReconnectScheduler} thread.
+	 * 
+	 * @throws Exception
+	 */
+	protected void connect() throws Exception {
+		Log.d(TAG, "Connecting to MQTT...");
+		connectAttempts.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			connectSession();
+		} catch (Exception e) {
+			connectFailures.incrementAndGet();
+			throw e;
+		}
+		connectLatency.recordSince(start);
+	}
+
+	/**
+	 * Connect to the broker and set up the session for the configured hardware id.
+	 * 
+	 * @throws Exception
+	 */
+	protected void connectSession() throws Exception {
+		IMqttServicePreferences config = configuration;
+		String hardwareId = config.getDeviceHardwareId();
+		String clientId = getClientId(hardwareId);
+		boolean persistent = isPersistentSession();
+		mqtt.setClientId(clientId);
+		mqtt.setCleanSession(!persistent);
+		mqtt.setHost(config.getBrokerHostname(), config.getBrokerPort());
+		connection = mqtt.futureConnection();
+		connection.connect().await();
+		Log.d(TAG, "Connected to MQTT.");
+
+		String session = MqttSessionStore.getSessionId(config.getBrokerHostname(),
+				config.getBrokerPort(), clientId, hardwareId);
+		boolean resumed = persistent && sessionStore.isSubscribed(session);
+		mqttManager.connect(hardwareId, connection, resumed);
+		if (persistent) {
+			sessionStore.setSubscribed(session);
+		} else {
+			sessionStore.clear();
 		}
+		registrationManager.connected();
+	}
 
-		new Thread(new Runnable() {
+	/**
+	 * Indicates whether the broker should keep subscriptions and queue commands while the device is
+	 * disconnected. When true, the connection does not request a clean session and disconnecting
+	 * leaves subscriptions in place.
+	 * 
+	 * @return
+	 */
+	protected boolean isPersistentSession() {
+		return true;
+	}
 
-			@Override
-			public void run() {
-				Log.d(TAG, "Connecting to MQTT...");
-				connectionState = MqttConnectionState.Connecting;
-
-				disconnect();
-
-				try {
-					mqtt.setHost(configuration.getBrokerHostname(), configuration.getBrokerPort());
-					connection = mqtt.blockingConnection();
-					connection.connect();
-					Log.d(TAG, "Connected to MQTT.");
-					mqttManager.connect(configuration.getDeviceHardwareId(), connection);
-					registrationManager.connected();
-					connectionState = MqttConnectionState.Connected;
-				} catch (URISyntaxException e) {
-					Log.d(TAG, "Error setting MQTT host.", e);
-					connectionState = MqttConnectionState.Disconnected;
-				} catch (Exception e) {
-					Log.d(TAG, "Error connecting to MQTT host.", e);
-					connectionState = MqttConnectionState.Disconnected;
-				}
+	/**
+	 * Get the MQTT client id for a hardware id. The id must be stable for the broker to resume a
+	 * persistent session, and is hashed if the hardware id is too long to use directly.
+	 * 
+	 * @param hardwareId
+	 * @return
+	 */
+	protected String getClientId(String hardwareId) {
+		String clientId = CLIENT_ID_PREFIX + hardwareId;
+		if (clientId.length() <= MAX_CLIENT_ID_LENGTH) {
+			return clientId;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(hardwareId.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(CLIENT_ID_PREFIX);
+			for (int i = 0; hex.length() < MAX_CLIENT_ID_LENGTH; i++) {
+				hex.append(String.format(Locale.US, "%02x", hash[i]));
 			}
-		}, TAG).start();
+			return hex.substring(0, MAX_CLIENT_ID_LENGTH);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Unable to hash hardware id for client id.", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("Unable to hash hardware id for client id.", e);
+		}
 	}
 
 	/**
-	 * Disconnect from the MQTT broker.
+	 * Disconnect from the MQTT broker. The interaction manager threads are stopped even if the
+	 * connection has already been lost.
 	 */
 	protected void disconnect() {
 		if (isMqttConnected()) {
 			try {
 				Log.d(TAG, "Disconnecting from MQTT...");
-				mqttManager.disconnect(configuration.getDeviceHardwareId(), connection);
-				connection.disconnect();
+				mqttManager.disconnect(configuration.getDeviceHardwareId(), connection,
+						isPersistentSession());
+				connection.disconnect().await();
 				connection = null;
-				connectionState = MqttConnectionState.Disconnected;
 				registrationManager.disconnected();
 			} catch (Exception e) {
 				Log.d(TAG, "Error disconnecting from MQTT.", e);
 			}
 		}
+		mqttManager.shutdown();
+	}
+
+	/**
+	 * Get current state of the MQTT connection.
+	 * 
+	 * @return
+	 */
+	public MqttConnectionState getConnectionState() {
+		return reconnectScheduler.getState();
+	}
+
+	/**
+	 * Get number of control operations waiting to run.
+	 * 
+	 * @return
+	 */
+	public int getControlQueueDepth() {
+		return controlQueueDepth.get();
+	}
+
+	/**
+	 * Get number of start requests received.
+	 * 
+	 * @return
+	 */
+	public long getStartRequestCount() {
+		return startRequestCount.get();
+	}
+
+	/**
+	 * Get number of start requests and network changes merged into one that was already pending.
+	 * 
+	 * @return
+	 */
+	public long getCoalescedRequestCount() {
+		return coalescedRequestCount.get();
 	}
 
 	/**
@@ -263,13 +616,8 @@ public class MqttService extends Service {
 	 * @see android.app.Service#onStart(android.content.Intent, int)
 	 */
 	@Override
-	public void onStart(final Intent intent, final int startId) {
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				handleStart(intent, startId);
-			}
-		}, TAG).start();
+	public void onStart(Intent intent, int startId) {
+		handleStart(intent, startId);
 	}
 
 	/*
@@ -278,30 +626,52 @@ public class MqttService extends Service {
 	 * @see android.app.Service#onStartCommand(android.content.Intent, int, int)
 	 */
 	@Override
-	public int onStartCommand(final Intent intent, int flags, final int startId) {
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				handleStart(intent, startId);
-			}
-		}, TAG).start();
-
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		handleStart(intent, startId);
 		return Service.START_REDELIVER_INTENT;
 	}
 
 	/**
-	 * Common handler for start request from application.
+	 * Common handler for start request from application. The configuration is handed to the control
+	 * thread. If an earlier configuration has not been applied yet, it is replaced so that a burst of
+	 * start requests results in a single reconfiguration.
 	 * 
 	 * @param intent
 	 * @param startId
 	 */
-	protected synchronized void handleStart(Intent intent, int startId) {
+	protected void handleStart(Intent intent, int startId) {
+		startRequestCount.incrementAndGet();
+		if (intent == null) {
+			return;
+		}
 		IMqttServicePreferences inConfig = intent
 				.getParcelableExtra(ISiteWhereMessaging.EXTRA_CONFIGURATION);
 		if (inConfig == null) {
 			return;
 		}
+		if (pendingConfiguration.getAndSet(inConfig) != null) {
+			coalescedRequestCount.incrementAndGet();
+			return;
+		}
+		postControl(MSG_CONFIGURE);
+	}
+
+	/**
+	 * Post a control operation to the control thread.
+	 * 
+	 * @param what
+	 */
+	protected void postControl(int what) {
+		controlQueueDepth.incrementAndGet();
+		controlHandler.sendEmptyMessage(what);
+	}
 
+	/**
+	 * Apply a configuration requested by a client. Called on the control thread.
+	 * 
+	 * @param inConfig
+	 */
+	protected void applyConfiguration(IMqttServicePreferences inConfig) {
 		// Store hardware id for later use.
 		boolean needsReconnect = true;
 		if (this.configuration == null) {
@@ -321,13 +691,10 @@ public class MqttService extends Service {
 			needsReconnect = false;
 		}
 
-		if ((!isMqttConnected()) || (needsReconnect)) {
-			if (isOnline()) {
-				reconnect();
-			} else {
-				// Indicate that we are waiting for the network.
-				connectionState = MqttConnectionState.WaitingForNetwork;
-			}
+		if (needsReconnect) {
+			reconnect();
+		} else if (!isMqttConnected()) {
+			reconnectScheduler.requestConnect();
 		}
 	}
 
@@ -354,8 +721,21 @@ public class MqttService extends Service {
 		 */
 		@Override
 		public void register(IFromSiteWhere client) throws RemoteException {
+			registerFiltered(client, null);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.android.messaging.IToSiteWhere#registerFiltered(com.sitewhere.android.messaging
+		 * .IFromSiteWhere, com.sitewhere.android.messaging.SubscriptionFilter)
+		 */
+		@Override
+		public void registerFiltered(IFromSiteWhere client, SubscriptionFilter filter)
+				throws RemoteException {
 			Log.d(TAG, "Sending register request...");
-			registrationManager.addClient(client);
+			registrationManager.addClient(new BinderClient(client), filter);
 
 			// If we were already connected, make sure the client knows.
 			if (isMqttConnected()) {
@@ -370,14 +750,130 @@ public class MqttService extends Service {
 		 */
 		@Override
 		public void send(byte[] payload) throws RemoteException {
+			sendWithQos(payload, ISiteWhereMessaging.QOS_EXACTLY_ONCE);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#sendWithQos(byte[], int)
+		 */
+		@Override
+		public void sendWithQos(byte[] payload, int qos) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				queue(payload, qos);
+			} finally {
+				sendLatency.recordSince(start);
+			}
+		}
+
+		/**
+		 * Add a payload to the outbound queue.
+		 * 
+		 * @param payload
+		 * @param qos
+		 * @throws RemoteException
+		 */
+		private void queue(byte[] payload, int qos) throws RemoteException {
+			if ((qos < 0) || (qos >= QoS.values().length)) {
+				Log.e(TAG, "Invalid quality of service requested: " + qos);
+				throw new RemoteException();
+			}
 			try {
-				mqttManager.send(payload);
+				mqttManager.send(payload, QoS.values()[qos]);
 			} catch (SiteWhereMqttException e) {
 				Log.e(TAG, "Error sending message.", e);
 				throw new RemoteException();
 			}
 		}
 
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.sitewhere.android.messaging.IToSiteWhere#sendFramed(com.sitewhere.android.messaging
+		 * .IFromSiteWhere, long, int, byte[], int)
+		 */
+		@Override
+		public void sendFramed(IFromSiteWhere client, long firstId, int count, byte[] frames, int qos)
+				throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				queueFramed(new BinderClient(client), firstId, count, frames, qos);
+			} finally {
+				sendFramedLatency.recordSince(start);
+			}
+		}
+
+		/**
+		 * Add framed payloads to the outbound queue and track their delivery. If the frames can not be
+		 * decoded into the declared number of payloads, none of them are queued and the whole id range
+		 * is reported as failed.
+		 * 
+		 * @param client
+		 * @param firstId
+		 * @param count
+		 * @param frames
+		 * @param qos
+		 */
+		private void queueFramed(IRegisteredClient client, long firstId, int count, byte[] frames,
+				int qos) {
+			DeliveryTracker tracker = registrationManager.getDeliveryTracker();
+			List<byte[]> payloads;
+			try {
+				payloads = PayloadFrames.decode(frames);
+			} catch (SiteWhereMessagingException e) {
+				Log.e(TAG, "Received invalid framed payloads.", e);
+				tracker.failed(client, firstId, count);
+				return;
+			}
+			if (payloads.size() != count) {
+				Log.e(TAG, "Received " + payloads.size() + " framed payloads but expected " + count + ".");
+				tracker.failed(client, firstId, count);
+				return;
+			}
+			if ((qos < 0) || (qos >= QoS.values().length)) {
+				Log.e(TAG, "Invalid quality of service requested: " + qos);
+				tracker.failed(client, firstId, count);
+				return;
+			}
+			QoS level = QoS.values()[qos];
+			long sequence = -1;
+			int sent = 0;
+			try {
+				for (byte[] payload : payloads) {
+					sequence = mqttManager.send(payload, level);
+					sent++;
+				}
+			} catch (SiteWhereMqttException e) {
+				Log.e(TAG, "Error sending framed message.", e);
+				tracker.failed(client, firstId + sent, payloads.size() - sent);
+			}
+			if (sent > 0) {
+				tracker.track(client, firstId + sent - 1, sequence);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#sendLarge(android.os.ParcelFileDescriptor,
+		 * int, int)
+		 */
+		@Override
+		public void sendLarge(ParcelFileDescriptor payload, int length, int qos) throws RemoteException {
+			long start = System.nanoTime();
+			try {
+				queue(PayloadPipe.read(payload, length), qos);
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to read large payload.", e);
+				throw new RemoteException();
+			} finally {
+				sendLargeLatency.recordSince(start);
+			}
+		}
+
 		/*
 		 * (non-Javadoc)
 		 * 
@@ -388,7 +884,42 @@ public class MqttService extends Service {
 		@Override
 		public void unregister(IFromSiteWhere client) throws RemoteException {
 			Log.d(TAG, "Sending unregister request...");
-			registrationManager.removeClient(client);
+			registrationManager.removeClient(new BinderClient(client));
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#getMetrics()
+		 */
+		@Override
+		public ParcelableMetricsSnapshot getMetrics() throws RemoteException {
+			return new ParcelableMetricsSnapshot(MqttService.this.getMetrics());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#setFrameTracing(int, int)
+		 */
+		@Override
+		public void setFrameTracing(int level, int sampleInterval) throws RemoteException {
+			try {
+				MqttService.this.setFrameTracing(level, sampleInterval);
+			} catch (IllegalArgumentException e) {
+				Log.e(TAG, "Invalid frame tracing settings.", e);
+				throw new RemoteException();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.sitewhere.android.messaging.IToSiteWhere#dumpFrameTrace()
+		 */
+		@Override
+		public String dumpFrameTrace() throws RemoteException {
+			return MqttService.this.dumpFrameTrace();
 		}
 	};
 
@@ -422,16 +953,54 @@ public class MqttService extends Service {
 		@Override
 		public void onReceive(Context context, Intent intent) {
 			Log.d(TAG, "Network status change detected.");
-			if (!isOnline()) {
-				if (isMqttConnected()) {
-					disconnect();
-					connectionState = MqttConnectionState.WaitingForNetwork;
-				}
-			} else {
-				if ((!isMqttConnected()) && (hasBeenConfigured())) {
-					reconnect();
+			if (controlHandler.hasMessages(MSG_NETWORK_CHANGED)) {
+				coalescedRequestCount.incrementAndGet();
+				return;
+			}
+			postControl(MSG_NETWORK_CHANGED);
+		}
+	}
+
+	/**
+	 * React to a change in network state. Called on the control thread.
+	 */
+	protected void handleNetworkChanged() {
+		if (!isOnline()) {
+			reconnectScheduler.networkLost();
+		} else if (hasBeenConfigured()) {
+			reconnectScheduler.requestConnect();
+		}
+	}
+
+	/**
+	 * Runs control operations posted to the control thread.
+	 * 
+	 * @author Derek
+	 */
+	private class ControlCallback implements Handler.Callback {
+
+		@Override
+		public boolean handleMessage(Message message) {
+			if (message.what == MSG_DUMP_METRICS) {
+				dumpMetrics();
+				scheduleMetricsDump();
+				return true;
+			}
+			controlQueueDepth.decrementAndGet();
+			switch (message.what) {
+			case MSG_CONFIGURE: {
+				IMqttServicePreferences inConfig = pendingConfiguration.getAndSet(null);
+				if (inConfig != null) {
+					applyConfiguration(inConfig);
 				}
+				return true;
+			}
+			case MSG_NETWORK_CHANGED: {
+				handleNetworkChanged();
+				return true;
+			}
 			}
+			return false;
 		}
 	}
 }
\ No newline at end of file
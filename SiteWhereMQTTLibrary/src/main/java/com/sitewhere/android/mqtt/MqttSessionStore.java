@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Records which broker session already holds the command subscriptions, so a reconnect that resumes
+ * a persistent session does not need to wait for a new subscribe round trip.
+ * 
+ * @author Derek
+ */
+public class MqttSessionStore {
+
+	/** Name of preferences file holding session state */
+	private static final String PREFS_NAME = "sitewhere-mqtt-session";
+
+	/** Key for identifier of the subscribed session */
+	private static final String KEY_SUBSCRIBED_SESSION = "subscribed_session";
+
+	/** Stores session state */
+	private final SharedPreferences prefs;
+
+	public MqttSessionStore(Context context) {
+		this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * Indicates whether the given session is known to hold the command subscriptions.
+	 * 
+	 * @param session
+	 * @return
+	 */
+	public boolean isSubscribed(String session) {
+		return session.equals(prefs.getString(KEY_SUBSCRIBED_SESSION, null));
+	}
+
+	/**
+	 * Record that the given session holds the command subscriptions.
+	 * 
+	 * @param session
+	 */
+	public void setSubscribed(String session) {
+		prefs.edit().putString(KEY_SUBSCRIBED_SESSION, session).commit();
+	}
+
+	/**
+	 * Forget any recorded session.
+	 */
+	public void clear() {
+		prefs.edit().remove(KEY_SUBSCRIBED_SESSION).commit();
+	}
+
+	/**
+	 * Build an identifier for a session from the broker address, client id and hardware id.
+	 * 
+	 * @param host
+	 * @param port
+	 * @param clientId
+	 * @param hardwareId
+	 * @return
+	 */
+	public static String getSessionId(String host, int port, String clientId, String hardwareId) {
+		return clientId + "@" + host + ":" + port + "/" + hardwareId;
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sitewhere.android.logging.Log;
+
+/**
+ * Owns the MQTT connection state and performs all connect and disconnect operations on a single
+ * thread. Requests to connect are coalesced, so repeated triggers from start requests and network
+ * broadcasts result in at most one pending attempt. Failed attempts are retried with capped
+ * exponential backoff and random jitter so that many devices reconnecting after a broker restart
+ * spread their attempts out. A periodic check detects connections that dropped without a network
+ * broadcast.
+ * 
+ * @author Derek
+ */
+public class ReconnectScheduler {
+
+	/** Default delay before the first retry */
+	public static final long DEFAULT_INITIAL_DELAY_MS = 1000;
+
+	/** Default maximum delay between retries */
+	public static final long DEFAULT_MAX_DELAY_MS = 5 * 60 * 1000;
+
+	/** Default interval between connection health checks */
+	public static final long DEFAULT_CHECK_INTERVAL_MS = 30 * 1000;
+
+	/** Time allowed for disconnect when shutting down */
+	private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
+	/** Performs connect and disconnect operations */
+	private final IConnectionHandler handler;
+
+	/** Delay before first retry */
+	private final long initialDelayMs;
+
+	/** Maximum delay between retries */
+	private final long maxDelayMs;
+
+	/** Interval between connection health checks */
+	private final long checkIntervalMs;
+
+	/** Number of scheduler threads currently running */
+	private final AtomicInteger liveThreads = new AtomicInteger();
+
+	/** Single thread used for all connection operations */
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					return new Thread(new Runnable() {
+
+						@Override
+						public void run() {
+							liveThreads.incrementAndGet();
+							try {
+								runnable.run();
+							} finally {
+								liveThreads.decrementAndGet();
+							}
+						}
+					}, "SiteWhere reconnect");
+				}
+			});
+
+	/** Source of jitter */
+	private final Random random = new Random();
+
+	/** Current connection state */
+	private volatile MqttConnectionState state = MqttConnectionState.Disconnected;
+
+	/** Pending connection attempt */
+	private ScheduledFuture<?> pendingAttempt;
+
+	/** Indicates the next attempt should drop an existing connection first */
+	private boolean restartRequested;
+
+	/** Number of consecutive failed attempts */
+	private int failures;
+
+	public ReconnectScheduler(IConnectionHandler handler) {
+		this(handler, DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_CHECK_INTERVAL_MS);
+	}
+
+	public ReconnectScheduler(IConnectionHandler handler, long initialDelayMs, long maxDelayMs,
+			long checkIntervalMs) {
+		this.handler = handler;
+		this.initialDelayMs = initialDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.checkIntervalMs = checkIntervalMs;
+	}
+
+	/**
+	 * Start periodic connection health checks.
+	 */
+	public void start() {
+		executor.scheduleWithFixedDelay(new HealthCheck(), checkIntervalMs, checkIntervalMs,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Request a connection if not already connected. Has no effect if an attempt is already pending.
+	 */
+	public synchronized void requestConnect() {
+		if (pendingAttempt != null) {
+			return;
+		}
+		pendingAttempt = executor.schedule(new ConnectAttempt(), jitter(initialDelayMs),
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Request that any existing connection be dropped and a new one made, for instance after a
+	 * configuration change.
+	 */
+	public synchronized void requestReconnect() {
+		restartRequested = true;
+		failures = 0;
+		if (pendingAttempt != null) {
+			pendingAttempt.cancel(false);
+		}
+		pendingAttempt = executor.schedule(new ConnectAttempt(), 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Drop the connection because the network is unavailable. No attempts are made until another
+	 * connect is requested.
+	 */
+	public synchronized void networkLost() {
+		if (pendingAttempt != null) {
+			pendingAttempt.cancel(false);
+			pendingAttempt = null;
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				handler.disconnect();
+				state = MqttConnectionState.WaitingForNetwork;
+			}
+		});
+	}
+
+	/**
+	 * Disconnect and stop the scheduler thread.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			if (pendingAttempt != null) {
+				pendingAttempt.cancel(false);
+				pendingAttempt = null;
+			}
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				handler.disconnect();
+				state = MqttConnectionState.Disconnected;
+			}
+		});
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Get delay before the next retry based on the number of consecutive failures.
+	 * 
+	 * @param failures
+	 * @return
+	 */
+	protected long getBackoffDelay(int failures) {
+		long delay = initialDelayMs << Math.min(failures - 1, 30);
+		return jitter(((delay <= 0) || (delay > maxDelayMs)) ? maxDelayMs : delay);
+	}
+
+	/**
+	 * Pick a random delay between half the given delay and the full delay.
+	 * 
+	 * @param delay
+	 * @return
+	 */
+	protected long jitter(long delay) {
+		long half = delay / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (delay - half));
+		}
+	}
+
+	/**
+	 * Schedule a retry after a failed attempt.
+	 */
+	protected synchronized void scheduleRetry() {
+		if (pendingAttempt != null) {
+			return;
+		}
+		long delay = getBackoffDelay(failures);
+		Log.d(IMqttInteractionManager.TAG, "Retrying MQTT connection in " + delay + "ms.");
+		pendingAttempt = executor.schedule(new ConnectAttempt(), delay, TimeUnit.MILLISECONDS);
+	}
+
+	public MqttConnectionState getState() {
+		return state;
+	}
+
+	public int getLiveThreadCount() {
+		return liveThreads.get();
+	}
+
+	/**
+	 * Performs the work of connecting and disconnecting.
+	 * 
+	 * @author Derek
+	 */
+	public static interface IConnectionHandler {
+
+		/**
+		 * Indicates whether a connection can be attempted, for instance that configuration has been
+		 * received and the network is available.
+		 * 
+		 * @return
+		 */
+		public boolean canConnect();
+
+		/**
+		 * Indicates whether the connection is currently established.
+		 * 
+		 * @return
+		 */
+		public boolean isConnected();
+
+		/**
+		 * Establish a connection.
+		 * 
+		 * @throws Exception
+		 */
+		public void connect() throws Exception;
+
+		/**
+		 * Drop the connection if one is established.
+		 */
+		public void disconnect();
+	}
+
+	/**
+	 * Makes a single connection attempt on the scheduler thread.
+	 * 
+	 * @author Derek
+	 */
+	private class ConnectAttempt implements Runnable {
+
+		@Override
+		public void run() {
+			boolean restart;
+			synchronized (ReconnectScheduler.this) {
+				pendingAttempt = null;
+				restart = restartRequested;
+				restartRequested = false;
+			}
+			if (!handler.canConnect()) {
+				state = MqttConnectionState.WaitingForNetwork;
+				return;
+			}
+			if ((!restart) && (handler.isConnected())) {
+				state = MqttConnectionState.Connected;
+				return;
+			}
+			state = MqttConnectionState.Connecting;
+			handler.disconnect();
+			try {
+				handler.connect();
+				synchronized (ReconnectScheduler.this) {
+					failures = 0;
+				}
+				state = MqttConnectionState.Connected;
+			} catch (Exception e) {
+				Log.d(IMqttInteractionManager.TAG, "Error connecting to MQTT host.", e);
+				state = MqttConnectionState.Disconnected;
+				synchronized (ReconnectScheduler.this) {
+					failures++;
+				}
+				scheduleRetry();
+			}
+		}
+	}
+
+	/**
+	 * Requests a connection if the connection was lost without notice.
+	 * 
+	 * @author Derek
+	 */
+	private class HealthCheck implements Runnable {
+
+		@Override
+		public void run() {
+			if ((state == MqttConnectionState.Connected) && (!handler.isConnected())) {
+				Log.d(IMqttInteractionManager.TAG, "MQTT connection lost. Scheduling reconnect.");
+				state = MqttConnectionState.Disconnected;
+				requestConnect();
+			}
+		}
+	}
+}
@@ -15,87 +15,280 @@
  */
 package com.sitewhere.android.mqtt;
 
-import java.util.ArrayList;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.os.RemoteException;
-import android.util.Log;
-
-import com.sitewhere.android.messaging.IFromSiteWhere;
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.messaging.ICommandFilter;
+import com.sitewhere.android.mqtt.ClientDispatcher.INotification;
+import com.sitewhere.android.protobuf.CompactCommandCodec;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device;
 
 /**
- * Manages list of registered clients and sends commands to them.
+ * Manages list of registered clients and sends commands to them. Each client has its own
+ * {@link ClientDispatcher} so notifications are delivered in order per client without a slow client
+ * holding up the others.
  * 
  * @author Derek
  */
-public class RegistrationManager implements IMqttCallback {
+public class RegistrationManager implements IMqttCallback, ClientDispatcher.IListener {
+
+	/** Type code for a string in a Java serialization stream */
+	private static final byte TC_STRING = 0x74;
+
+	/** Default number of notifications queued per client */
+	public static final int DEFAULT_CLIENT_QUEUE_CAPACITY = 256;
+
+	/** Notifies a client that SiteWhere is connected */
+	private static final INotification CONNECTED = new INotification() {
+
+		@Override
+		public void deliver(IRegisteredClient client) throws SiteWhereMqttException {
+			client.connected();
+		}
+	};
+
+	/** Notifies a client that SiteWhere is disconnected */
+	private static final INotification DISCONNECTED = new INotification() {
+
+		@Override
+		public void deliver(IRegisteredClient client) throws SiteWhereMqttException {
+			client.disconnected();
+		}
+	};
+
+	/** Clients interested in data from SiteWhere */
+	private final ClientRegistry clients = new ClientRegistry();
+
+	/** Reports delivery of framed sends back to clients */
+	private DeliveryTracker deliveryTracker = new DeliveryTracker();
+
+	/** Number of notifications queued per client */
+	private final int clientQueueCapacity;
+
+	/** Action taken when a client queue is full */
+	private final ClientOverflowPolicy overflowPolicy;
 
-	/** List of clients interested in data from SiteWhere */
-	private List<IFromSiteWhere> clients = new ArrayList<IFromSiteWhere>();
+	/** Metrics updated by client dispatchers */
+	private final ServiceMetrics metrics;
+
+	/** Used to give each client a unique name in metrics */
+	private final AtomicInteger clientCount = new AtomicInteger();
+
+	public RegistrationManager() {
+		this(new ServiceMetrics());
+	}
+
+	public RegistrationManager(ServiceMetrics metrics) {
+		this(DEFAULT_CLIENT_QUEUE_CAPACITY, ClientOverflowPolicy.DropOldest, metrics);
+	}
+
+	public RegistrationManager(int clientQueueCapacity, ClientOverflowPolicy overflowPolicy) {
+		this(clientQueueCapacity, overflowPolicy, new ServiceMetrics());
+	}
+
+	public RegistrationManager(int clientQueueCapacity, ClientOverflowPolicy overflowPolicy,
+			ServiceMetrics metrics) {
+		this.clientQueueCapacity = clientQueueCapacity;
+		this.overflowPolicy = overflowPolicy;
+		this.metrics = metrics;
+	}
 
 	/**
 	 * Add a new client to the list.
 	 * 
 	 * @param client
 	 */
-	public void addClient(IFromSiteWhere client) {
-		if (!clients.contains(client)) {
-			Log.d(MqttService.TAG, "Registration manager adding client.");
-			clients.add(client);
+	public void addClient(IRegisteredClient client) {
+		addClient(client, null);
+	}
+
+	/**
+	 * Add a new client to the list that only receives commands matching a filter. If the client is
+	 * already registered, its filter is replaced.
+	 * 
+	 * @param client
+	 * @param filter
+	 *            filter or null to receive all commands
+	 */
+	public void addClient(IRegisteredClient client, ICommandFilter filter) {
+		ClientDispatcher dispatcher = new ClientDispatcher(client, filter, clientQueueCapacity,
+				overflowPolicy, this, metrics, getClientName(client));
+		ClientDispatcher existing = clients.putIfAbsent(dispatcher);
+		if (existing != dispatcher) {
+			clients.updateFilter(existing, filter);
+			return;
+		}
+		Log.d(IMqttInteractionManager.TAG, "Registration manager adding client.");
+		try {
+			dispatcher.start();
+		} catch (SiteWhereMqttException e) {
+			Log.w(IMqttInteractionManager.TAG, "Client died before it could be added.", e);
+			clients.remove(dispatcher);
 		}
 	}
 
+	/**
+	 * Get the name used in metrics for a client being added. Adds a counter to the name the client
+	 * reports so clients from the same source are told apart.
+	 * 
+	 * @param client
+	 * @return
+	 */
+	protected String getClientName(IRegisteredClient client) {
+		return client.getName() + "." + clientCount.incrementAndGet();
+	}
+
 	/**
 	 * Remove an existing client from the list.
 	 * 
 	 * @param client
 	 */
-	public void removeClient(IFromSiteWhere client) {
-		Log.d(MqttService.TAG, "Registration manager removing client.");
-		clients.remove(client);
+	public void removeClient(IRegisteredClient client) {
+		Log.d(IMqttInteractionManager.TAG, "Registration manager removing client.");
+		ClientDispatcher dispatcher = clients.remove(client);
+		if (dispatcher != null) {
+			dispatcher.close();
+		}
+		deliveryTracker.remove(client);
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see com.sitewhere.android.mqtt.IMqttCallback#connected()
+	 * @see
+	 * com.sitewhere.android.mqtt.ClientDispatcher.IListener#onClientRemoved(com.sitewhere.android.mqtt
+	 * .ClientDispatcher)
 	 */
 	@Override
-	public void connected() {
-		List<IFromSiteWhere> unreachable = new ArrayList<IFromSiteWhere>();
-		for (IFromSiteWhere client : clients) {
-			try {
-				client.connected();
-			} catch (RemoteException e) {
-				Log.e(MqttService.TAG, "Unable to send message to client. Removing from list.", e);
-				unreachable.add(client);
+	public void onClientRemoved(ClientDispatcher dispatcher) {
+		if (clients.remove(dispatcher)) {
+			deliveryTracker.remove(dispatcher.getClient());
+		}
+	}
+
+	/**
+	 * Get number of registered clients whose delivery thread is running.
+	 * 
+	 * @return
+	 */
+	public int getLiveDispatcherCount() {
+		int live = 0;
+		for (ClientDispatcher dispatcher : clients.snapshot()) {
+			if (dispatcher.isWorkerAlive()) {
+				live++;
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * Queue a notification for every registered client.
+	 * 
+	 * @param notification
+	 */
+	protected void dispatch(INotification notification) {
+		for (ClientDispatcher dispatcher : clients.snapshot()) {
+			dispatcher.dispatch(notification);
+		}
+	}
+
+	/**
+	 * Queue a command notification for clients on a route that accept the hardware id.
+	 * 
+	 * @param route
+	 * @param hardwareId
+	 * @param notification
+	 */
+	protected void dispatch(List<ClientDispatcher> route, String hardwareId, INotification notification) {
+		for (ClientDispatcher dispatcher : route) {
+			ICommandFilter filter = dispatcher.getFilter();
+			if ((filter == null) || (filter.acceptsHardwareId(hardwareId))) {
+				dispatcher.dispatch(notification);
 			}
 		}
-		for (IFromSiteWhere client : unreachable) {
-			clients.remove(client);
+	}
+
+	/**
+	 * Get the hardware id a command topic is addressed to.
+	 * 
+	 * @param topic
+	 * @return
+	 */
+	protected static String getHardwareId(String topic) {
+		return topic.substring(topic.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * Read the command number from the header of a system command without decoding the rest.
+	 * 
+	 * @param payload
+	 * @return command number or null if the header could not be read
+	 */
+	protected static Integer getSystemCommand(byte[] payload) {
+		try {
+			Device.Header header = Device.Header.parseDelimitedFrom(new ByteArrayInputStream(payload));
+			return (header != null) ? header.getCommand().getNumber() : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read the command name from a custom command. Compact payloads are read with
+	 * {@link CompactCommandCodec}. Otherwise the payload is expected to be a serialized name followed
+	 * by its parameters, and the name is read directly from the stream so nothing is deserialized.
+	 * Compact payloads that give the command as a dictionary index are named using the dictionaries
+	 * registered with client filters.
+	 * 
+	 * @param payload
+	 * @return command name or null if it can not be determined
+	 */
+	protected String getCustomCommandName(byte[] payload) {
+		if (CompactCommandCodec.isCompact(payload)) {
+			return CompactCommandCodec.getCommandName(payload, clients.getCommandDictionaries());
+		}
+		if ((payload.length < 7) || ((payload[0] & 0xff) != 0xac) || ((payload[1] & 0xff) != 0xed)
+				|| (payload[4] != TC_STRING)) {
+			return null;
+		}
+		try {
+			return new DataInputStream(new ByteArrayInputStream(payload, 5, payload.length - 5)).readUTF();
+		} catch (IOException e) {
+			return null;
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#connected()
+	 */
+	@Override
+	public void connected() {
+		dispatch(CONNECTED);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see com.sitewhere.android.mqtt.IMqttCallback#onSystemCommandReceived(java.lang.String, byte[])
 	 */
 	@Override
-	public void onSystemCommandReceived(String topic, byte[] payload) {
-		Log.d(MqttService.TAG, "Notifying clients system command was received.");
-		List<IFromSiteWhere> unreachable = new ArrayList<IFromSiteWhere>();
-		for (IFromSiteWhere client : clients) {
-			try {
+	public void onSystemCommandReceived(String topic, final byte[] payload) {
+		Log.d(IMqttInteractionManager.TAG, "Notifying clients system command was received.");
+		INotification notification = new INotification() {
+
+			@Override
+			public void deliver(IRegisteredClient client) throws SiteWhereMqttException {
 				client.receivedSystemCommand(payload);
-			} catch (RemoteException e) {
-				Log.w(MqttService.TAG, "Unable to send message to client. Removing from list.", e);
-				unreachable.add(client);
 			}
-		}
-		for (IFromSiteWhere client : unreachable) {
-			clients.remove(client);
-		}
+		};
+		List<ClientDispatcher> route = clients.getSystemCommandRoute(getSystemCommand(payload));
+		dispatch(route, getHardwareId(topic), notification);
 	}
 
 	/*
@@ -104,20 +297,31 @@ public class RegistrationManager implements IMqttCallback {
 	 * @see com.sitewhere.android.mqtt.IMqttCallback#onCustomCommandReceived(java.lang.String, byte[])
 	 */
 	@Override
-	public void onCustomCommandReceived(String topic, byte[] payload) {
-		Log.d(MqttService.TAG, "Notifying clients custom command was received.");
-		List<IFromSiteWhere> unreachable = new ArrayList<IFromSiteWhere>();
-		for (IFromSiteWhere client : clients) {
-			try {
+	public void onCustomCommandReceived(String topic, final byte[] payload) {
+		Log.d(IMqttInteractionManager.TAG, "Notifying clients custom command was received.");
+		INotification notification = new INotification() {
+
+			@Override
+			public void deliver(IRegisteredClient client) throws SiteWhereMqttException {
 				client.receivedCustomCommand(payload);
-			} catch (RemoteException e) {
-				Log.w(MqttService.TAG, "Unable to send message to client. Removing from list.", e);
-				unreachable.add(client);
 			}
-		}
-		for (IFromSiteWhere client : unreachable) {
-			clients.remove(client);
-		}
+		};
+		List<ClientDispatcher> route = clients.getCustomCommandRoute(getCustomCommandName(payload));
+		dispatch(route, getHardwareId(topic), notification);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#onDelivered(long)
+	 */
+	@Override
+	public void onDelivered(long id) {
+		deliveryTracker.delivered(id);
+	}
+
+	public DeliveryTracker getDeliveryTracker() {
+		return deliveryTracker;
 	}
 
 	/*
@@ -127,17 +331,6 @@ public class RegistrationManager implements IMqttCallback {
 	 */
 	@Override
 	public void disconnected() {
-		List<IFromSiteWhere> unreachable = new ArrayList<IFromSiteWhere>();
-		for (IFromSiteWhere client : clients) {
-			try {
-				client.disconnected();
-			} catch (RemoteException e) {
-				Log.w(MqttService.TAG, "Unable to send message to client. Removing from list.", e);
-				unreachable.add(client);
-			}
-		}
-		for (IFromSiteWhere client : unreachable) {
-			clients.remove(client);
-		}
+		dispatch(DISCONNECTED);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sitewhere.android.messaging.MetricsSnapshot;
+
+/**
+ * Named counters, gauges and latency histograms kept by the MQTT service. Components look up the
+ * counters and histograms they update once and keep references to them, so updates on hot paths are
+ * single atomic operations. Gauges are read only when a snapshot is taken.
+ * 
+ * @author Derek
+ */
+public class ServiceMetrics {
+
+	/** Prefix for publish latency by quality of service, from publish until the broker completes it */
+	public static final String PUBLISH_LATENCY = "publish.latency.qos";
+
+	/** Number of publishes that failed */
+	public static final String PUBLISH_FAILURES = "publish.failures";
+
+	/** Number of messages published */
+	public static final String MESSAGES_OUT = "messages.out";
+
+	/** Number of payload bytes published */
+	public static final String BYTES_OUT = "bytes.out";
+
+	/** Number of messages received */
+	public static final String MESSAGES_IN = "messages.in";
+
+	/** Number of payload bytes received */
+	public static final String BYTES_IN = "bytes.in";
+
+	/** Prefix for time spent in binder send calls, by method */
+	public static final String BINDER_LATENCY = "binder.latency.";
+
+	/** Prefix for time from queueing a notification for a client until it is delivered */
+	public static final String DISPATCH_LATENCY = "dispatch.latency.";
+
+	/** Prefix for number of notifications waiting for a client */
+	public static final String DISPATCH_DEPTH = "dispatch.depth.";
+
+	/** Number of notifications dropped because a client queue was full */
+	public static final String DISPATCH_DROPPED = "dispatch.dropped";
+
+	/** Number of inbound messages waiting for a worker */
+	public static final String INBOUND_DEPTH = "inbound.depth";
+
+	/** Number of connection attempts */
+	public static final String CONNECT_ATTEMPTS = "connect.attempts";
+
+	/** Number of failed connection attempts */
+	public static final String CONNECT_FAILURES = "connect.failures";
+
+	/** Time taken by successful connection attempts */
+	public static final String CONNECT_LATENCY = "connect.latency";
+
+	/** Counters by name */
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	/** Gauges by name */
+	private final ConcurrentMap<String, IGauge> gauges = new ConcurrentHashMap<String, IGauge>();
+
+	/** Latency histograms by name */
+	private final ConcurrentMap<String, LatencyHistogram> histograms =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+
+	/**
+	 * Get a counter, creating it if necessary.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public AtomicLong getCounter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Get a latency histogram, creating it if necessary.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public LatencyHistogram getHistogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Register a gauge that is read when a snapshot is taken, replacing any with the same name.
+	 * 
+	 * @param name
+	 * @param gauge
+	 */
+	public void setGauge(String name, IGauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Remove the gauge and histogram with the given name. Used when the entity they describe goes
+	 * away.
+	 * 
+	 * @param gaugeName
+	 * @param histogramName
+	 */
+	public void remove(String gaugeName, String histogramName) {
+		gauges.remove(gaugeName);
+		histograms.remove(histogramName);
+	}
+
+	/**
+	 * Copy the current values.
+	 * 
+	 * @return
+	 */
+	public MetricsSnapshot snapshot() {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			snapshot.setValue(entry.getKey(), entry.getValue().get());
+		}
+		for (Map.Entry<String, IGauge> entry : gauges.entrySet()) {
+			snapshot.setValue(entry.getKey(), entry.getValue().getValue());
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			snapshot.setHistogram(entry.getKey(), entry.getValue().snapshot());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Value that is computed when a snapshot is taken.
+	 * 
+	 * @author Derek
+	 */
+	public static interface IGauge {
+
+		/**
+		 * Get the current value.
+		 * 
+		 * @return
+		 */
+		public long getValue();
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt.queue;
+
+import java.util.concurrent.TimeUnit;
+
+import com.sitewhere.android.mqtt.SiteWhereMqttException;
+
+/**
+ * Queue that holds outbound event payloads until the broker has acknowledged them. Events are
+ * read in the order they were appended and are retained until acknowledged, so a failed delivery
+ * can be retried by rewinding the read position.
+ * 
+ * @author Derek
+ */
+public interface IOutboundEventQueue {
+
+	/**
+	 * Append a payload to the end of the queue. The flags are stored with the payload and returned
+	 * when the event is read.
+	 * 
+	 * @param flags
+	 * @param payload
+	 * @return sequence number assigned to the event
+	 * @throws SiteWhereMqttException
+	 */
+	public long append(byte flags, byte[] payload) throws SiteWhereMqttException;
+
+	/**
+	 * Get the next event that has not been read since the last rewind, waiting up to the given
+	 * amount of time for one to arrive.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return next event or null if none arrived before the timeout
+	 * @throws InterruptedException
+	 * @throws SiteWhereMqttException
+	 */
+	public QueuedEvent poll(long timeout, TimeUnit unit) throws InterruptedException,
+			SiteWhereMqttException;
+
+	/**
+	 * Acknowledge delivery of all events up to and including the given sequence number. Storage
+	 * used by acknowledged events may be reclaimed.
+	 * 
+	 * @param sequence
+	 * @throws SiteWhereMqttException
+	 */
+	public void acknowledge(long sequence) throws SiteWhereMqttException;
+
+	/**
+	 * Move the read position back to the first unacknowledged event.
+	 */
+	public void rewind();
+
+	/**
+	 * Get number of events that have not been acknowledged.
+	 * 
+	 * @return
+	 */
+	public long getPendingCount();
+
+	/**
+	 * Flush pending writes and release resources held by the queue.
+	 */
+	public void close();
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt.queue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.mqtt.IMqttInteractionManager;
+import com.sitewhere.android.mqtt.SiteWhereMqttException;
+
+/**
+ * Implementation of {@link IOutboundEventQueue} backed by an append-only log of memory-mapped
+ * segment files. Appends are copies into mapped memory, so they survive a crash of the process
+ * without an explicit sync. Each record carries a CRC over its length, flags and payload so that
+ * records torn by a power loss are detected and discarded when the log is reopened. The position of the first unacknowledged
+ * event is kept in a small checkpoint file. Disk usage is bounded by the maximum number of
+ * segments. When the bound is reached, the oldest segment is dropped even if it still holds
+ * unacknowledged events.
+ * 
+ * @author Derek
+ */
+public class MappedSegmentQueue implements IOutboundEventQueue {
+
+	/** Default size of a segment file in bytes */
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	/** Default maximum number of segment files kept on disk */
+	public static final int DEFAULT_MAX_SEGMENTS = 32;
+
+	/** Suffix for segment file names */
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/** Name of file that holds the acknowledged position */
+	private static final String CHECKPOINT_FILE = "checkpoint";
+
+	/** Marker written at the start of each segment */
+	private static final int SEGMENT_MAGIC = 0x53574f51;
+
+	/** Segment header is the marker followed by a format version */
+	private static final int SEGMENT_HEADER_SIZE = 8;
+
+	/** Segment format version */
+	private static final int SEGMENT_VERSION = 2;
+
+	/** Record header is length, CRC and flags */
+	private static final int RECORD_HEADER_SIZE = 9;
+
+	/** Checkpoint holds the sequence number and its complement */
+	private static final int CHECKPOINT_SIZE = 16;
+
+	/** Directory that holds segment files */
+	private final File directory;
+
+	/** Size of newly created segments */
+	private final int segmentSize;
+
+	/** Maximum number of segments kept on disk */
+	private final int maxSegments;
+
+	/** Segments ordered from oldest to newest */
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	/** Mapped checkpoint file */
+	private MappedByteBuffer checkpoint;
+
+	/** Sequence number assigned to the next appended event */
+	private long nextSequence;
+
+	/** Sequence number of first unacknowledged event */
+	private long committed;
+
+	/** Segment that holds the next event to be read */
+	private Segment readSegment;
+
+	/** Offset of next event to be read in the read segment */
+	private int readPosition;
+
+	/** Sequence number of next event to be read */
+	private long readSequence;
+
+	/** Number of unacknowledged events discarded to stay within bounds */
+	private long dropped;
+
+	/** Indicates queue has been closed */
+	private boolean closed;
+
+	/** Used to calculate record checksums */
+	private final CRC32 crc = new CRC32();
+
+	public MappedSegmentQueue(File directory) throws SiteWhereMqttException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	public MappedSegmentQueue(File directory, int segmentSize, int maxSegments)
+			throws SiteWhereMqttException {
+		if (maxSegments < 2) {
+			throw new IllegalArgumentException("Queue requires at least two segments.");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		try {
+			recover();
+		} catch (IOException e) {
+			throw new SiteWhereMqttException("Unable to open outbound event queue.", e);
+		}
+	}
+
+	/**
+	 * Open existing segments and restore the write, acknowledge and read positions.
+	 * 
+	 * @throws IOException
+	 */
+	protected void recover() throws IOException {
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Unable to create queue directory: " + directory.getAbsolutePath());
+		}
+		File[] files = directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String filename) {
+				return filename.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		for (File file : files) {
+			long base;
+			try {
+				base = Long.parseLong(file.getName().substring(0,
+						file.getName().length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				Log.w(IMqttInteractionManager.TAG, "Ignoring unexpected file in queue: " + file.getName());
+				continue;
+			}
+			Segment segment = Segment.open(file, base);
+			if (segment == null) {
+				Log.w(IMqttInteractionManager.TAG, "Discarding corrupt queue segment: " + file.getName());
+				file.delete();
+				continue;
+			}
+			segments.add(segment);
+		}
+
+		checkpoint = map(new File(directory, CHECKPOINT_FILE), CHECKPOINT_SIZE);
+		long stored = checkpoint.getLong(0);
+		boolean valid = (checkpoint.getLong(8) == ~stored);
+
+		if (segments.isEmpty()) {
+			nextSequence = valid ? stored : 0;
+		} else {
+			Segment last = segments.getLast();
+			nextSequence = last.baseSequence + last.count;
+		}
+		long first = segments.isEmpty() ? nextSequence : segments.getFirst().baseSequence;
+		committed = valid ? Math.min(Math.max(stored, first), nextSequence) : first;
+		writeCheckpoint();
+		positionReader(committed);
+		Log.d(IMqttInteractionManager.TAG, "Recovered outbound queue with " + getPendingCount()
+				+ " unacknowledged events in " + segments.size() + " segments.");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#append(byte, byte[])
+	 */
+	@Override
+	public synchronized long append(byte flags, byte[] payload) throws SiteWhereMqttException {
+		if (closed) {
+			throw new SiteWhereMqttException("Outbound event queue has been closed.");
+		}
+		if ((payload == null) || (payload.length == 0)) {
+			throw new SiteWhereMqttException("Unable to queue an empty payload.");
+		}
+		int recordSize = RECORD_HEADER_SIZE + payload.length;
+		Segment active = segments.isEmpty() ? null : segments.getLast();
+		try {
+			if ((active == null) || (!active.hasRoomFor(recordSize))) {
+				active = rollSegment(recordSize);
+			}
+		} catch (IOException e) {
+			throw new SiteWhereMqttException("Unable to allocate outbound queue segment.", e);
+		}
+		active.write(flags, payload, checksum(crc, payload.length, flags, payload));
+		long sequence = nextSequence++;
+		notifyAll();
+		return sequence;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#poll(long,
+	 * java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public synchronized QueuedEvent poll(long timeout, TimeUnit unit) throws InterruptedException,
+			SiteWhereMqttException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while ((!closed) && (readSequence >= nextSequence)) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		if (closed) {
+			throw new SiteWhereMqttException("Outbound event queue has been closed.");
+		}
+		while (readPosition >= readSegment.writePosition) {
+			readSegment = segments.get(segments.indexOf(readSegment) + 1);
+			readPosition = SEGMENT_HEADER_SIZE;
+			readSequence = Math.max(readSequence, readSegment.baseSequence);
+		}
+		int length = readSegment.buffer.getInt(readPosition);
+		byte flags = readSegment.buffer.get(readPosition + 8);
+		byte[] payload = new byte[length];
+		readSegment.read(readPosition + RECORD_HEADER_SIZE, payload);
+		readPosition += RECORD_HEADER_SIZE + length;
+		return new QueuedEvent(readSequence++, flags, payload);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#acknowledge(long)
+	 */
+	@Override
+	public synchronized void acknowledge(long sequence) throws SiteWhereMqttException {
+		if (sequence < committed) {
+			return;
+		}
+		committed = Math.min(sequence + 1, nextSequence);
+		writeCheckpoint();
+		while (segments.size() > 1) {
+			Segment oldest = segments.getFirst();
+			if (oldest.baseSequence + oldest.count > committed) {
+				break;
+			}
+			deleteSegment(oldest);
+		}
+		if (readSequence < committed) {
+			positionReader(committed);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#rewind()
+	 */
+	@Override
+	public synchronized void rewind() {
+		positionReader(committed);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#getPendingCount()
+	 */
+	@Override
+	public synchronized long getPendingCount() {
+		return nextSequence - committed;
+	}
+
+	/**
+	 * Get number of unacknowledged events that were discarded to keep disk usage bounded.
+	 * 
+	 * @return
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#close()
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+		checkpoint.force();
+		notifyAll();
+	}
+
+	/**
+	 * Start a new segment large enough to hold a record of the given size. Drops the oldest
+	 * segment if the maximum number of segments would be exceeded.
+	 * 
+	 * @param recordSize
+	 * @return
+	 * @throws IOException
+	 */
+	protected Segment rollSegment(int recordSize) throws IOException {
+		if (!segments.isEmpty()) {
+			segments.getLast().buffer.force();
+		}
+		int size = Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize + 4);
+		File file = new File(directory, String.format(Locale.US, "%020d", nextSequence) + SEGMENT_SUFFIX);
+		Segment created = Segment.create(file, nextSequence, size);
+		segments.add(created);
+		if (readSegment == null) {
+			positionReader(committed);
+		}
+
+		while (segments.size() > maxSegments) {
+			Segment oldest = segments.getFirst();
+			long end = oldest.baseSequence + oldest.count;
+			if (end > committed) {
+				long lost = end - Math.max(committed, oldest.baseSequence);
+				dropped += lost;
+				Log.w(IMqttInteractionManager.TAG,
+						"Outbound queue full. Dropped " + lost + " undelivered events.");
+				committed = end;
+				writeCheckpoint();
+			}
+			deleteSegment(oldest);
+		}
+		return created;
+	}
+
+	/**
+	 * Remove a segment from the list and delete its file.
+	 * 
+	 * @param segment
+	 */
+	protected void deleteSegment(Segment segment) {
+		segments.remove(segment);
+		if (!segment.file.delete()) {
+			Log.w(IMqttInteractionManager.TAG, "Unable to delete queue segment: " + segment.file.getName());
+		}
+		if (readSegment == segment) {
+			positionReader(Math.max(readSequence, committed));
+		}
+	}
+
+	/**
+	 * Move the read position to the event with the given sequence number.
+	 * 
+	 * @param sequence
+	 */
+	protected void positionReader(long sequence) {
+		readSegment = null;
+		readSequence = sequence;
+		for (Segment segment : segments) {
+			if (sequence < segment.baseSequence + segment.count) {
+				readSegment = segment;
+				break;
+			}
+		}
+		if (readSegment == null) {
+			readSegment = segments.isEmpty() ? null : segments.getLast();
+			readPosition = (readSegment == null) ? SEGMENT_HEADER_SIZE : readSegment.writePosition;
+			return;
+		}
+		readSequence = Math.max(sequence, readSegment.baseSequence);
+		readPosition = SEGMENT_HEADER_SIZE;
+		for (long i = readSegment.baseSequence; i < readSequence; i++) {
+			readPosition += RECORD_HEADER_SIZE + readSegment.buffer.getInt(readPosition);
+		}
+	}
+
+	/**
+	 * Store the acknowledged position in the checkpoint file.
+	 */
+	protected void writeCheckpoint() {
+		checkpoint.putLong(0, committed);
+		checkpoint.putLong(8, ~committed);
+	}
+
+	/**
+	 * Calculate the checksum of a record. Records are covered from the length through the end of
+	 * the payload, so a torn write to the header is detected as well.
+	 * 
+	 * @param crc
+	 * @param length
+	 * @param flags
+	 * @param payload
+	 * @return
+	 */
+	protected static int checksum(CRC32 crc, int length, byte flags, byte[] payload) {
+		crc.reset();
+		crc.update(length >>> 24);
+		crc.update(length >>> 16);
+		crc.update(length >>> 8);
+		crc.update(length);
+		crc.update(flags);
+		crc.update(payload, 0, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Map a file of the given size into memory, creating it if necessary.
+	 * 
+	 * @param file
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	protected static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * A single memory-mapped segment file.
+	 * 
+	 * @author Derek
+	 */
+	protected static class Segment {
+
+		/** Segment file */
+		final File file;
+
+		/** Sequence number of first record in segment */
+		final long baseSequence;
+
+		/** Mapped file contents */
+		final MappedByteBuffer buffer;
+
+		/** Offset at which next record will be written */
+		int writePosition = SEGMENT_HEADER_SIZE;
+
+		/** Number of records in segment */
+		int count;
+
+		private Segment(File file, long baseSequence, MappedByteBuffer buffer) {
+			this.file = file;
+			this.baseSequence = baseSequence;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Create a new empty segment.
+		 * 
+		 * @param file
+		 * @param baseSequence
+		 * @param size
+		 * @return
+		 * @throws IOException
+		 */
+		static Segment create(File file, long baseSequence, int size) throws IOException {
+			Segment segment = new Segment(file, baseSequence, map(file, size));
+			segment.buffer.putInt(0, SEGMENT_MAGIC);
+			segment.buffer.putInt(4, SEGMENT_VERSION);
+			segment.buffer.putInt(SEGMENT_HEADER_SIZE, 0);
+			return segment;
+		}
+
+		/**
+		 * Open an existing segment, scanning records until the first one that is incomplete or
+		 * fails its checksum.
+		 * 
+		 * @param file
+		 * @param baseSequence
+		 * @return segment or null if the file is not a valid segment
+		 * @throws IOException
+		 */
+		static Segment open(File file, long baseSequence) throws IOException {
+			if (file.length() < SEGMENT_HEADER_SIZE + 4) {
+				return null;
+			}
+			MappedByteBuffer buffer = map(file, 0);
+			if ((buffer.getInt(0) != SEGMENT_MAGIC) || (buffer.getInt(4) != SEGMENT_VERSION)) {
+				return null;
+			}
+			Segment segment = new Segment(file, baseSequence, buffer);
+			CRC32 crc = new CRC32();
+			byte[] scratch = new byte[0];
+			int capacity = segment.buffer.capacity();
+			int position = SEGMENT_HEADER_SIZE;
+			while (position + RECORD_HEADER_SIZE <= capacity) {
+				int length = segment.buffer.getInt(position);
+				if ((length <= 0) || (length > capacity - position - RECORD_HEADER_SIZE)) {
+					break;
+				}
+				if (scratch.length < length) {
+					scratch = new byte[length];
+				}
+				segment.read(position + RECORD_HEADER_SIZE, scratch, length);
+				byte flags = segment.buffer.get(position + 8);
+				if (checksum(crc, length, flags, scratch) != segment.buffer.getInt(position + 4)) {
+					break;
+				}
+				position += RECORD_HEADER_SIZE + length;
+				segment.count++;
+			}
+			segment.writePosition = position;
+			if (position + 4 <= capacity) {
+				segment.buffer.putInt(position, 0);
+			}
+			return segment;
+		}
+
+		/**
+		 * Indicates whether a record of the given size can be appended.
+		 * 
+		 * @param recordSize
+		 * @return
+		 */
+		boolean hasRoomFor(int recordSize) {
+			return (writePosition + recordSize <= buffer.capacity());
+		}
+
+		/**
+		 * Write a record at the end of the segment followed by an end marker.
+		 * 
+		 * @param flags
+		 * @param payload
+		 * @param checksum
+		 */
+		void write(byte flags, byte[] payload, int checksum) {
+			int position = writePosition;
+			buffer.putInt(position + 4, checksum);
+			buffer.put(position + 8, flags);
+			buffer.position(position + RECORD_HEADER_SIZE);
+			buffer.put(payload);
+			int next = position + RECORD_HEADER_SIZE + payload.length;
+			if (next + 4 <= buffer.capacity()) {
+				buffer.putInt(next, 0);
+			}
+			buffer.putInt(position, payload.length);
+			writePosition = next;
+			count++;
+		}
+
+		/**
+		 * Copy bytes starting at the given offset into an array.
+		 * 
+		 * @param offset
+		 * @param target
+		 */
+		void read(int offset, byte[] target) {
+			read(offset, target, target.length);
+		}
+
+		/**
+		 * Copy a number of bytes starting at the given offset into an array.
+		 * 
+		 * @param offset
+		 * @param target
+		 * @param length
+		 */
+		void read(int offset, byte[] target, int length) {
+			buffer.position(offset);
+			buffer.get(target, 0, length);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.mqtt.queue;
+
+/**
+ * Event read from an {@link IOutboundEventQueue}.
+ * 
+ * @author Derek
+ */
+public class QueuedEvent {
+
+	/** Sequence number assigned when event was appended */
+	private final long sequence;
+
+	/** Attribute flags stored with the event */
+	private final byte flags;
+
+	/** Event payload */
+	private final byte[] payload;
+
+	public QueuedEvent(long sequence, byte flags, byte[] payload) {
+		this.sequence = sequence;
+		this.flags = flags;
+		this.payload = payload;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public byte getFlags() {
+		return flags;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+}
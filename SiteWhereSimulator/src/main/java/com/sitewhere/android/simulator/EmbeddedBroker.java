@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.client.Topic;
+import org.fusesource.mqtt.codec.CONNACK;
+import org.fusesource.mqtt.codec.CONNECT;
+import org.fusesource.mqtt.codec.DISCONNECT;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PINGREQ;
+import org.fusesource.mqtt.codec.PINGRESP;
+import org.fusesource.mqtt.codec.PUBACK;
+import org.fusesource.mqtt.codec.PUBCOMP;
+import org.fusesource.mqtt.codec.PUBLISH;
+import org.fusesource.mqtt.codec.PUBREC;
+import org.fusesource.mqtt.codec.PUBREL;
+import org.fusesource.mqtt.codec.SUBACK;
+import org.fusesource.mqtt.codec.SUBSCRIBE;
+import org.fusesource.mqtt.codec.UNSUBACK;
+import org.fusesource.mqtt.codec.UNSUBSCRIBE;
+
+import com.sitewhere.android.logging.Log;
+
+/**
+ * Minimal MQTT broker that runs in the simulator process and listens on the loopback interface. It
+ * implements just enough of the protocol for the MQTT client used by the libraries: connect,
+ * publish at any quality of service, exact-match subscriptions, ping and disconnect. Subscriptions
+ * are always granted at most once delivery, so messages routed to subscribers need no
+ * acknowledgement. Sessions are not persisted.
+ * 
+ * Each connection is served by its own thread using blocking socket I/O. Messages published by
+ * clients are also passed to an {@link IListener}, which lets the simulator stand in for SiteWhere
+ * without a second connection.
+ * 
+ * @author Derek
+ */
+public class EmbeddedBroker {
+
+	/** Tag for logging */
+	private static final String TAG = "EmbeddedBroker";
+
+	/** Largest remaining length allowed by the protocol */
+	private static final int MAX_REMAINING_LENGTH = 268435455;
+
+	/** Granted quality of service returned for every subscription */
+	private static final byte GRANTED_QOS = (byte) QoS.AT_MOST_ONCE.ordinal();
+
+	/** Receives messages published by clients */
+	private volatile IListener listener;
+
+	/** Sessions indexed by subscribed topic */
+	private final ConcurrentMap<String, List<Session>> subscriptions =
+			new ConcurrentHashMap<String, List<Session>>();
+
+	/** Connected sessions */
+	private final Set<Session> sessions = new CopyOnWriteArraySet<Session>();
+
+	/** Number of messages received from clients */
+	private final AtomicLong messagesIn = new AtomicLong();
+
+	/** Number of messages routed to subscribers */
+	private final AtomicLong messagesOut = new AtomicLong();
+
+	/** Socket accepting connections */
+	private ServerSocket server;
+
+	/** Thread accepting connections */
+	private Thread acceptor;
+
+	/** Indicates broker has been stopped */
+	private volatile boolean stopped;
+
+	/**
+	 * Start listening on an ephemeral port of the loopback interface.
+	 * 
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		server = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+		acceptor = new Thread(new Acceptor(), "Embedded broker acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Log.i(TAG, "Embedded broker listening on port " + getPort() + ".");
+	}
+
+	/**
+	 * Stop accepting connections and close all sessions.
+	 */
+	public void stop() {
+		stopped = true;
+		try {
+			server.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to close server socket.", e);
+		}
+		for (Session session : sessions) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Get the port the broker is listening on.
+	 * 
+	 * @return
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Get the URI clients connect to.
+	 * 
+	 * @return
+	 */
+	public String getUri() {
+		return "tcp://127.0.0.1:" + getPort();
+	}
+
+	/**
+	 * Publish a message to all sessions subscribed to a topic.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @return number of sessions the message was sent to
+	 */
+	public int publish(String topic, byte[] payload) {
+		List<Session> subscribers = subscriptions.get(topic);
+		if (subscribers == null) {
+			return 0;
+		}
+		PUBLISH publish = new PUBLISH().qos(QoS.AT_MOST_ONCE).topicName(new UTF8Buffer(topic))
+				.payload(new Buffer(payload));
+		MQTTFrame frame = publish.encode();
+		int sent = 0;
+		for (Session session : subscribers) {
+			if (session.write(frame)) {
+				sent++;
+			}
+		}
+		messagesOut.addAndGet(sent);
+		return sent;
+	}
+
+	public IListener getListener() {
+		return listener;
+	}
+
+	public void setListener(IListener listener) {
+		this.listener = listener;
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.get();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.get();
+	}
+
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Read a frame from a stream.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	protected static MQTTFrame readFrame(InputStream in) throws IOException {
+		int header = in.read();
+		if (header < 0) {
+			throw new EOFException();
+		}
+		int length = 0;
+		int multiplier = 1;
+		int digit;
+		do {
+			digit = in.read();
+			if (digit < 0) {
+				throw new EOFException();
+			}
+			length += (digit & 0x7f) * multiplier;
+			multiplier <<= 7;
+			if (length > MAX_REMAINING_LENGTH) {
+				throw new ProtocolException("Remaining length is too large.");
+			}
+		} while ((digit & 0x80) != 0);
+		byte[] body = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int count = in.read(body, read, length - read);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			read += count;
+		}
+		return new MQTTFrame(new Buffer(body)).header((byte) header);
+	}
+
+	/**
+	 * Write a frame to a stream.
+	 * 
+	 * @param frame
+	 * @param out
+	 * @throws IOException
+	 */
+	protected static void writeFrame(MQTTFrame frame, OutputStream out) throws IOException {
+		int length = 0;
+		for (Buffer buffer : frame.buffers) {
+			length += buffer.length;
+		}
+		out.write(frame.header());
+		do {
+			int digit = length & 0x7f;
+			length >>>= 7;
+			out.write((length > 0) ? (digit | 0x80) : digit);
+		} while (length > 0);
+		for (Buffer buffer : frame.buffers) {
+			out.write(buffer.data, buffer.offset, buffer.length);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Receives messages published by clients.
+	 * 
+	 * @author Derek
+	 */
+	public static interface IListener {
+
+		/**
+		 * Called on the session thread when a client publishes a message.
+		 * 
+		 * @param clientId
+		 * @param topic
+		 * @param payload
+		 */
+		public void onPublish(String clientId, String topic, byte[] payload);
+	}
+
+	/**
+	 * Accepts connections and starts a session for each.
+	 * 
+	 * @author Derek
+	 */
+	private class Acceptor implements Runnable {
+
+		@Override
+		public void run() {
+			while (!stopped) {
+				try {
+					Socket socket = server.accept();
+					socket.setTcpNoDelay(true);
+					Session session = new Session(socket);
+					sessions.add(session);
+					Thread thread = new Thread(session, "Embedded broker session " + socket.getPort());
+					thread.setDaemon(true);
+					thread.start();
+				} catch (IOException e) {
+					if (!stopped) {
+						Log.e(TAG, "Unable to accept connection.", e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Connection from a single client.
+	 * 
+	 * @author Derek
+	 */
+	private class Session implements Runnable {
+
+		/** Client socket */
+		private final Socket socket;
+
+		/** Buffered socket output, guarded by the session */
+		private final OutputStream out;
+
+		/** Id sent by the client when connecting */
+		private String clientId;
+
+		/** Topics the session is subscribed to */
+		private final Set<String> topics = new CopyOnWriteArraySet<String>();
+
+		public Session(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		@Override
+		public void run() {
+			try {
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				while (!stopped) {
+					if (!handle(readFrame(in))) {
+						break;
+					}
+				}
+			} catch (EOFException e) {
+				Log.d(TAG, "Client " + clientId + " closed connection.");
+			} catch (SocketException e) {
+				Log.d(TAG, "Connection to client " + clientId + " closed.");
+			} catch (IOException e) {
+				Log.w(TAG, "Error reading from client " + clientId + ".", e);
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * Handle a frame received from the client.
+		 * 
+		 * @param frame
+		 * @return false if the session should end
+		 * @throws IOException
+		 */
+		protected boolean handle(MQTTFrame frame) throws IOException {
+			switch (frame.messageType()) {
+			case CONNECT.TYPE: {
+				CONNECT connect = new CONNECT().decode(frame);
+				clientId = connect.clientId().toString();
+				send(new CONNACK().code(CONNACK.Code.CONNECTION_ACCEPTED).encode());
+				return true;
+			}
+			case PUBLISH.TYPE: {
+				PUBLISH publish = new PUBLISH().decode(frame);
+				switch (publish.qos()) {
+				case AT_LEAST_ONCE: {
+					send(new PUBACK().messageId(publish.messageId()).encode());
+					break;
+				}
+				case EXACTLY_ONCE: {
+					send(new PUBREC().messageId(publish.messageId()).encode());
+					break;
+				}
+				default:
+				}
+				received(publish);
+				return true;
+			}
+			case PUBREL.TYPE: {
+				PUBREL release = new PUBREL().decode(frame);
+				send(new PUBCOMP().messageId(release.messageId()).encode());
+				return true;
+			}
+			case SUBSCRIBE.TYPE: {
+				SUBSCRIBE subscribe = new SUBSCRIBE().decode(frame);
+				Topic[] requested = subscribe.topics();
+				byte[] granted = new byte[requested.length];
+				for (int i = 0; i < requested.length; i++) {
+					subscribe(requested[i].name().toString());
+					granted[i] = GRANTED_QOS;
+				}
+				send(new SUBACK().messageId(subscribe.messageId()).grantedQos(granted).encode());
+				return true;
+			}
+			case UNSUBSCRIBE.TYPE: {
+				UNSUBSCRIBE unsubscribe = new UNSUBSCRIBE().decode(frame);
+				for (UTF8Buffer topic : unsubscribe.topics()) {
+					unsubscribe(topic.toString());
+				}
+				send(new UNSUBACK().messageId(unsubscribe.messageId()).encode());
+				return true;
+			}
+			case PINGREQ.TYPE: {
+				send(new PINGRESP().encode());
+				return true;
+			}
+			case DISCONNECT.TYPE: {
+				return false;
+			}
+			default: {
+				Log.d(TAG, "Ignoring frame of type " + frame.messageType() + " from " + clientId + ".");
+				return true;
+			}
+			}
+		}
+
+		/**
+		 * Pass a message published by the client to the listener and route it to subscribers.
+		 * 
+		 * @param publish
+		 */
+		protected void received(PUBLISH publish) {
+			messagesIn.incrementAndGet();
+			String topic = publish.topicName().toString();
+			byte[] payload = publish.payload().toByteArray();
+			IListener current = listener;
+			if (current != null) {
+				current.onPublish(clientId, topic, payload);
+			}
+			publish(topic, payload);
+		}
+
+		/**
+		 * Add the session to the subscribers for a topic.
+		 * 
+		 * @param topic
+		 */
+		protected void subscribe(String topic) {
+			List<Session> subscribers = subscriptions.get(topic);
+			if (subscribers == null) {
+				List<Session> created = new CopyOnWriteArrayList<Session>();
+				subscribers = subscriptions.putIfAbsent(topic, created);
+				if (subscribers == null) {
+					subscribers = created;
+				}
+			}
+			if (topics.add(topic)) {
+				subscribers.add(this);
+			}
+		}
+
+		/**
+		 * Remove the session from the subscribers for a topic.
+		 * 
+		 * @param topic
+		 */
+		protected void unsubscribe(String topic) {
+			if (topics.remove(topic)) {
+				List<Session> subscribers = subscriptions.get(topic);
+				if (subscribers != null) {
+					subscribers.remove(this);
+				}
+			}
+		}
+
+		/**
+		 * Send a frame to the client on the session thread.
+		 * 
+		 * @param frame
+		 * @throws IOException
+		 */
+		protected void send(MQTTFrame frame) throws IOException {
+			synchronized (out) {
+				writeFrame(frame, out);
+			}
+		}
+
+		/**
+		 * Send a frame to the client from another thread.
+		 * 
+		 * @param frame
+		 * @return true if the frame was written
+		 */
+		public boolean write(MQTTFrame frame) {
+			try {
+				send(frame);
+				return true;
+			} catch (IOException e) {
+				Log.d(TAG, "Unable to write to client " + clientId + ".", e);
+				close();
+				return false;
+			}
+		}
+
+		/**
+		 * Drop subscriptions and close the socket.
+		 */
+		public void close() {
+			if (!sessions.remove(this)) {
+				return;
+			}
+			for (String topic : topics) {
+				unsubscribe(topic);
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				Log.d(TAG, "Unable to close client socket.", e);
+			}
+		}
+	}
+}
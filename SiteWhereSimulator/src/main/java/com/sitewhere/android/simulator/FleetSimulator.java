@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.simulator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.fusesource.mqtt.client.QoS;
+
+import com.sitewhere.android.messaging.MetricsSnapshot;
+import com.sitewhere.android.mqtt.DefaultMqttInteractionManager;
+import com.sitewhere.android.mqtt.ServiceMetrics;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+
+/**
+ * Load generator that runs a fleet of {@link VirtualDevice} instances against an
+ * {@link EmbeddedBroker}, with a {@link SiteWhereStandIn} receiving events and sending commands.
+ * Reports event throughput, publish latency and command round-trip latency when the run ends.
+ * 
+ * Run with <code>java -jar target/fleet-simulator.jar [options]</code>:
+ * <ul>
+ * <li><code>--devices N</code> number of virtual devices (default 100)</li>
+ * <li><code>--rate N</code> events per second sent by each device (default 10)</li>
+ * <li><code>--duration N</code> length of the run in seconds (default 30)</li>
+ * <li><code>--mix SPEC</code> traffic weights, for example
+ * <code>location=50,measurements=45,stream=5</code></li>
+ * <li><code>--chunk N</code> size of device stream data chunks in bytes (default 1024)</li>
+ * <li><code>--commands N</code> commands per second sent across the fleet (default 10)</li>
+ * <li><code>--qos N</code> quality of service for all events instead of the default policy</li>
+ * <li><code>--in-flight N</code> publishes each device may have awaiting acknowledgement</li>
+ * <li><code>--threads N</code> threads generating traffic (default 4)</li>
+ * </ul>
+ * 
+ * Latency percentiles are taken from {@link MetricsSnapshot.Histogram}, so each value is the upper
+ * bound of a power-of-two bucket.
+ * 
+ * @author Derek
+ */
+public class FleetSimulator {
+
+	/** Interval between progress reports in seconds */
+	private static final int PROGRESS_INTERVAL_SECS = 5;
+
+	/** Longest time to wait for queued events and commands to finish after traffic stops */
+	private static final long DRAIN_TIMEOUT_MS = 10000;
+
+	/** Number of virtual devices */
+	private int deviceCount = 100;
+
+	/** Events per second sent by each device */
+	private double rate = 10;
+
+	/** Length of run in seconds */
+	private int duration = 30;
+
+	/** Kinds of events sent */
+	private TrafficMix mix = new TrafficMix(50, 45, 5);
+
+	/** Size of stream data chunks */
+	private int chunkSize = 1024;
+
+	/** Commands per second sent across the fleet */
+	private double commandRate = 10;
+
+	/** Quality of service for all events or -1 to use the default policy */
+	private int qos = -1;
+
+	/** Publishes each device may have awaiting acknowledgement */
+	private int maxInFlight = DefaultMqttInteractionManager.DEFAULT_MAX_IN_FLIGHT;
+
+	/** Threads generating traffic */
+	private int threads = 4;
+
+	/** Where progress and results are written */
+	private final PrintStream out;
+
+	public FleetSimulator(PrintStream out) {
+		this.out = out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		FleetSimulator simulator = new FleetSimulator(System.out);
+		try {
+			simulator.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: FleetSimulator [--devices N] [--rate N] [--duration N] [--mix SPEC] "
+					+ "[--chunk N] [--commands N] [--qos N] [--in-flight N] [--threads N]");
+			System.exit(1);
+		}
+		simulator.run();
+		System.exit(0);
+	}
+
+	/**
+	 * Apply command line options.
+	 * 
+	 * @param args
+	 */
+	public void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + option + ".");
+			}
+			String value = args[++i];
+			try {
+				if ("--devices".equals(option)) {
+					deviceCount = Integer.parseInt(value);
+				} else if ("--rate".equals(option)) {
+					rate = Double.parseDouble(value);
+				} else if ("--duration".equals(option)) {
+					duration = Integer.parseInt(value);
+				} else if ("--mix".equals(option)) {
+					mix = TrafficMix.parse(value);
+				} else if ("--chunk".equals(option)) {
+					chunkSize = Integer.parseInt(value);
+				} else if ("--commands".equals(option)) {
+					commandRate = Double.parseDouble(value);
+				} else if ("--qos".equals(option)) {
+					qos = Integer.parseInt(value);
+				} else if ("--in-flight".equals(option)) {
+					maxInFlight = Integer.parseInt(value);
+				} else if ("--threads".equals(option)) {
+					threads = Integer.parseInt(value);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + option + ".");
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+			}
+		}
+		if ((deviceCount < 1) || (rate <= 0) || (duration < 1) || (threads < 1)) {
+			throw new IllegalArgumentException("Devices, rate, duration and threads must be positive.");
+		}
+		if (qos >= QoS.values().length) {
+			throw new IllegalArgumentException("Invalid quality of service: " + qos);
+		}
+	}
+
+	/**
+	 * Start the broker, connect the fleet, generate traffic for the configured duration and report
+	 * the results.
+	 * 
+	 * @throws Exception
+	 */
+	public void run() throws Exception {
+		EmbeddedBroker broker = new EmbeddedBroker();
+		final SiteWhereStandIn sitewhere = new SiteWhereStandIn(broker);
+		broker.start();
+
+		ServiceMetrics metrics = new ServiceMetrics();
+		AtomicLong sent = new AtomicLong();
+		AtomicLong failed = new AtomicLong();
+		final List<VirtualDevice> devices = new ArrayList<VirtualDevice>(deviceCount);
+		out.println(String.format(Locale.US, "Connecting %d devices to %s...", deviceCount, broker.getUri()));
+		long connectStart = System.nanoTime();
+		for (int i = 0; i < deviceCount; i++) {
+			VirtualDevice device = new VirtualDevice(String.format(Locale.US, "SIM-%06d", i), mix, chunkSize,
+					maxInFlight, metrics, sent, failed);
+			if (qos >= 0) {
+				device.setFixedQos(qos);
+			}
+			device.connect(broker.getUri());
+			devices.add(device);
+		}
+		out.println(String.format(Locale.US, "Connected in %d ms.",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart)));
+
+		ScheduledExecutorService traffic = Executors.newScheduledThreadPool(threads);
+		long period = (long) (TimeUnit.SECONDS.toMicros(1) / rate);
+		Random random = new Random();
+		for (final VirtualDevice device : devices) {
+			traffic.scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				public void run() {
+					device.sendNext();
+				}
+			}, (long) (random.nextDouble() * period), period, TimeUnit.MICROSECONDS);
+		}
+		if (commandRate > 0) {
+			final Random targets = new Random();
+			traffic.scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				public void run() {
+					sitewhere.sendCommand(devices.get(targets.nextInt(devices.size())).getHardwareId());
+				}
+			}, 0, (long) (TimeUnit.SECONDS.toMicros(1) / commandRate), TimeUnit.MICROSECONDS);
+		}
+
+		long start = System.nanoTime();
+		long lastEvents = 0;
+		for (int elapsed = 0; elapsed < duration;) {
+			int step = Math.min(PROGRESS_INTERVAL_SECS, duration - elapsed);
+			Thread.sleep(TimeUnit.SECONDS.toMillis(step));
+			elapsed += step;
+			long events = sitewhere.getEventCount();
+			out.println(String.format(Locale.US, "[%3ds] %.0f events/s, %d queued", elapsed,
+					(events - lastEvents) / (double) step, getPendingCount(devices)));
+			lastEvents = events;
+		}
+		traffic.shutdownNow();
+		traffic.awaitTermination(5, TimeUnit.SECONDS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long eventsInRun = sitewhere.getEventCount();
+		long bytesInRun = sitewhere.getBytesIn();
+
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+		while (((getPendingCount(devices) > 0) || (sitewhere.getCommandsPending() > 0))
+				&& (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(100);
+		}
+
+		report(sitewhere, metrics.snapshot(), sent.get(), failed.get(), seconds, eventsInRun, bytesInRun);
+		for (VirtualDevice device : devices) {
+			device.disconnect();
+		}
+		broker.stop();
+	}
+
+	/**
+	 * Get number of events queued across the fleet.
+	 * 
+	 * @param devices
+	 * @return
+	 */
+	protected static long getPendingCount(List<VirtualDevice> devices) {
+		long pending = 0;
+		for (VirtualDevice device : devices) {
+			pending += device.getPendingCount();
+		}
+		return pending;
+	}
+
+	/**
+	 * Write results of a run.
+	 * 
+	 * @param sitewhere
+	 * @param metrics
+	 * @param sent
+	 * @param failed
+	 * @param seconds
+	 * @param eventsInRun
+	 * @param bytesInRun
+	 */
+	protected void report(SiteWhereStandIn sitewhere, MetricsSnapshot metrics, long sent, long failed,
+			double seconds, long eventsInRun, long bytesInRun) {
+		out.println();
+		out.println(String.format(Locale.US, "Devices: %d, rate: %.1f/s per device, mix: %s, qos: %s",
+				deviceCount, rate, mix, (qos >= 0) ? String.valueOf(qos) : "default"));
+		out.println(String.format(Locale.US, "Events sent: %d, failed to queue: %d, received: %d", sent,
+				failed, sitewhere.getEventCount()));
+		out.println(String.format(Locale.US, "Throughput: %.0f events/s, %.1f KB/s over %.1f s", eventsInRun
+				/ seconds, bytesInRun / seconds / 1024, seconds));
+		for (SiteWhere.Command command : new SiteWhere.Command[] { SiteWhere.Command.SEND_DEVICE_LOCATION,
+				SiteWhere.Command.SEND_DEVICE_MEASUREMENTS, SiteWhere.Command.SEND_DEVICE_STREAM_DATA }) {
+			out.println(String.format(Locale.US, "  %s: %d", command, sitewhere.getEventCount(command)));
+		}
+		Long failures = metrics.getValue(ServiceMetrics.PUBLISH_FAILURES);
+		out.println("Publish failures: " + ((failures != null) ? failures : 0) + ", malformed payloads: "
+				+ sitewhere.getMalformedCount() + ", payloads with ignored data: "
+				+ sitewhere.getTrailingCount());
+		for (int level = 0; level < QoS.values().length; level++) {
+			MetricsSnapshot.Histogram latency = metrics.getHistogram(ServiceMetrics.PUBLISH_LATENCY + level);
+			if ((latency != null) && (latency.getCount() > 0)) {
+				out.println("Publish latency qos" + level + ": " + format(latency));
+			}
+		}
+		out.println(String.format(Locale.US, "Commands sent: %d, unrouted: %d, unanswered: %d",
+				sitewhere.getCommandsSent(), sitewhere.getCommandsUnrouted(),
+				sitewhere.getCommandsPending()));
+		out.println("Command round trip: " + format(sitewhere.getRoundTrip()));
+	}
+
+	/**
+	 * Format the percentiles of a latency histogram.
+	 * 
+	 * @param histogram
+	 * @return
+	 */
+	protected static String format(MetricsSnapshot.Histogram histogram) {
+		return String.format(Locale.US, "count=%d p50=%dus p99=%dus p999=%dus max=%dus",
+				histogram.getCount(), histogram.getPercentile(50), histogram.getPercentile(99),
+				histogram.getPercentile(99.9), histogram.getMax());
+	}
+}
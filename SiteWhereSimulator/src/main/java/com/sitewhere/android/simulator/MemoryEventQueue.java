@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.simulator;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import com.sitewhere.android.mqtt.SiteWhereMqttException;
+import com.sitewhere.android.mqtt.queue.IOutboundEventQueue;
+import com.sitewhere.android.mqtt.queue.QueuedEvent;
+
+/**
+ * Implementation of {@link IOutboundEventQueue} that holds events in memory. Virtual devices use it
+ * so a large fleet does not need a set of queue files per device. Events are lost if the process
+ * exits, which does not matter for a simulation.
+ * 
+ * @author Derek
+ */
+public class MemoryEventQueue implements IOutboundEventQueue {
+
+	/** Events that have not been acknowledged, oldest first */
+	private final ArrayDeque<QueuedEvent> events = new ArrayDeque<QueuedEvent>();
+
+	/** Maximum number of unacknowledged events */
+	private final int capacity;
+
+	/** Sequence number assigned to the next appended event */
+	private long nextSequence;
+
+	/** Sequence number of the next event to be read */
+	private long readSequence;
+
+	/** Indicates queue has been closed */
+	private boolean closed;
+
+	public MemoryEventQueue(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#append(byte, byte[])
+	 */
+	@Override
+	public synchronized long append(byte flags, byte[] payload) throws SiteWhereMqttException {
+		if (closed) {
+			throw new SiteWhereMqttException("Queue has been closed.");
+		}
+		if (events.size() >= capacity) {
+			throw new SiteWhereMqttException("Outbound queue is full.");
+		}
+		long sequence = nextSequence++;
+		events.addLast(new QueuedEvent(sequence, flags, payload));
+		notifyAll();
+		return sequence;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#poll(long,
+	 * java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public synchronized QueuedEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (readSequence >= nextSequence) {
+			long remaining = deadline - System.nanoTime();
+			if (closed || (remaining <= 0)) {
+				return null;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		QueuedEvent first = events.peekFirst();
+		int index = (int) (readSequence - first.getSequence());
+		readSequence++;
+		if (index == 0) {
+			return first;
+		}
+		for (QueuedEvent event : events) {
+			if (index-- == 0) {
+				return event;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#acknowledge(long)
+	 */
+	@Override
+	public synchronized void acknowledge(long sequence) {
+		while (!events.isEmpty() && (events.peekFirst().getSequence() <= sequence)) {
+			events.removeFirst();
+		}
+		notifyAll();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#rewind()
+	 */
+	@Override
+	public synchronized void rewind() {
+		readSequence = events.isEmpty() ? nextSequence : events.peekFirst().getSequence();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#getPendingCount()
+	 */
+	@Override
+	public synchronized long getPendingCount() {
+		return events.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.queue.IOutboundEventQueue#close()
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+}
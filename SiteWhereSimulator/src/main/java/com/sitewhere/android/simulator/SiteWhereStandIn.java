@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.simulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.CodedInputStream;
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.messaging.MetricsSnapshot;
+import com.sitewhere.android.mqtt.DefaultMqttInteractionManager;
+import com.sitewhere.android.mqtt.LatencyHistogram;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+
+/**
+ * Plays the part of SiteWhere on the {@link EmbeddedBroker}. Counts the events devices publish on
+ * the inbound topic and sends commands to devices, measuring the time until each device
+ * acknowledges its command. The command payload is the id the device echoes back as the originator
+ * of its acknowledgement. Like SiteWhere, only the first header and message of each payload are
+ * decoded. Payloads with data after the first message are counted, since SiteWhere would drop it.
+ * 
+ * @author Derek
+ */
+public class SiteWhereStandIn implements EmbeddedBroker.IListener {
+
+	/** Tag for logging */
+	private static final String TAG = "SiteWhereStandIn";
+
+	/** Character set for command ids */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Broker commands are sent through */
+	private final EmbeddedBroker broker;
+
+	/** Number of events received indexed by command */
+	private final Map<SiteWhere.Command, AtomicLong> events =
+			new EnumMap<SiteWhere.Command, AtomicLong>(SiteWhere.Command.class);
+
+	/** Number of payload bytes received */
+	private final AtomicLong bytesIn = new AtomicLong();
+
+	/** Number of payloads that could not be decoded */
+	private final AtomicLong malformed = new AtomicLong();
+
+	/** Number of payloads with data after the first message */
+	private final AtomicLong trailing = new AtomicLong();
+
+	/** Time each unanswered command was sent, indexed by command id */
+	private final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+
+	/** Used to create unique command ids */
+	private final AtomicLong commandCount = new AtomicLong();
+
+	/** Number of commands that reached a device */
+	private final AtomicLong commandsSent = new AtomicLong();
+
+	/** Number of commands that had no subscriber */
+	private final AtomicLong commandsUnrouted = new AtomicLong();
+
+	/** Time from sending a command until it is acknowledged */
+	private final LatencyHistogram roundTrip = new LatencyHistogram();
+
+	public SiteWhereStandIn(EmbeddedBroker broker) {
+		this.broker = broker;
+		for (SiteWhere.Command command : SiteWhere.Command.values()) {
+			events.put(command, new AtomicLong());
+		}
+		broker.setListener(this);
+	}
+
+	/**
+	 * Send a command to a device and start timing its round trip.
+	 * 
+	 * @param hardwareId
+	 */
+	public void sendCommand(String hardwareId) {
+		String id = hardwareId + ":" + commandCount.incrementAndGet();
+		pending.put(id, System.nanoTime());
+		String topic = DefaultMqttInteractionManager.COMMAND_TOPIC_PREFIX + hardwareId;
+		if (broker.publish(topic, id.getBytes(UTF8)) == 0) {
+			pending.remove(id);
+			commandsUnrouted.incrementAndGet();
+		} else {
+			commandsSent.incrementAndGet();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.simulator.EmbeddedBroker.IListener#onPublish(java.lang.String,
+	 * java.lang.String, byte[])
+	 */
+	@Override
+	public void onPublish(String clientId, String topic, byte[] payload) {
+		if (!DefaultMqttInteractionManager.OUTBOUND_TOPIC.equals(topic)) {
+			return;
+		}
+		bytesIn.addAndGet(payload.length);
+		ByteArrayInputStream in = new ByteArrayInputStream(payload);
+		try {
+			SiteWhere.Header header = SiteWhere.Header.parseDelimitedFrom(in);
+			if (header == null) {
+				throw new IOException("Payload is empty.");
+			}
+			skipMessage(in);
+			events.get(header.getCommand()).incrementAndGet();
+			if ((header.getCommand() == SiteWhere.Command.SEND_ACKNOWLEDGEMENT) && header.hasOriginator()) {
+				Long sent = pending.remove(header.getOriginator());
+				if (sent != null) {
+					roundTrip.recordSince(sent);
+				}
+			}
+			if (in.available() > 0) {
+				trailing.incrementAndGet();
+				Log.w(TAG, "Ignoring " + in.available() + " bytes after first message from " + clientId
+						+ ".");
+			}
+		} catch (IOException e) {
+			malformed.incrementAndGet();
+			Log.w(TAG, "Unable to decode payload from " + clientId + ".", e);
+		}
+	}
+
+	/**
+	 * Skip over a delimited message without decoding it.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 */
+	protected static void skipMessage(ByteArrayInputStream in) throws IOException {
+		int first = in.read();
+		if (first < 0) {
+			throw new IOException("Payload ended before message.");
+		}
+		int length = CodedInputStream.readRawVarint32(first, in);
+		if (in.skip(length) != length) {
+			throw new IOException("Payload ended inside message.");
+		}
+	}
+
+	/**
+	 * Get number of events received for a command.
+	 * 
+	 * @param command
+	 * @return
+	 */
+	public long getEventCount(SiteWhere.Command command) {
+		return events.get(command).get();
+	}
+
+	/**
+	 * Get number of events received for all commands other than acknowledgements.
+	 * 
+	 * @return
+	 */
+	public long getEventCount() {
+		long total = 0;
+		for (Map.Entry<SiteWhere.Command, AtomicLong> entry : events.entrySet()) {
+			if (entry.getKey() != SiteWhere.Command.SEND_ACKNOWLEDGEMENT) {
+				total += entry.getValue().get();
+			}
+		}
+		return total;
+	}
+
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getMalformedCount() {
+		return malformed.get();
+	}
+
+	public long getTrailingCount() {
+		return trailing.get();
+	}
+
+	public long getCommandsSent() {
+		return commandsSent.get();
+	}
+
+	public long getCommandsUnrouted() {
+		return commandsUnrouted.get();
+	}
+
+	public int getCommandsPending() {
+		return pending.size();
+	}
+
+	public MetricsSnapshot.Histogram getRoundTrip() {
+		return roundTrip.snapshot();
+	}
+}
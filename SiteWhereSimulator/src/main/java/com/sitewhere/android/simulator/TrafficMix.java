@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.simulator;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Relative weights of the kinds of traffic each virtual device sends.
+ * 
+ * @author Derek
+ */
+public class TrafficMix {
+
+	/** Weight of location events */
+	private final int location;
+
+	/** Weight of measurement events */
+	private final int measurements;
+
+	/** Weight of device stream data chunks */
+	private final int stream;
+
+	public TrafficMix(int location, int measurements, int stream) {
+		if ((location < 0) || (measurements < 0) || (stream < 0)) {
+			throw new IllegalArgumentException("Traffic weights can not be negative.");
+		}
+		if (location + measurements + stream == 0) {
+			throw new IllegalArgumentException("At least one traffic weight must be positive.");
+		}
+		this.location = location;
+		this.measurements = measurements;
+		this.stream = stream;
+	}
+
+	/**
+	 * Parse a mix such as <code>location=50,measurements=40,stream=10</code>. Kinds that are not
+	 * listed have no weight.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static TrafficMix parse(String value) {
+		int location = 0;
+		int measurements = 0;
+		int stream = 0;
+		for (String part : value.split(",")) {
+			String[] pair = part.trim().split("=");
+			if (pair.length != 2) {
+				throw new IllegalArgumentException("Invalid traffic mix entry: " + part);
+			}
+			int weight = Integer.parseInt(pair[1].trim());
+			String kind = pair[0].trim().toLowerCase(Locale.US);
+			if ("location".equals(kind)) {
+				location = weight;
+			} else if ("measurements".equals(kind)) {
+				measurements = weight;
+			} else if ("stream".equals(kind)) {
+				stream = weight;
+			} else {
+				throw new IllegalArgumentException("Unknown traffic kind: " + kind);
+			}
+		}
+		return new TrafficMix(location, measurements, stream);
+	}
+
+	/**
+	 * Choose the kind of the next event.
+	 * 
+	 * @param random
+	 * @return
+	 */
+	public Kind next(Random random) {
+		int pick = random.nextInt(location + measurements + stream);
+		if (pick < location) {
+			return Kind.Location;
+		}
+		if (pick < location + measurements) {
+			return Kind.Measurements;
+		}
+		return Kind.Stream;
+	}
+
+	public int getLocation() {
+		return location;
+	}
+
+	public int getMeasurements() {
+		return measurements;
+	}
+
+	public int getStream() {
+		return stream;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "location=" + location + ",measurements=" + measurements + ",stream=" + stream;
+	}
+
+	/**
+	 * Kinds of traffic sent by virtual devices.
+	 * 
+	 * @author Derek
+	 */
+	public static enum Kind {
+
+		/** SEND_DEVICE_LOCATION event */
+		Location,
+
+		/** SEND_DEVICE_MEASUREMENTS event */
+		Measurements,
+
+		/** SEND_DEVICE_STREAM_DATA chunk */
+		Stream;
+	}
+}
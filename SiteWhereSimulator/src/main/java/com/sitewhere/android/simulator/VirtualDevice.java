@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) SiteWhere, LLC. All rights reserved. http://www.sitewhere.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sitewhere.android.simulator;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.fusesource.mqtt.client.FutureConnection;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.QoS;
+
+import com.sitewhere.android.logging.Log;
+import com.sitewhere.android.messaging.SiteWhereMessagingException;
+import com.sitewhere.android.mqtt.DefaultMqttInteractionManager;
+import com.sitewhere.android.mqtt.IMqttCallback;
+import com.sitewhere.android.mqtt.ServiceMetrics;
+import com.sitewhere.android.mqtt.SiteWhereMqttException;
+import com.sitewhere.android.protobuf.IPayloadSender;
+import com.sitewhere.android.protobuf.IQosPolicy;
+import com.sitewhere.android.protobuf.SiteWhereProtobufClient;
+import com.sitewhere.device.communication.protobuf.proto.Sitewhere.SiteWhere;
+
+/**
+ * Simulated device with its own MQTT connection, {@link DefaultMqttInteractionManager} and
+ * {@link SiteWhereProtobufClient}. Events are encoded and published exactly as on a phone, except
+ * that the outbound queue is held in memory. Custom commands are answered with an acknowledgement
+ * whose originator is the command payload.
+ * 
+ * @author Derek
+ */
+public class VirtualDevice implements IMqttCallback {
+
+	/** Tag for logging */
+	private static final String TAG = "VirtualDevice";
+
+	/** Character set for command ids */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Number of events each device queues before sends fail */
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+	/** Content type of simulated device streams */
+	private static final String STREAM_CONTENT_TYPE = "application/octet-stream";
+
+	/** Unique device id */
+	private final String hardwareId;
+
+	/** Outbound event queue */
+	private final MemoryEventQueue queue;
+
+	/** Publishes events and receives commands */
+	private final DefaultMqttInteractionManager manager;
+
+	/** Encodes events */
+	private final SiteWhereProtobufClient protobuf;
+
+	/** Mix of events sent */
+	private final TrafficMix mix;
+
+	/** Data sent in each stream chunk */
+	private final byte[] chunk;
+
+	/** Chooses events and their values */
+	private final Random random;
+
+	/** Shared count of events sent by all devices */
+	private final AtomicLong sent;
+
+	/** Shared count of events that could not be queued */
+	private final AtomicLong failed;
+
+	/** Next device stream sequence number */
+	private long streamSequence;
+
+	/** MQTT connection */
+	private FutureConnection connection;
+
+	public VirtualDevice(String hardwareId, TrafficMix mix, int chunkSize, int maxInFlight,
+			ServiceMetrics metrics, AtomicLong sent, AtomicLong failed) {
+		this.hardwareId = hardwareId;
+		this.mix = mix;
+		this.chunk = new byte[chunkSize];
+		this.random = new Random(hardwareId.hashCode());
+		this.random.nextBytes(chunk);
+		this.sent = sent;
+		this.failed = failed;
+		this.queue = new MemoryEventQueue(DEFAULT_QUEUE_CAPACITY);
+		this.manager = new DefaultMqttInteractionManager(queue, maxInFlight);
+		this.manager.setMetrics(metrics);
+		this.manager.setCallback(this);
+		this.protobuf = new SiteWhereProtobufClient(new IPayloadSender() {
+
+			@Override
+			public void send(byte[] payload, int qos) throws SiteWhereMessagingException {
+				try {
+					manager.send(payload, QoS.values()[qos]);
+				} catch (SiteWhereMqttException e) {
+					throw new SiteWhereMessagingException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Connect to a broker and subscribe to command topics. A device stream is created if the
+	 * traffic mix includes stream data.
+	 * 
+	 * @param uri
+	 * @throws Exception
+	 */
+	public void connect(String uri) throws Exception {
+		MQTT mqtt = new MQTT();
+		mqtt.setHost(uri);
+		mqtt.setClientId(hardwareId);
+		mqtt.setCleanSession(true);
+		mqtt.setKeepAlive((short) 300);
+		mqtt.setConnectAttemptsMax(1);
+		mqtt.setReconnectAttemptsMax(0);
+		connection = mqtt.futureConnection();
+		connection.connect().await();
+		manager.connect(hardwareId, connection, false);
+		if (mix.getStream() > 0) {
+			protobuf.sendDeviceStreamCreate(hardwareId, null, getStreamId(), STREAM_CONTENT_TYPE);
+		}
+	}
+
+	/**
+	 * Send the next event chosen by the traffic mix.
+	 */
+	public void sendNext() {
+		try {
+			switch (mix.next(random)) {
+			case Location: {
+				protobuf.sendLocation(hardwareId, null, 33.75 + random.nextDouble(),
+						-84.39 + random.nextDouble(), 300.0);
+				break;
+			}
+			case Measurements: {
+				protobuf.sendMeasurement(hardwareId, null, "engine.temp", 80.0 + random.nextDouble() * 40.0);
+				break;
+			}
+			case Stream: {
+				protobuf.sendDeviceStreamData(hardwareId, null, getStreamId(), streamSequence++, chunk);
+				break;
+			}
+			}
+			sent.incrementAndGet();
+		} catch (SiteWhereMessagingException e) {
+			failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Disconnect from the broker.
+	 */
+	public void disconnect() {
+		try {
+			manager.disconnect(hardwareId, connection, false);
+			connection.disconnect().await();
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to disconnect " + hardwareId + ".", e);
+		} finally {
+			manager.shutdown();
+			queue.close();
+		}
+	}
+
+	/**
+	 * Get id of the stream data chunks are sent to.
+	 * 
+	 * @return
+	 */
+	protected String getStreamId() {
+		return hardwareId + "-stream";
+	}
+
+	/**
+	 * Get number of events waiting to be published or acknowledged by the broker.
+	 * 
+	 * @return
+	 */
+	public long getPendingCount() {
+		return queue.getPendingCount();
+	}
+
+	/**
+	 * Use the same quality of service for every event.
+	 * 
+	 * @param qos
+	 */
+	public void setFixedQos(final int qos) {
+		protobuf.setQosPolicy(new IQosPolicy() {
+
+			@Override
+			public int getQos(SiteWhere.Command command) {
+				return qos;
+			}
+		});
+	}
+
+	public String getHardwareId() {
+		return hardwareId;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#connected()
+	 */
+	@Override
+	public void connected() {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#onSystemCommandReceived(java.lang.String, byte[])
+	 */
+	@Override
+	public void onSystemCommandReceived(String topic, byte[] payload) {
+		protobuf.receivedSystemCommand(payload);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#onCustomCommandReceived(java.lang.String, byte[])
+	 */
+	@Override
+	public void onCustomCommandReceived(String topic, byte[] payload) {
+		try {
+			protobuf.sendAck(hardwareId, new String(payload, UTF8), "Command received.");
+		} catch (SiteWhereMessagingException e) {
+			failed.incrementAndGet();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#onDelivered(long)
+	 */
+	@Override
+	public void onDelivered(long id) {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.sitewhere.android.mqtt.IMqttCallback#disconnected()
+	 */
+	@Override
+	public void disconnected() {
+	}
+}
@@ -15,11 +15,10 @@
  */
 package com.sitewhere.android.streaming.example;
 
+import java.io.IOException;
 import java.util.UUID;
-import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
 
 import android.app.FragmentTransaction;
 import android.app.Service;
@@ -46,7 +45,11 @@ import com.sitewhere.android.mqtt.preferences.MqttServicePreferences;
 import com.sitewhere.android.mqtt.ui.ConnectivityWizardFragment;
 import com.sitewhere.android.mqtt.ui.IConnectivityWizardListener;
 import com.sitewhere.android.preferences.IConnectivityPreferences;
+import com.sitewhere.android.protobuf.DeviceStreamWriter;
+import com.sitewhere.android.protobuf.IDeviceStreamListener;
+import com.sitewhere.android.protobuf.SiteWhereCommand;
 import com.sitewhere.android.protobuf.SiteWhereHybridProtobufActivity;
+import com.sitewhere.android.streaming.AudioJitterBuffer;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAck;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAckState;
 import com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.Header;
@@ -69,8 +72,17 @@ public class StreamingAudioExample extends SiteWhereHybridProtobufActivity imple
 	/** Encoding choice */
 	private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
 
-	/** Number of chunks to buffer before starting playback */
-	private static final int BUFFER_SIZE_IN_CHUNKS = 7;
+	/** Number of channels recorded and played */
+	private static final int CHANNELS = 2;
+
+	/** Bytes in one sample for one channel */
+	private static final int BYTES_PER_SAMPLE = 2;
+
+	/** Milliseconds of audio held by the jitter buffer */
+	private static final int JITTER_CAPACITY_MS = 2000;
+
+	/** Milliseconds of audio buffered before playback starts or resumes */
+	private static final int JITTER_START_MS = 300;
 
 	/** Wizard shown to establish preferences */
 	private ConnectivityWizardFragment wizard;
@@ -84,9 +96,6 @@ public class StreamingAudioExample extends SiteWhereHybridProtobufActivity imple
 	/** Used to play back streaming audio */
 	private AudioTrack speaker;
 
-	/** Tracks sequence number passed to request data */
-	private long sequenceNumber;
-
 	/** Used to execute buffering thread */
 	private ExecutorService executor;
 
@@ -277,7 +286,7 @@ public class StreamingAudioExample extends SiteWhereHybridProtobufActivity imple
 	 * .communication.protobuf.proto.Sitewhere.Device.Header,
 	 * com.sitewhere.device.communication.protobuf.proto.Sitewhere.Device.DeviceStreamAck)
 	 */
-	public void handleDeviceStreamAck(Header header, DeviceStreamAck ack) {
+	public void handleDeviceStreamAck(Header header, final DeviceStreamAck ack) {
 		Log.d(TAG, "Received ack message for stream: " + ack.getStreamId());
 		switch (ack.getState()) {
 		case STREAM_CREATED: {
@@ -294,7 +303,14 @@ public class StreamingAudioExample extends SiteWhereHybridProtobufActivity imple
 		}
 		}
 		if (ack.getState() != DeviceStreamAckState.STREAM_FAILED) {
-			startStreaming(ack.getStreamId());
+			// Record on a separate thread so delivery reports are not held up.
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					startStreaming(ack.getStreamId());
+				}
+			}, "Audio recorder").start();
 		}
 	}
 
@@ -333,21 +349,25 @@ public class StreamingAudioExample extends SiteWhereHybridProtobufActivity imple
 				AudioFormat.CHANNEL_IN_STEREO, ENCODING, bufferSize);
 		recorder.startRecording();
 
+		// Writer blocks the recording loop if chunks are not being delivered fast enough.
+		DeviceStreamWriter stream = openDeviceStream(getUniqueDeviceId(), null, streamId,
+				Math.min(bufferSize, DeviceStreamWriter.MAX_CHUNK_SIZE), DeviceStreamWriter.DEFAULT_WINDOW_SIZE);
 		long stopTime = System.currentTimeMillis() + (10 * 1000);
-		long seqNum = 0;
-		while (System.currentTimeMillis() < stopTime) {
-			int chunkSize = recorder.read(buffer, 0, buffer.length);
-			byte[] chunk = new byte[chunkSize];
-			System.arraycopy(buffer, 0, chunk, 0, chunkSize);
-			try {
-				sendDeviceStreamData(getUniqueDeviceId(), null, streamId, seqNum++, chunk);
-				Log.d(TAG, "Sent chunk for " + streamId + " sequence number " + seqNum + ".");
-			} catch (SiteWhereMessagingException e) {
-				Log.e(TAG, "Error sending chunk for " + streamId + " sequence number " + seqNum + ".", e);
+		try {
+			while (System.currentTimeMillis() < stopTime) {
+				int read = recorder.read(buffer, 0, buffer.length);
+				if (read > 0) {
+					stream.write(buffer, 0, read);
+				}
 			}
+			stream.close();
+			Log.d(TAG, "Sent " + stream.getNextSequenceNumber() + " chunks for " + streamId + " with "
+					+ stream.getRetransmitCount() + " retransmits.");
+		} catch (IOException e) {
+			Log.e(TAG, "Error sending chunks for " + streamId + ".", e);
+		} finally {
+			recorder.release();
 		}
-
-		recorder.release();
 		Log.d(TAG, "Finished streaming for " + streamId);
 
 		// Fininshed recording. Start playback.
@@ -361,82 +381,82 @@ public class StreamingAudioExample extends SiteWhereHybridProtobufActivity imple
 	 */
 	protected void startPlayback(String streamId) {
 		speaker = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, AudioFormat.CHANNEL_OUT_STEREO,
-				ENCODING, bufferSize * BUFFER_SIZE_IN_CHUNKS, AudioTrack.MODE_STREAM);
-		sequenceNumber = 0;
+				ENCODING, bufferSize * 2, AudioTrack.MODE_STREAM);
 		executor = Executors.newSingleThreadExecutor();
 		buffer = new SpeakerWriter();
 		executor.execute(buffer);
-		try {
-			requestDeviceStreamData(getUniqueDeviceId(), streamId, sequenceNumber);
-		} catch (SiteWhereMessagingException e) {
-			Log.e(TAG, "Unable to request data from device stream.", e);
-		}
-	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * com.sitewhere.android.protobuf.SiteWhereProtobufActivity#handleReceivedDeviceStreamData(com.sitewhere
-	 * .device.communication.protobuf.proto.Sitewhere.Device.Header,
-	 * com.sitewhere.device.communication.protobuf.proto.Sitewhere.Model.DeviceStreamData)
-	 */
-	@Override
-	public void handleReceivedDeviceStreamData(Header header, DeviceStreamData data) {
-		byte[] chunk = data.getData().toByteArray();
-		if (chunk.length > 0) {
-			// Push streamed data into AudioTrack.
-			buffer.addData(sequenceNumber, chunk);
-			sequenceNumber++;
-
-			// Request next chunk;
-			try {
-				requestDeviceStreamData(getUniqueDeviceId(), data.getStreamId(), sequenceNumber);
-			} catch (SiteWhereMessagingException e) {
-				Log.e(TAG, "Unable to request data from device stream.", e);
+		// Keep several chunk requests outstanding and push chunks into the jitter buffer in order.
+		readDeviceStream(getUniqueDeviceId(), streamId, 0, new IDeviceStreamListener() {
+
+			@Override
+			public void onStreamData(DeviceStreamData chunk) {
+				buffer.addData(chunk);
 			}
-		}
-		// speaker.release();
-		// speaker = null;
-		// Log.d(TAG, "Finished playing stream."); }
+
+			@Override
+			public void onStreamGap(long sequenceNumber) {
+				Log.w(TAG, "Chunk " + sequenceNumber + " missing from stream.");
+			}
+
+			@Override
+			public void onStreamEnd(long sequenceNumber) {
+				Log.d(TAG, "Finished reading stream after " + sequenceNumber + " chunks.");
+				buffer.finish();
+			}
+		});
 	}
 
 	/**
-	 * Queues data to be written to speaker in a separate thread.
+	 * Feeds the speaker from a jitter buffer in a separate thread.
 	 * 
 	 * @author Derek
 	 */
 	private class SpeakerWriter implements Runnable {
 
-		/** Queue that acts as a buffer for stream data */
-		private BlockingDeque<byte[]> chunks = new LinkedBlockingDeque<byte[]>();
+		/** Audio waiting to be played */
+		private AudioJitterBuffer jitter = new AudioJitterBuffer(sampleRate, CHANNELS, BYTES_PER_SAMPLE,
+				JITTER_CAPACITY_MS, JITTER_START_MS);
 
-		public void addData(long seq, byte[] data) {
-			try {
-				Log.d(TAG, "Added chunk " + seq + " with size " + data.length + ".");
-				chunks.put(data);
-			} catch (InterruptedException e) {
-				Log.d(TAG, "SpeakerWriter put interrupted.");
+		public void addData(DeviceStreamData chunk) {
+			int length = chunk.getData().size();
+			if (jitter.write(chunk.getData().asReadOnlyByteBuffer()) < length) {
+				Log.w(TAG, "Jitter buffer full. Dropped part of chunk " + chunk.getSequenceNumber() + ".");
 			}
 		}
 
+		public void finish() {
+			jitter.finish();
+		}
+
 		@Override
 		public void run() {
-			long seq = 0;
-			while (true) {
-				try {
-					byte[] chunk = chunks.take();
-					int result = speaker.write(chunk, 0, chunk.length);
-					Log.d(TAG, "Wrote " + result + " bytes of chunk " + seq++ + " (size " + chunk.length
-							+ ").");
-
-					if (seq > BUFFER_SIZE_IN_CHUNKS) {
+			byte[] chunk = new byte[bufferSize];
+			try {
+				while (true) {
+					int read = jitter.read(chunk, 0, chunk.length);
+					if (read < 0) {
+						break;
+					}
+					if (read == 0) {
+						Log.d(TAG, "Jitter buffer ran dry. Pausing playback.");
+						speaker.pause();
+						continue;
+					}
+					if (speaker.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
 						speaker.play();
 					}
-				} catch (InterruptedException e) {
-					Log.d(TAG, "SpeakerWriter take interrupted.");
+					speaker.write(chunk, 0, read);
 				}
+			} catch (InterruptedException e) {
+				Log.d(TAG, "SpeakerWriter interrupted.");
+			} finally {
+				speaker.stop();
+				speaker.release();
 			}
+			Log.d(TAG, "Playback finished with " + jitter.getUnderrunCount() + " underruns and "
+					+ jitter.getOverrunCount() + " overruns (" + jitter.getDroppedBytes()
+					+ " bytes dropped).");
 		}
 	}
 
@@ -447,6 +467,7 @@ public class StreamingAudioExample extends SiteWhereHybridProtobufActivity imple
 	 * @param originator
 	 * @throws SiteWhereMessagingException
 	 */
+	@SiteWhereCommand
 	public void changeBackground(final String color, IDeviceEventOriginator originator)
 			throws SiteWhereMessagingException {
 		runOnUiThread(new Runnable() {